@@ -0,0 +1,23 @@
+package ca.ubc.cs.cs317.dnslookup.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Entry point of the benchmarks jar. Takes the usual JMH command-line options (e.g., a regular
+ * expression selecting the benchmarks, or -p size=1000 to pick parameter values), and always
+ * adds the GC profiler, so each result comes with the number of bytes allocated per operation
+ * (gc.alloc.rate.norm) next to the throughput.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
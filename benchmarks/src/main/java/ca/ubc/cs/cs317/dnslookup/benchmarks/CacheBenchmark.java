@@ -0,0 +1,102 @@
+package ca.ubc.cs.cs317.dnslookup.benchmarks;
+
+import ca.ubc.cs.cs317.dnslookup.DNSCache;
+import ca.ubc.cs.cs317.dnslookup.DNSNode;
+import ca.ubc.cs.cs317.dnslookup.RecordType;
+import ca.ubc.cs.cs317.dnslookup.ResourceRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Cache hits and insertions in a full cache of a given number of records, by one thread and
+ * by several threads at once. The cache is bounded to its initial size, so each insertion of a
+ * new name also goes through the eviction policy. Insertions include creating the record, as
+ * the resolver does when decoding a response.
+ *
+ * The largest cache needs about 4 GB of heap; the forks are started with -Xmx6g.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx6g")
+@State(Scope.Benchmark)
+public class CacheBenchmark {
+
+    private static final int LOOKUPS = 1 << 16;
+    private static final int CONCURRENT_THREADS = 4;
+    private static final long TTL = 86400;
+
+    @Param({"1000", "100000", "10000000"})
+    public int size;
+
+    private DNSCache cache;
+    // cached nodes, looked up in a random order
+    private DNSNode[] lookups;
+    private final AtomicInteger threads = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws UnknownHostException {
+        cache = new DNSCache(size, 0);
+        for (int i = 0; i < size; i++)
+            cache.addResult(record(0, i));
+
+        Random random = new Random(317);
+        lookups = new DNSNode[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++)
+            lookups[i] = new DNSNode(hostName(0, random.nextInt(size)), RecordType.A);
+    }
+
+    /** Names used by one benchmark thread: its own range of new names, and a position in the
+     * lookups.
+     */
+    @State(Scope.Thread)
+    public static class ThreadState {
+        int thread;
+        int nextName;
+        int nextLookup;
+
+        @Setup(Level.Trial)
+        public void setUp(CacheBenchmark benchmark) {
+            // thread 0 names the records cached initially
+            thread = benchmark.threads.incrementAndGet();
+            nextLookup = thread * 7919;
+        }
+    }
+
+    @Benchmark
+    public Set<ResourceRecord> getCachedResults(ThreadState state) {
+        return cache.getCachedResults(lookups[state.nextLookup++ & (LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    @Threads(CONCURRENT_THREADS)
+    public Set<ResourceRecord> getCachedResultsConcurrent(ThreadState state) {
+        return cache.getCachedResults(lookups[state.nextLookup++ & (LOOKUPS - 1)]);
+    }
+
+    @Benchmark
+    public void addResult(ThreadState state) throws UnknownHostException {
+        cache.addResult(record(state.thread, state.nextName++));
+    }
+
+    @Benchmark
+    @Threads(CONCURRENT_THREADS)
+    public void addResultConcurrent(ThreadState state) throws UnknownHostException {
+        cache.addResult(record(state.thread, state.nextName++));
+    }
+
+    private static String hostName(int thread, int index) {
+        return "host" + index + ".t" + thread + ".zone" + (index & 1023) + ".example";
+    }
+
+    private static ResourceRecord record(int thread, int index) throws UnknownHostException {
+        byte[] address = {10, (byte) (index >>> 16), (byte) (index >>> 8), (byte) index};
+        return new ResourceRecord(hostName(thread, index), RecordType.A, TTL, InetAddress.getByAddress(address));
+    }
+}
@@ -0,0 +1,54 @@
+package ca.ubc.cs.cs317.dnslookup.benchmarks;
+
+import ca.ubc.cs.cs317.dnslookup.DNSNode;
+import ca.ubc.cs.cs317.dnslookup.Query;
+import ca.ubc.cs.cs317.dnslookup.RecordType;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** Encoding of queries. A node that has been sent before keeps its encoded name, so queries
+ * for a known node (e.g., retries) are measured separately from queries for a new node.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class QueryBenchmark {
+
+    @Param({"www.example.com", "a.very.long.host.name.in.a.deeply.nested.zone.example.co.uk"})
+    public String hostName;
+
+    private DNSNode node;
+    private ByteBuffer buffer;
+    private short queryID;
+
+    @Setup
+    public void setUp() {
+        node = new DNSNode(hostName, RecordType.A);
+        buffer = ByteBuffer.allocateDirect(Query.MAX_QUERY_SIZE);
+    }
+
+    /** Query for a known node, in a new array. */
+    @Benchmark
+    public byte[] createQuery() {
+        return Query.createQuery(node, queryID++);
+    }
+
+    /** Query for a new node, in a new array: includes encoding the name. */
+    @Benchmark
+    public byte[] createQueryNewNode() {
+        return Query.createQuery(new DNSNode(hostName, RecordType.A), queryID++);
+    }
+
+    /** Query for a known node, with an OPT record, in a reused buffer, as sent by the resolver. */
+    @Benchmark
+    public ByteBuffer encodeQuery() {
+        buffer.clear();
+        Query.encodeQuery(buffer, node, queryID++, 1232);
+        return buffer;
+    }
+}
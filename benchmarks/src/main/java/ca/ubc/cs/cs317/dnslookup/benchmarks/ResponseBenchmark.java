@@ -0,0 +1,51 @@
+package ca.ubc.cs.cs317.dnslookup.benchmarks;
+
+import ca.ubc.cs.cs317.dnslookup.Packets;
+import ca.ubc.cs.cs317.dnslookup.Response;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/** Decoding of responses: referrals and answers as sent by real servers, with compressed names,
+ * and the same messages with all names written out in full.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+
+    @Param({"root-referral", "tld-referral", "cname-answer", "mx-answer", "nxdomain"})
+    public String packet;
+
+    @Param({"compressed", "uncompressed"})
+    public String names;
+
+    private byte[] message;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setUp() throws IOException {
+        message = Packets.load(packet + "." + names);
+        buffer = ByteBuffer.allocateDirect(message.length);
+        buffer.put(message).flip();
+        // fail now rather than measure the cost of an exception
+        Response.decodeResponse(message);
+    }
+
+    /** Decoding of a message in a heap array, as received over TCP. */
+    @Benchmark
+    public Response decodeArray() throws IOException {
+        return Response.decodeResponse(message);
+    }
+
+    /** Decoding of a message in place, in a direct buffer, as received over UDP. */
+    @Benchmark
+    public Response decodeBuffer() throws IOException {
+        return Response.decodeResponse(buffer.duplicate());
+    }
+}
@@ -0,0 +1,261 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/** Size-bounded eviction policy for the DNS cache, following the W-TinyLFU design. Nodes
+ * enter a small LRU window (1% of the capacity). When they leave the window they move to the
+ * main area, a segmented LRU made of a probation and a protected segment (80% of the main
+ * area). A node leaving the window is only admitted to a full main area if it has been used
+ * more often than the node it would replace, according to a frequency sketch; so names that
+ * are looked up only once do not push out frequently used records.
+ *
+ * The capacity is given as a maximum number of records and a maximum (estimated) number of
+ * bytes; either limit may be zero, meaning no limit on that dimension. Sizes of the segments
+ * are computed based on the number of records if that limit is set, otherwise on bytes.
+ *
+ * All updates are made while holding a lock. Reads don't take the lock: they are added to a
+ * lossy read buffer, which is drained under the lock by the next update, or by the reader that
+ * fills it if the lock is free. A read may be dropped when the buffer is full, which only makes
+ * the policy slightly less precise but never blocks a read.
+ */
+class CachePolicy {
+
+    private static final double WINDOW_FRACTION = 0.01;
+    private static final double PROTECTED_FRACTION = 0.8;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final long maxRecords;
+    private final long maxBytes;
+    private final Consumer<DNSNode> evictor;
+    private final FrequencySketch sketch;
+    private final ReadBuffer<DNSNode> reads = new ReadBuffer<>();
+
+    // insertion-ordered maps used as LRU lists: first entry is the least recently used
+    private final LinkedHashMap<DNSNode, Weight> window = new LinkedHashMap<>();
+    private final LinkedHashMap<DNSNode, Weight> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<DNSNode, Weight> protectedSegment = new LinkedHashMap<>();
+    private long windowSize = 0;
+    private long protectedSize = 0;
+    private long records = 0;
+    private long bytes = 0;
+
+    private long evictions = 0;
+    private long evictedRecords = 0;
+    private long rejections = 0;
+
+    /** Creates a new policy.
+     *
+     * @param maxRecords Maximum number of records in the cache, or 0 for no limit.
+     * @param maxBytes   Maximum estimated size of the cache in bytes, or 0 for no limit.
+     * @param evictor    Action called (with the lock held) to remove a node from the cache.
+     */
+    CachePolicy(long maxRecords, long maxBytes, Consumer<DNSNode> evictor) {
+        this.maxRecords = maxRecords;
+        this.maxBytes = maxBytes;
+        this.evictor = evictor;
+        this.sketch = new FrequencySketch(maxRecords > 0 ? maxRecords : maxBytes / 256);
+    }
+
+    /** Records a read of a node's records. The read is buffered, and may be dropped if the
+     * buffer is full.
+     */
+    void recordAccess(DNSNode node) {
+        if (!reads.offer(node) || !lock.tryLock())
+            return;
+        try {
+            drainReads();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Applies the buffered reads to the policy. Called with the lock held. */
+    private void drainReads() {
+        reads.drainTo(this::onAccess);
+    }
+
+    private void onAccess(DNSNode node) {
+        sketch.increment(node.hashCode());
+        Weight weight;
+        if ((weight = window.remove(node)) != null) {
+            window.put(node, weight);
+        } else if ((weight = probation.remove(node)) != null) {
+            protectedSegment.put(node, weight);
+            protectedSize += size(weight);
+            demoteProtected();
+        } else if ((weight = protectedSegment.remove(node)) != null) {
+            protectedSegment.put(node, weight);
+        }
+    }
+
+    /** Records the addition of records to a node, and evicts nodes if the cache is over its
+     * capacity.
+     *
+     * @param node         Node the records were added to.
+     * @param recordsAdded Number of records added.
+     * @param bytesAdded   Estimated size of the records added.
+     */
+    void recordAdd(DNSNode node, int recordsAdded, long bytesAdded) {
+        lock.lock();
+        try {
+            drainReads();
+            sketch.increment(node.hashCode());
+            Weight weight = find(node);
+            if (weight == null) {
+                weight = new Weight();
+                window.put(node, weight);
+            }
+            resize(node, weight, recordsAdded, bytesAdded);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records the removal of records from a node (e.g., because they expired).
+     *
+     * @param node           Node the records were removed from.
+     * @param recordsRemoved Number of records removed.
+     * @param bytesRemoved   Estimated size of the records removed.
+     * @param nodeRemoved    True if the node no longer has any records in the cache.
+     */
+    void recordRemove(DNSNode node, int recordsRemoved, long bytesRemoved, boolean nodeRemoved) {
+        lock.lock();
+        try {
+            drainReads();
+            Weight weight = find(node);
+            if (weight == null)
+                return;
+            if (nodeRemoved)
+                forget(node, weight);
+            else
+                resize(node, weight, -recordsRemoved, -bytesRemoved);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Fills in the size and eviction counters of a statistics object. */
+    void getStatistics(CacheStatistics statistics) {
+        lock.lock();
+        try {
+            drainReads();
+            statistics.setSize(window.size() + probation.size() + protectedSegment.size(), records, bytes);
+            statistics.setEvictions(evictions, evictedRecords, rejections);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Weight find(DNSNode node) {
+        Weight weight = window.get(node);
+        if (weight == null)
+            weight = probation.get(node);
+        if (weight == null)
+            weight = protectedSegment.get(node);
+        return weight;
+    }
+
+    private void resize(DNSNode node, Weight weight, int recordDelta, long byteDelta) {
+        long oldSize = size(weight);
+        weight.records += recordDelta;
+        weight.bytes += byteDelta;
+        records += recordDelta;
+        bytes += byteDelta;
+        if (window.containsKey(node))
+            windowSize += size(weight) - oldSize;
+        else if (protectedSegment.containsKey(node))
+            protectedSize += size(weight) - oldSize;
+    }
+
+    private void forget(DNSNode node, Weight weight) {
+        if (window.remove(node) != null)
+            windowSize -= size(weight);
+        else if (protectedSegment.remove(node) != null)
+            protectedSize -= size(weight);
+        else
+            probation.remove(node);
+        records -= weight.records;
+        bytes -= weight.bytes;
+    }
+
+    /** Moves nodes from the window to the main area, and evicts nodes until the cache is within
+     * its capacity. Nodes that just left the window compete for admission with the least
+     * recently used node of the probation segment.
+     */
+    private void evict() {
+        long windowMax = (long) Math.max(1, capacity() * WINDOW_FRACTION);
+        List<DNSNode> candidates = new ArrayList<>(1);
+        while (windowSize > windowMax && window.size() > 1) {
+            Map.Entry<DNSNode, Weight> eldest = window.entrySet().iterator().next();
+            window.remove(eldest.getKey());
+            windowSize -= size(eldest.getValue());
+            probation.put(eldest.getKey(), eldest.getValue());
+            candidates.add(eldest.getKey());
+        }
+
+        while (overCapacity()) {
+            DNSNode victim = firstKey(probation);
+            if (victim == null)
+                victim = firstKey(protectedSegment);
+            if (victim == null)
+                victim = firstKey(window);
+            if (victim == null)
+                return;
+
+            DNSNode candidate = candidates.isEmpty() ? null : candidates.get(candidates.size() - 1);
+            if (candidate != null && !candidate.equals(victim) && probation.containsKey(candidate) &&
+                    sketch.frequency(candidate.hashCode()) <= sketch.frequency(victim.hashCode())) {
+                // the new node is not used more often than the one it would replace
+                victim = candidate;
+                rejections++;
+            }
+            candidates.remove(victim);
+
+            Weight weight = find(victim);
+            forget(victim, weight);
+            evictions++;
+            evictedRecords += weight.records;
+            evictor.accept(victim);
+        }
+    }
+
+    private void demoteProtected() {
+        long protectedMax = (long) (capacity() * (1 - WINDOW_FRACTION) * PROTECTED_FRACTION);
+        Iterator<Map.Entry<DNSNode, Weight>> iterator = protectedSegment.entrySet().iterator();
+        while (protectedSize > protectedMax && protectedSegment.size() > 1) {
+            Map.Entry<DNSNode, Weight> eldest = iterator.next();
+            iterator.remove();
+            protectedSize -= size(eldest.getValue());
+            probation.put(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    private boolean overCapacity() {
+        return (maxRecords > 0 && records > maxRecords) || (maxBytes > 0 && bytes > maxBytes);
+    }
+
+    private long capacity() {
+        return maxRecords > 0 ? maxRecords : maxBytes;
+    }
+
+    private long size(Weight weight) {
+        return maxRecords > 0 ? weight.records : weight.bytes;
+    }
+
+    private static DNSNode firstKey(LinkedHashMap<DNSNode, Weight> segment) {
+        return segment.isEmpty() ? null : segment.keySet().iterator().next();
+    }
+
+    /** Number and estimated size of the records of a node. */
+    private static final class Weight {
+        private long records;
+        private long bytes;
+    }
+}
@@ -0,0 +1,352 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/** Saves the contents of a DNSCache to a file, and loads them back, so that a restarted
+ * resolver starts with a warm cache instead of querying the root and top-level name servers for
+ * every name again. The cache may be saved periodically in the background, and once more when
+ * the snapshot is closed.
+ *
+ * Snapshots use a compact binary format: a header (magic number, version, number of entries)
+ * followed by one entry per node, holding the node's host name and type and, for each record,
+ * its expiration time, original TTL and data; negative results are saved as entries too.
+ * Expiration times are saved as wall-clock times, so the TTL that remains when a snapshot is
+ * loaded accounts for the time the resolver was stopped, and records that expired in the
+ * meantime are skipped. A snapshot is written to a temporary file that then replaces the
+ * previous snapshot, so a crash while saving never leaves a partial snapshot behind.
+ *
+ * Snapshots are loaded through a memory-mapped file, and may be loaded in the background while
+ * the resolver is already running. Delegations (NS records, followed by the addresses of the
+ * name servers they name) are saved first, so resolutions can start at cached zone cuts as
+ * soon as the first part of a large snapshot is loaded.
+ */
+public class CacheSnapshot implements Closeable {
+
+    private static final int MAGIC = 0x444E5343; // "DNSC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 + 4 + 8;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+    private static final byte ENTRY_RECORDS = 0;
+    private static final byte ENTRY_NEGATIVE = 1;
+
+    private final DNSCache cache;
+    private final Path file;
+    private ScheduledExecutorService snapshotThread;
+    private ScheduledFuture<?> periodicSaves;
+
+    /** Creates a snapshot of a cache, kept in a file.
+     *
+     * @param cache Cache to be saved and loaded.
+     * @param file  File where the snapshot is kept.
+     */
+    public CacheSnapshot(DNSCache cache, Path file) {
+        this.cache = cache;
+        this.file = file;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /** Saves the valid records and negative results of the cache to the snapshot file,
+     * replacing any previous snapshot. If the snapshot is being loaded, it is saved once the
+     * load is complete.
+     *
+     * @return The number of records and negative results saved.
+     * @throws IOException If the file could not be written.
+     */
+    public synchronized long save() throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        long[] count = new long[1];
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Writer out = new Writer(channel);
+            out.ensure(HEADER_SIZE);
+            out.buffer.putInt(MAGIC).putInt(VERSION).putLong(0);
+
+            // delegations first, then the addresses of their name servers, then all the rest
+            Set<String> nameServers = new HashSet<>();
+            cache.forEachNode((node, records) -> {
+                if (node.getType() == RecordType.NS) {
+                    count[0] += writeRecords(out, node, records);
+                    for (ResourceRecord record : records)
+                        nameServers.add(DNSNode.normalize(record.getTextResult()));
+                }
+            });
+            cache.forEachNode((node, records) -> {
+                if (isAddress(node) && nameServers.contains(node.getHostName()))
+                    count[0] += writeRecords(out, node, records);
+            });
+            cache.forEachNode((node, records) -> {
+                boolean written = node.getType() == RecordType.NS ||
+                        (isAddress(node) && nameServers.contains(node.getHostName()));
+                if (!written)
+                    count[0] += writeRecords(out, node, records);
+            });
+            cache.forEachNegativeResult(result -> {
+                writeNegativeResult(out, result);
+                count[0]++;
+            });
+            out.flush();
+            ByteBuffer entries = ByteBuffer.allocate(8).putLong(0, out.entries);
+            channel.write(entries, 8);
+            channel.force(false);
+        } catch (SnapshotException e) {
+            throw e.getCause();
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return count[0];
+    }
+
+    /** Adds the records and negative results in the snapshot file that have not expired yet to
+     * the cache. Records already in the cache are kept if they expire later.
+     *
+     * @return The number of records and negative results added.
+     * @throws IOException If the file could not be read, or is not a valid snapshot.
+     */
+    public synchronized long load() throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC)
+                throw new IOException("Not a cache snapshot: " + file);
+            if (buffer.getInt() != VERSION)
+                throw new IOException("Unsupported cache snapshot version: " + file);
+            long entries = buffer.getLong();
+
+            long now = System.currentTimeMillis();
+            long count = 0;
+            byte[] bytes = new byte[256];
+            for (long i = 0; i < entries; i++) {
+                byte kind = buffer.get();
+                String hostName = readString(buffer, buffer.getShort() & 0xFFFF, bytes);
+                RecordType type = RecordType.getByCode(buffer.getShort() & 0xFFFF);
+                if (kind == ENTRY_NEGATIVE) {
+                    long expiration = buffer.getLong();
+                    boolean nonExistentName = buffer.get() != 0;
+                    if (expiration > now) {
+                        cache.addNegativeResult(NegativeResult.expiringAt(new DNSNode(hostName, type),
+                                nonExistentName, CoarseClock.fromWallClock(expiration)));
+                        count++;
+                    }
+                    continue;
+                }
+                if (kind != ENTRY_RECORDS)
+                    throw new IOException("Invalid entry in cache snapshot: " + file);
+
+                // the records of a node are added together, as one block
+                int records = buffer.getShort() & 0xFFFF;
+                List<ResourceRecord> block = new ArrayList<>(records);
+                for (int j = 0; j < records; j++) {
+                    long expiration = buffer.getLong();
+                    long originalTTL = buffer.getInt() & 0xFFFFFFFFL;
+                    int addressLength = buffer.get() & 0xFF;
+                    InetAddress address = null;
+                    String text = null;
+                    if (addressLength > 0) {
+                        byte[] addressBytes = new byte[addressLength];
+                        buffer.get(addressBytes);
+                        address = InetAddress.getByAddress(addressBytes);
+                    } else {
+                        int textLength = buffer.getInt();
+                        if (textLength > bytes.length)
+                            bytes = new byte[textLength];
+                        text = readString(buffer, textLength, bytes);
+                    }
+                    if (expiration > now)
+                        block.add(ResourceRecord.expiringAt(hostName, type, originalTTL,
+                                CoarseClock.fromWallClock(expiration), text, address));
+                }
+                if (!block.isEmpty()) {
+                    cache.addResults(block);
+                    count += block.size();
+                }
+            }
+            return count;
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated or invalid cache snapshot: " + file, e);
+        }
+    }
+
+    /** Loads the snapshot file in a background thread, so the cache may be used while it is
+     * being filled.
+     *
+     * @return A future completed with the number of records and negative results added, or
+     *         completed exceptionally if the file could not be read or is not a valid snapshot.
+     */
+    public CompletableFuture<Long> loadInBackground() {
+        CompletableFuture<Long> loaded = new CompletableFuture<>();
+        getSnapshotThread().execute(() -> {
+            try {
+                loaded.complete(load());
+            } catch (IOException | RuntimeException e) {
+                loaded.completeExceptionally(e);
+            }
+        });
+        return loaded;
+    }
+
+    /** Saves the cache periodically, in a background thread. Errors are reported on the standard
+     * error, and the next save is attempted anyway.
+     *
+     * @param interval Time between saves.
+     * @param unit     Unit of the interval.
+     */
+    public synchronized void startPeriodicSaves(long interval, TimeUnit unit) {
+        stopPeriodicSaves();
+        periodicSaves = getSnapshotThread().scheduleWithFixedDelay(() -> {
+            try {
+                save();
+            } catch (IOException e) {
+                System.err.println("Could not save the cache to " + file + " (" + e.getMessage() + ").");
+            }
+        }, interval, interval, unit);
+    }
+
+    /** Stops saving the cache periodically. */
+    public synchronized void stopPeriodicSaves() {
+        if (periodicSaves != null) {
+            periodicSaves.cancel(false);
+            periodicSaves = null;
+        }
+    }
+
+    private synchronized ScheduledExecutorService getSnapshotThread() {
+        if (snapshotThread == null)
+            snapshotThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "dns-cache-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+        return snapshotThread;
+    }
+
+    /** Stops saving the cache periodically, and saves it one last time.
+     *
+     * @throws IOException If the file could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        stopPeriodicSaves();
+        save();
+    }
+
+    private static boolean isAddress(DNSNode node) {
+        return node.getType() == RecordType.A || node.getType() == RecordType.AAAA;
+    }
+
+    private static long writeRecords(Writer out, DNSNode node, Set<ResourceRecord> records) {
+        byte[] name = node.getHostName().getBytes(StandardCharsets.ISO_8859_1);
+        // the set may be a view of records that change while they are saved
+        ResourceRecord[] copy = records.toArray(new ResourceRecord[0]);
+        int count = Math.min(copy.length, 0xFFFF);
+        out.ensure(1 + 2 + name.length + 2 + 2);
+        out.buffer.put(ENTRY_RECORDS).putShort((short) name.length).put(name)
+                .putShort((short) node.getType().getCode()).putShort((short) count);
+        for (int i = 0; i < count; i++) {
+            ResourceRecord record = copy[i];
+            out.ensure(8 + 4 + 1 + 16);
+            out.buffer.putLong(CoarseClock.toWallClock(record.getExpirationTime()))
+                    .putInt((int) record.getOriginalTTL());
+            if (record.getInetResult() != null) {
+                byte[] address = record.getInetResult().getAddress();
+                out.buffer.put((byte) address.length).put(address);
+            } else {
+                byte[] text = record.getTextResult().getBytes(StandardCharsets.ISO_8859_1);
+                out.buffer.put((byte) 0);
+                out.ensure(4);
+                out.buffer.putInt(text.length);
+                out.put(text);
+            }
+        }
+        out.entries++;
+        return count;
+    }
+
+    private static void writeNegativeResult(Writer out, NegativeResult result) {
+        byte[] name = result.getNode().getHostName().getBytes(StandardCharsets.ISO_8859_1);
+        out.ensure(1 + 2 + name.length + 2 + 8 + 1);
+        out.buffer.put(ENTRY_NEGATIVE).putShort((short) name.length).put(name)
+                .putShort((short) result.getNode().getType().getCode())
+                .putLong(CoarseClock.toWallClock(result.getExpirationTime()))
+                .put((byte) (result.isNonExistentName() ? 1 : 0));
+        out.entries++;
+    }
+
+    private static String readString(ByteBuffer buffer, int length, byte[] bytes) {
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.ISO_8859_1);
+    }
+
+    /** Buffered writes to a file channel. Write errors are thrown as SnapshotExceptions, so
+     * they can be thrown from the lambdas that iterate over the cache.
+     */
+    private static final class Writer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+        private long entries;
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        /** Makes sure there is room for a number of bytes (at most WRITE_BUFFER_SIZE). */
+        void ensure(int length) {
+            if (buffer.remaining() < length)
+                flush();
+        }
+
+        void put(byte[] bytes) {
+            for (int offset = 0; offset < bytes.length; ) {
+                ensure(1);
+                int length = Math.min(buffer.remaining(), bytes.length - offset);
+                buffer.put(bytes, offset, length);
+                offset += length;
+            }
+        }
+
+        void flush() {
+            buffer.flip();
+            try {
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+            } catch (IOException e) {
+                throw new SnapshotException(e);
+            }
+            buffer.clear();
+        }
+    }
+
+    /** Carries an IOException out of the lambdas that iterate over the cache. */
+    private static final class SnapshotException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        SnapshotException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** A snapshot of the size and activity counters of a DNS cache. */
+public class CacheStatistics {
+
+    private long hits;
+    private long misses;
+    private long nodes;
+    private long records;
+    private long estimatedBytes;
+    private long evictions;
+    private long evictedRecords;
+    private long rejections;
+    private long refreshes;
+    private long staleHits;
+
+    void setLookups(long hits, long misses) {
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    void setRefreshes(long refreshes, long staleHits) {
+        this.refreshes = refreshes;
+        this.staleHits = staleHits;
+    }
+
+    void setSize(long nodes, long records, long estimatedBytes) {
+        this.nodes = nodes;
+        this.records = records;
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    void setEvictions(long evictions, long evictedRecords, long rejections) {
+        this.evictions = evictions;
+        this.evictedRecords = evictedRecords;
+        this.rejections = rejections;
+    }
+
+    /** Number of lookups that found at least one valid record. */
+    public long getHits() {
+        return hits;
+    }
+
+    /** Number of lookups that found no valid record. */
+    public long getMisses() {
+        return misses;
+    }
+
+    /** Number of lookups answered with stale records, because no valid record was cached. */
+    public long getStaleHits() {
+        return staleHits;
+    }
+
+    /** Number of refreshes started for popular nodes before their records expired, or for
+     * nodes whose stale records were served.
+     */
+    public long getRefreshes() {
+        return refreshes;
+    }
+
+    /** Number of nodes (host name and type) with records in the cache. */
+    public long getNodes() {
+        return nodes;
+    }
+
+    /** Number of records in the cache, including expired records not yet removed. */
+    public long getRecords() {
+        return records;
+    }
+
+    /** Estimated memory used by the records in the cache, in bytes. */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /** Number of nodes evicted to keep the cache within its capacity. */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /** Number of records in the evicted nodes. */
+    public long getEvictedRecords() {
+        return evictedRecords;
+    }
+
+    /** Number of evictions of new nodes that were not admitted to the main area of the cache,
+     * because they were not used more often than the node they would have replaced.
+     */
+    public long getRejections() {
+        return rejections;
+    }
+}
@@ -0,0 +1,67 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.TimeUnit;
+
+/** A monotonic clock with millisecond units and a resolution of a few milliseconds. The current
+ * time is read from a volatile field that is updated in the background, so reading it costs no
+ * more than reading any other field. Times returned by this clock are only meaningful relative
+ * to each other (e.g., to compute when a record expires), and are not affected by changes to
+ * the system's wall clock.
+ */
+public class CoarseClock {
+
+    private static final long RESOLUTION_MILLIS = 10;
+
+    private static final long originNanos = System.nanoTime();
+    private static volatile long now = 0;
+
+    static {
+        Thread ticker = new Thread(() -> {
+            while (true) {
+                now = elapsedMillis();
+                try {
+                    Thread.sleep(RESOLUTION_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "dns-coarse-clock");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    private CoarseClock() {
+    }
+
+    /** Returns the current time of this clock.
+     *
+     * @return The number of milliseconds since the clock started, up to RESOLUTION_MILLIS old.
+     */
+    public static long now() {
+        return now;
+    }
+
+    /** Converts a time of this clock into wall-clock time, as returned by
+     * System.currentTimeMillis().
+     *
+     * @param time A time of this clock.
+     * @return The corresponding wall-clock time.
+     */
+    public static long toWallClock(long time) {
+        return System.currentTimeMillis() + (time - now);
+    }
+
+    /** Converts a wall-clock time, as returned by System.currentTimeMillis(), into a time of
+     * this clock.
+     *
+     * @param wallClockMillis A wall-clock time.
+     * @return The corresponding time of this clock.
+     */
+    public static long fromWallClock(long wallClockMillis) {
+        return now + (wallClockMillis - System.currentTimeMillis());
+    }
+
+    private static long elapsedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - originNanos);
+    }
+}
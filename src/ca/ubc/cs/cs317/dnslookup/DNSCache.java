@@ -1,18 +1,176 @@
 package ca.ubc.cs.cs317.dnslookup;
 
+import java.lang.ref.WeakReference;
+import java.net.InetAddress;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 
 /** This class handles a cache of DNS results. It is based on a map that links nodes (queries)
  * to a set of resource records (results). Cached results are only maintained for the duration
  * of the TTL (time-to-live) returned by the server, and are deleted before being returned to
  * the user.
+ *
+ * The cache is thread-safe. Nodes are kept in a concurrent hash table, so lookups take
+ * constant time and never block; updates only lock the part of the table holding the node
+ * being updated. Iteration is weakly consistent: it reflects the state of the cache at some
+ * point during the iteration, and never fails due to concurrent updates.
+ *
+ * The records of each node are packed in a compact block of primitives (see RecordBlock), and
+ * all the nodes of a name share one owner name string, so a cached record costs a small
+ * fraction of the memory of a ResourceRecord with its node, address and strings. Blocks are
+ * replaced as a whole when the records of a node change, and the ResourceRecord objects
+ * returned are created as they are read.
+ *
+ * Expired records are removed in the background, once a second, using a timing wheel; a single
+ * thread does this for all caches, without keeping a cache that is no longer used from being
+ * collected. Reads skip records that have expired but have not been removed yet, so expiration
+ * does not add any work to the read path beyond comparing each record's expiration time with
+ * the current (coarse) time.
+ *
+ * The size of the cache may be bounded by a number of records and an estimated number of bytes.
+ * When the cache is full, nodes are evicted following a frequency-aware policy (see
+ * CachePolicy), so that frequently used records are kept in favour of names that are only
+ * looked up once.
+ *
+ * The cached names are also indexed in a trie of reversed labels (see NameTrie), so the cached
+ * ancestors of a name, and the names under a suffix, are found without going through the whole
+ * cache, e.g., to find the closest delegation for a name, or to list or flush a zone.
+ *
+ * Negative results (names that don't exist, or that have no records of a type) are also kept,
+ * separately, for the TTL given by the zone's SOA record.
+ *
+ * Popular records may be refreshed ahead of their expiration: if a refresh action is set, the
+ * cache tracks how often each node is used, and when a frequently used node is looked up in the
+ * last part of the TTL of one of its records, the refresh action is started to resolve the node
+ * again in the background. The new records replace the old ones as they are added, so lookups
+ * of popular names keep hitting the cache.
+ *
+ * The cache may also serve stale records (RFC 8767). When a stale window is set, expired
+ * records are kept for that long after their expiration; they are never returned as cached
+ * results, but may be obtained as stale results, with a short TTL, when no valid records are
+ * available. Obtaining stale results also starts a refresh of the node in the background.
  */
 public class DNSCache {
 
+    private static final long EXPIRY_TICK_MILLIS = 1000;
+
+    // a single thread removes the expired records of all caches; it only holds weak references
+    // to them, so a cache that is no longer used is collected with its wheels and policy
+    private static final Queue<WeakReference<DNSCache>> expiringCaches = new ConcurrentLinkedQueue<>();
+
+    static {
+        ScheduledExecutorService expiryThread = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "dns-cache-expiry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        expiryThread.scheduleWithFixedDelay(DNSCache::expireAll, EXPIRY_TICK_MILLIS, EXPIRY_TICK_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
     private static DNSCache instance = new DNSCache();
 
-    private Map<DNSNode, Map<ResourceRecord, ResourceRecord>> cachedResults = new TreeMap<>();
+    public static final long DEFAULT_MAX_RECORDS = 1_000_000;
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    // a node is refreshed when used at least this often recently, in the last 10% of a TTL
+    private static final int REFRESH_MIN_FREQUENCY = 3;
+    private static final int REFRESH_WINDOW_DIVISOR = 10;
+    private static final long REFRESH_TRACKED_NODES = 1 << 16;
+    /** TTL of the records returned as stale results, in seconds (as recommended by RFC 8767). */
+    public static final long STALE_TTL = 30;
+
+    private final ConcurrentMap<DNSNode, RecordBlock> cachedResults = new ConcurrentHashMap<>();
+    private final ConcurrentMap<DNSNode, NegativeResult> negativeResults = new ConcurrentHashMap<>();
+    // name errors (NXDOMAIN) by host name, since they apply to queries of any type; updated
+    // while holding the map lock of the node of the negative result
+    private final ConcurrentMap<String, NegativeResult> nameErrors = new ConcurrentHashMap<>();
+    // updated while holding the map lock of the node entering or leaving the cache
+    private final NameTrie names = new NameTrie();
+    // a node is scheduled when its earliest expiration changes; when it expires, its expired
+    // records are removed and the node is scheduled again for the next expiration
+    private final TimingWheel<DNSNode> expiryWheel;
+    private final TimingWheel<NegativeResult> negativeExpiryWheel;
+    private final LongSupplier clock;
+    private volatile CachePolicy policy;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private volatile Function<DNSNode, CompletableFuture<?>> refresher;
+    private final FrequencySketch accessSketch = new FrequencySketch(REFRESH_TRACKED_NODES);
+    private final ReentrantLock accessSketchLock = new ReentrantLock();
+    private final ReadBuffer<DNSNode> accessBuffer = new ReadBuffer<>();
+    private final Set<DNSNode> refreshing = ConcurrentHashMap.newKeySet();
+    private final LongAdder refreshes = new LongAdder();
+    private volatile long staleWindowMillis = 0;
+    private final LongAdder staleHits = new LongAdder();
+
+    /** Creates a cache with the default capacity. */
+    public DNSCache() {
+        this(DEFAULT_MAX_RECORDS, DEFAULT_MAX_BYTES);
+    }
+
+    /** Creates a cache with a specific capacity.
+     *
+     * @param maxRecords Maximum number of records in the cache, or 0 for no limit.
+     * @param maxBytes   Maximum estimated size of the cache in bytes, or 0 for no limit.
+     */
+    public DNSCache(long maxRecords, long maxBytes) {
+        this(maxRecords, maxBytes, CoarseClock::now);
+        expiringCaches.add(new WeakReference<>(this));
+    }
+
+    /** Creates a cache with a specific capacity, that reads the time from a specific clock.
+     * Expired records are not removed in the background, but only when advanceExpiry is
+     * called, e.g., by tests that control the time.
+     *
+     * @param maxRecords Maximum number of records in the cache, or 0 for no limit.
+     * @param maxBytes   Maximum estimated size of the cache in bytes, or 0 for no limit.
+     * @param clock      Current time, as a time of the CoarseClock.
+     */
+    DNSCache(long maxRecords, long maxBytes, LongSupplier clock) {
+        this.clock = clock;
+        this.expiryWheel = new TimingWheel<>(EXPIRY_TICK_MILLIS, clock.getAsLong());
+        this.negativeExpiryWheel = new TimingWheel<>(EXPIRY_TICK_MILLIS, clock.getAsLong());
+        setCapacity(maxRecords, maxBytes);
+    }
+
+    /** Removes the records and negative results that have expired by a time. Must not be
+     * called concurrently from more than one thread.
+     *
+     * @param now Current time, as a time of the clock of the cache.
+     */
+    void advanceExpiry(long now) {
+        expiryWheel.advance(now, node -> expire(node, now));
+        negativeExpiryWheel.advance(now, this::expireNegative);
+    }
+
+    private static void expireAll() {
+        for (Iterator<WeakReference<DNSCache>> iterator = expiringCaches.iterator(); iterator.hasNext(); ) {
+            DNSCache cache = iterator.next().get();
+            if (cache == null) {
+                iterator.remove();
+                continue;
+            }
+            try {
+                cache.advanceExpiry(cache.clock.getAsLong());
+            } catch (RuntimeException e) {
+                // report the failure without stopping the expiry of the other caches
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
 
     /** Singleton retrieval method. Only one instance of the DNS cache can be created. This
      * method returns the single DNS cache instance.
@@ -24,69 +182,612 @@ public class DNSCache {
     }
 
     /** Returns a set of resource records already cached for a particular query. If no results
-     * are cached for the specified query, returns an empty set. Expired results are removed
-     * from the cache before being returned. This method does not perform the query itself, it
-     * only returns previously cached results.
+     * are cached for the specified query, returns an empty set. Expired results are never
+     * returned. This method does not perform the query itself, it only returns previously
+     * cached results.
      *
      * @param node DNS query (host name and record type) to obtain cached results.
      * @return A potentially empty set of resources associated to the query.
      */
     public Set<ResourceRecord> getCachedResults(DNSNode node) {
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(node);
-        if (results == null)
+        Set<ResourceRecord> valid = peekResults(node);
+        if (valid.isEmpty()) {
+            misses.increment();
+        } else {
+            hits.increment();
+            CachePolicy currentPolicy = policy;
+            if (currentPolicy != null)
+                currentPolicy.recordAccess(node);
+            if (refresher != null)
+                recordUse(node);
+        }
+        return valid;
+    }
+
+    /** Sets the action used to refresh popular nodes before their records expire. The action
+     * should resolve the node again, bypassing the cache, and add the new records to the cache;
+     * it should not block, and return a future completed once the node has been refreshed.
+     *
+     * @param refresher Refresh action, or null to disable refreshing ahead of expiration.
+     */
+    public void setRefresher(Function<DNSNode, CompletableFuture<?>> refresher) {
+        this.refresher = refresher;
+    }
+
+    /** Sets how long expired records are kept to be served as stale results.
+     *
+     * @param staleWindowSeconds Time after their expiration during which records may be served
+     *                           as stale results, in seconds, or 0 to disable serving stale
+     *                           results. Records that have already been removed are not
+     *                           restored.
+     */
+    public void setStaleWindow(long staleWindowSeconds) {
+        this.staleWindowMillis = Math.max(0, staleWindowSeconds * 1000);
+    }
+
+    /** Returns how long expired records are kept to be served as stale results.
+     *
+     * @return The stale window in seconds, or 0 if stale results are not served.
+     */
+    public long getStaleWindow() {
+        return staleWindowMillis / 1000;
+    }
+
+    /** Returns the expired records of a node that are still within the stale window, as new
+     * records with a TTL of STALE_TTL seconds, and starts a refresh of the node in the
+     * background. This method should only be used when no valid records are available, e.g.,
+     * when the node has no cached results.
+     *
+     * @param node DNS query (host name and record type) to obtain stale results.
+     * @return A potentially empty set of stale records; always empty if stale results are not
+     *         served.
+     */
+    public Set<ResourceRecord> getStaleResults(DNSNode node) {
+        long window = staleWindowMillis;
+        RecordBlock block;
+        if (window == 0 || (block = cachedResults.get(node)) == null)
             return Collections.emptySet();
 
-        results.keySet().removeIf(record -> !record.isStillValid());
-        return Collections.unmodifiableSet(results.keySet());
+        long now = clock.getAsLong();
+        Set<ResourceRecord> stale = new HashSet<>();
+        for (int i = 0, count = block.size(); i < count; i++) {
+            if (block.getExpirationTime(i) + window <= now)
+                continue;
+            ResourceRecord record = block.get(node, i);
+            if (record.getInetResult() != null)
+                stale.add(new ResourceRecord(record.getHostName(), record.getType(), STALE_TTL, record.getInetResult()));
+            else
+                stale.add(new ResourceRecord(record.getHostName(), record.getType(), STALE_TTL, record.getTextResult()));
+        }
+        if (stale.isEmpty())
+            return Collections.emptySet();
+
+        staleHits.increment();
+        Function<DNSNode, CompletableFuture<?>> currentRefresher = refresher;
+        if (currentRefresher != null && refreshing.add(node)) {
+            refreshes.increment();
+            currentRefresher.apply(node).whenComplete((result, ex) -> refreshing.remove(node));
+        }
+        return Collections.unmodifiableSet(stale);
+    }
+
+    /** Records a use of a node, to refresh it ahead of expiration. Like the reads of the
+     * eviction policy, uses are buffered, so a lookup never waits for the frequency sketch;
+     * the buffered uses are applied, and refreshes started, by the lookup that fills the buffer.
+     */
+    private void recordUse(DNSNode node) {
+        if (!accessBuffer.offer(node) || !accessSketchLock.tryLock())
+            return;
+        try {
+            accessBuffer.drainTo(this::refreshIfNeeded);
+        } finally {
+            accessSketchLock.unlock();
+        }
+    }
+
+    /** Counts a use of a node, and starts a refresh of the node if it is frequently used and
+     * one of its records is about to expire. Called with the sketch lock held.
+     */
+    private void refreshIfNeeded(DNSNode node) {
+        accessSketch.increment(node.hashCode());
+        Function<DNSNode, CompletableFuture<?>> currentRefresher = refresher;
+        if (currentRefresher == null || accessSketch.frequency(node.hashCode()) < REFRESH_MIN_FREQUENCY ||
+                refreshing.contains(node))
+            return;
+        RecordBlock block = cachedResults.get(node);
+        if (block == null)
+            return;
+
+        long now = clock.getAsLong();
+        for (int i = 0; i < block.size(); i++) {
+            long window = block.getOriginalTTL(i) * 1000 / REFRESH_WINDOW_DIVISOR;
+            long left = block.getExpirationTime(i) - now;
+            if (left > 0 && left <= window) {
+                if (refreshing.add(node)) {
+                    refreshes.increment();
+                    currentRefresher.apply(node).whenComplete((result, ex) -> refreshing.remove(node));
+                }
+                return;
+            }
+        }
     }
 
     /** Adds a specific resource record to the DNS cache. If the cache already has an equivalent
      * resource record, the existing record is replaced if the new one expires after the existing
-     * record, otherwise the existing record is maintained.
+     * record, otherwise the existing record is maintained. The name in an NS or CNAME record is
+     * kept as the string the cache already holds for that name, if any, so the servers shared by
+     * many zones are only stored once.
      *
      * @param record Resource record, possibly obtained from a DNS server, containing the result
      *               of a DNS query.
      */
     public void addResult(ResourceRecord record) {
 
-        if (!record.isStillValid()) return;
+        if (record.getExpirationTime() <= clock.getAsLong()) return;
+        ResourceRecord shared = withCanonicalData(record);
+
+        // new nodes are keyed by a node with the canonical host name, shared by all its types
+        DNSNode key = record.getNode();
+        if (!cachedResults.containsKey(key))
+            key = new DNSNode(names.getCanonicalName(key.getHostName()), key.getType());
+
+        // [0]: block before the update, [1]: block after the update
+        RecordBlock[] blocks = new RecordBlock[2];
+        // [0]: index of the equivalent record replaced, or -1 if the record is new
+        int[] replaced = new int[1];
+        cachedResults.compute(key, (node, block) -> {
+            int index = block == null ? -1 : block.indexOf(shared);
+            if (index >= 0 && block.getExpirationTime(index) >= shared.getExpirationTime())
+                return block;
+            blocks[0] = block;
+            blocks[1] = block == null ? RecordBlock.of(shared) : block.with(shared, index);
+            replaced[0] = index;
+            if (block == null)
+                names.add(node, false);
+            return blocks[1];
+        });
+        if (blocks[1] == null)
+            return;
 
-        Map<ResourceRecord, ResourceRecord> results = cachedResults.get(record.getNode());
-        if (results == null) {
-            results = new HashMap<>();
-            cachedResults.put(record.getNode(), results);
+        if (blocks[0] == null || record.getExpirationTime() < blocks[0].getEarliestExpiration())
+            expiryWheel.schedule(key, record.getExpirationTime());
+        CachePolicy currentPolicy = policy;
+        if (currentPolicy != null && replaced[0] < 0)
+            currentPolicy.recordAdd(key, 1, blocks[1].estimateSize(blocks[1].size() - 1));
+
+        // the node has records now, so a negative result for it no longer applies
+        if (!negativeResults.isEmpty() && removeNegative(key, null) && currentPolicy != null)
+            currentPolicy.recordRemove(key, 1, NegativeResult.ESTIMATED_SIZE, false);
+    }
+
+    /** Adds the records of one node to the cache at once, e.g., when loading a snapshot. If the
+     * node has no records in the cache yet, its block is built in a single pass; otherwise each
+     * record is merged as by addResult, but the node is still only updated once.
+     *
+     * @param records Records to be added, all belonging to the same node, with no two of them
+     *                equivalent. Records that are no longer valid are ignored.
+     */
+    void addResults(List<ResourceRecord> records) {
+
+        List<ResourceRecord> valid = new ArrayList<>(records.size());
+        for (ResourceRecord record : records)
+            if (record.getExpirationTime() > clock.getAsLong())
+                valid.add(withCanonicalData(record));
+        if (valid.isEmpty()) return;
+
+        DNSNode key = valid.get(0).getNode();
+        if (!cachedResults.containsKey(key))
+            key = new DNSNode(names.getCanonicalName(key.getHostName()), key.getType());
+
+        // [0]: block before the update, [1]: block after the update
+        RecordBlock[] blocks = new RecordBlock[2];
+        // [0]: number of records added, [1]: earliest expiration of the records added or replaced
+        long[] changes = {0, Long.MAX_VALUE};
+        cachedResults.compute(key, (node, block) -> {
+            blocks[0] = block;
+            RecordBlock result = block;
+            if (block == null) {
+                result = RecordBlock.of(valid);
+                changes[0] = valid.size();
+                names.add(node, false);
+            } else {
+                for (ResourceRecord record : valid) {
+                    int index = result.indexOf(record);
+                    if (index >= 0 && result.getExpirationTime(index) >= record.getExpirationTime())
+                        continue;
+                    result = result.with(record, index);
+                    if (index < 0)
+                        changes[0]++;
+                }
+            }
+            if (result != block)
+                for (ResourceRecord record : valid)
+                    changes[1] = Math.min(changes[1], record.getExpirationTime());
+            blocks[1] = result;
+            return result;
+        });
+        if (blocks[1] == blocks[0])
+            return;
+
+        if (blocks[0] == null || changes[1] < blocks[0].getEarliestExpiration())
+            expiryWheel.schedule(key, changes[1]);
+        CachePolicy currentPolicy = policy;
+        if (currentPolicy != null && changes[0] > 0)
+            currentPolicy.recordAdd(key, (int) changes[0],
+                    blocks[1].estimateSize() - (blocks[0] == null ? 0 : blocks[0].estimateSize()));
+
+        // the node has records now, so a negative result for it no longer applies
+        if (!negativeResults.isEmpty() && removeNegative(key, null) && currentPolicy != null)
+            currentPolicy.recordRemove(key, 1, NegativeResult.ESTIMATED_SIZE, false);
+    }
+
+    /** Returns the delegation for the closest enclosing zone of a host name for which the cache
+     * has both the name servers (NS records) and at least one address (A record) for them.
+     * Zones are tried from the host name itself up to the top-level domain; the root zone is
+     * never returned, since its servers are configured rather than cached. The records looked
+     * at are not counted as lookups, nor as uses by the eviction policy or refresh-ahead.
+     *
+     * @param hostName Host name to be resolved.
+     * @return The closest usable delegation, or null if none is cached.
+     */
+    public Delegation getClosestDelegation(String hostName) {
+        for (DNSNode nsNode : names.getEnclosingNodes(DNSNode.normalize(hostName), false)) {
+            String zone = nsNode.getHostName();
+            if (nsNode.getType() != RecordType.NS || zone.isEmpty())
+                continue;
+            Set<ResourceRecord> nsRecords = peekResults(nsNode);
+            if (!nsRecords.isEmpty()) {
+                List<String> nameServers = new ArrayList<>(nsRecords.size());
+                List<InetAddress> addresses = new ArrayList<>();
+                for (ResourceRecord ns : nsRecords) {
+                    String nsName = DNSNode.normalize(ns.getTextResult());
+                    nameServers.add(nsName);
+                    for (ResourceRecord a : peekResults(new DNSNode(nsName, RecordType.A)))
+                        addresses.add(a.getInetResult());
+                }
+                if (!addresses.isEmpty())
+                    return new Delegation(zone, nameServers, addresses);
+            }
         }
+        return null;
+    }
 
-        ResourceRecord oldRecord = results.get(record);
-        if (oldRecord == null || oldRecord.expiresBefore(record))
-            results.put(record, record);
+    /** Returns the closest name, among a host name and its ancestors, for which the cache has
+     * valid records of any type.
+     *
+     * @param hostName Host name.
+     * @return The closest cached name (the host name itself, if it is cached), or null if none
+     *         is cached.
+     */
+    public String getClosestEncloser(String hostName) {
+        for (DNSNode node : names.getEnclosingNodes(DNSNode.normalize(hostName), false)) {
+            if (!peekResults(node).isEmpty())
+                return node.getHostName();
+        }
+        return null;
+    }
+
+    /** Returns the negative result cached for a query, if any. A query also has a negative
+     * result if its host name is cached as non-existent for a query of another type.
+     *
+     * @param node DNS query (host name and record type).
+     * @return The negative result for the query, or null if none is cached.
+     */
+    public NegativeResult getNegativeResult(DNSNode node) {
+        if (negativeResults.isEmpty())
+            return null;
+        long now = clock.getAsLong();
+        NegativeResult result = negativeResults.get(node);
+        if (result != null && result.getExpirationTime() > now)
+            return result;
+        result = nameErrors.get(node.getHostName());
+        return result != null && result.getExpirationTime() > now ? result : null;
+    }
+
+    /** Adds a negative result to the cache, replacing any previous negative result for the
+     * same query.
+     *
+     * @param result Negative result, obtained from a DNS server.
+     */
+    public void addNegativeResult(NegativeResult result) {
+
+        if (result.getExpirationTime() <= clock.getAsLong()) return;
+
+        NegativeResult[] previous = new NegativeResult[1];
+        negativeResults.compute(result.getNode(), (node, current) -> {
+            previous[0] = current;
+            if (current == null)
+                names.add(node, true);
+            else if (current.isNonExistentName())
+                nameErrors.remove(node.getHostName(), current);
+            if (result.isNonExistentName())
+                nameErrors.put(node.getHostName(), result);
+            return result;
+        });
+        negativeExpiryWheel.schedule(result, result.getExpirationTime());
+        CachePolicy currentPolicy = policy;
+        if (currentPolicy != null && previous[0] == null)
+            currentPolicy.recordAdd(result.getNode(), 1, NegativeResult.ESTIMATED_SIZE);
+    }
+
+    /** Changes the capacity of the cache. Nodes are evicted immediately if the cache is larger
+     * than the new capacity.
+     *
+     * @param maxRecords Maximum number of records in the cache, or 0 for no limit.
+     * @param maxBytes   Maximum estimated size of the cache in bytes, or 0 for no limit.
+     */
+    public synchronized void setCapacity(long maxRecords, long maxBytes) {
+        if (maxRecords <= 0 && maxBytes <= 0) {
+            policy = null;
+            return;
+        }
+        CachePolicy newPolicy = new CachePolicy(maxRecords, maxBytes, node -> {
+            removeRecords(node);
+            removeNegative(node, null);
+        });
+        for (Map.Entry<DNSNode, RecordBlock> entry : cachedResults.entrySet())
+            newPolicy.recordAdd(entry.getKey(), entry.getValue().size(), entry.getValue().estimateSize());
+        for (DNSNode node : negativeResults.keySet())
+            newPolicy.recordAdd(node, 1, NegativeResult.ESTIMATED_SIZE);
+        policy = newPolicy;
+    }
+
+    /** Returns the current values of the size and activity counters of the cache.
+     *
+     * @return A snapshot of the cache statistics.
+     */
+    public CacheStatistics getStatistics() {
+        CacheStatistics statistics = new CacheStatistics();
+        statistics.setLookups(hits.sum(), misses.sum());
+        statistics.setRefreshes(refreshes.sum(), staleHits.sum());
+        CachePolicy currentPolicy = policy;
+        if (currentPolicy != null) {
+            currentPolicy.getStatistics(statistics);
+        } else {
+            long nodes = 0, records = 0, bytes = 0;
+            for (RecordBlock block : cachedResults.values()) {
+                nodes++;
+                records += block.size();
+                bytes += block.estimateSize();
+            }
+            statistics.setSize(nodes, records, bytes);
+        }
+        return statistics;
     }
 
     /** Perform a specific action for each query and its set of cached records. This action can
-     * be specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * be specified using a lambda expression or method name. Expired records are skipped.
      *
      * @param consumer Action to be performed for each query and set of records.
      */
     public void forEachNode(BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            if (!entry.getValue().keySet().isEmpty())
-                consumer.accept(entry.getKey(), entry.getValue().keySet());
+        for (Map.Entry<DNSNode, RecordBlock> entry : cachedResults.entrySet()) {
+            Set<ResourceRecord> results = validResults(entry.getKey(), entry.getValue());
+            if (!results.isEmpty())
+                consumer.accept(entry.getKey(), results);
         }
     }
 
     /** Perform a specific action for each query and individual record. This action can be
-     * specified using a lambda expression or method name. Expired records are removed before
-     * the action is performed.
+     * specified using a lambda expression or method name. Expired records are skipped.
      *
      * @param consumer Action to be performed for each query and record.
      */
     public void forEachRecord(BiConsumer<DNSNode, ResourceRecord> consumer) {
-        for (Map.Entry<DNSNode, Map<ResourceRecord, ResourceRecord>> entry : cachedResults.entrySet()) {
-            entry.getValue().keySet().removeIf(record -> !record.isStillValid());
-            entry.getValue().keySet().forEach(record -> consumer.accept(entry.getKey(), record));
+        long now = clock.getAsLong();
+        for (Map.Entry<DNSNode, RecordBlock> entry : cachedResults.entrySet()) {
+            RecordBlock block = entry.getValue();
+            for (int i = 0, count = block.size(); i < count; i++)
+                if (block.getExpirationTime(i) > now)
+                    consumer.accept(entry.getKey(), block.get(entry.getKey(), i));
+        }
+    }
+
+    /** Perform a specific action for each query under a suffix (the suffix itself or any name
+     * ending with it, e.g., www.example.com and example.com for example.com) and its set of
+     * cached records. Expired records are skipped.
+     *
+     * @param suffix   Suffix of the host names, or an empty string for all names.
+     * @param consumer Action to be performed for each query and set of records.
+     */
+    public void forEachNode(String suffix, BiConsumer<DNSNode, Set<ResourceRecord>> consumer) {
+        names.forEachNode(DNSNode.normalize(suffix), false, node -> {
+            Set<ResourceRecord> results = peekResults(node);
+            if (!results.isEmpty())
+                consumer.accept(node, results);
+        });
+    }
+
+    /** Removes all records and negative results cached for a suffix or any name under it,
+     * e.g., to purge a zone whose data has changed.
+     *
+     * @param suffix Suffix of the host names, or an empty string to empty the cache.
+     * @return The number of records and negative results removed.
+     */
+    public long flush(String suffix) {
+        String normalized = DNSNode.normalize(suffix);
+        CachePolicy currentPolicy = policy;
+        long[] removed = new long[1];
+        names.forEachNode(normalized, false, node -> {
+            RecordBlock block = removeRecords(node);
+            if (block == null)
+                return;
+            removed[0] += block.size();
+            if (currentPolicy != null)
+                currentPolicy.recordRemove(node, block.size(), block.estimateSize(),
+                        !negativeResults.containsKey(node));
+        });
+        names.forEachNode(normalized, true, node -> {
+            if (!removeNegative(node, null))
+                return;
+            removed[0]++;
+            if (currentPolicy != null)
+                currentPolicy.recordRemove(node, 1, NegativeResult.ESTIMATED_SIZE, !cachedResults.containsKey(node));
+        });
+        return removed[0];
+    }
+
+    /** Perform a specific action for each negative result. Expired results are skipped.
+     *
+     * @param consumer Action to be performed for each negative result.
+     */
+    public void forEachNegativeResult(Consumer<NegativeResult> consumer) {
+        long now = clock.getAsLong();
+        for (NegativeResult result : negativeResults.values())
+            if (result.getExpirationTime() > now)
+                consumer.accept(result);
+    }
+
+    /** Returns the records of a node that have not expired, for the cache's own use: unlike
+     * getCachedResults, the read is not counted in the statistics, and is not recorded as a use
+     * of the node by the eviction policy or refresh-ahead.
+     */
+    private Set<ResourceRecord> peekResults(DNSNode node) {
+        RecordBlock block = cachedResults.get(node);
+        return block == null ? Collections.emptySet() : validResults(node, block);
+    }
+
+    /** Returns the records of a node that have not expired. If none have expired (the common
+     * case, since expired records are removed in the background) a view of all the records is
+     * returned, otherwise a view of a copy without the expired records.
+     */
+    private Set<ResourceRecord> validResults(DNSNode node, RecordBlock block) {
+        long now = clock.getAsLong();
+        if (block.getEarliestExpiration() <= now)
+            block = block.withoutExpired(now);
+        return block == null ? Collections.emptySet() : new RecordSet(node, block);
+    }
+
+    /** Removes the expired records of a node from the cache, except those that may still be
+     * served as stale results, and schedules the node again for the next expiration of its
+     * remaining records. The entry for the node is removed if it has no records left; this is
+     * done while holding the lock for the node, so a record being added at the same time is
+     * never lost.
+     */
+    private void expire(DNSNode node, long now) {
+        long window = staleWindowMillis;
+        // [0]: block before the update, [1]: block after the update
+        RecordBlock[] blocks = new RecordBlock[2];
+        cachedResults.computeIfPresent(node, (key, block) -> {
+            blocks[0] = block;
+            blocks[1] = block.withoutExpired(now - window);
+            if (blocks[1] == null)
+                names.remove(key, false);
+            return blocks[1];
+        });
+        if (blocks[0] == null)
+            return;
+        if (blocks[1] != null)
+            expiryWheel.schedule(node, blocks[1].getNextExpiration(now, window));
+
+        CachePolicy currentPolicy = policy;
+        if (currentPolicy != null && blocks[1] != blocks[0]) {
+            int removed = blocks[0].size() - (blocks[1] == null ? 0 : blocks[1].size());
+            long bytes = blocks[0].estimateSize() - (blocks[1] == null ? 0 : blocks[1].estimateSize());
+            currentPolicy.recordRemove(node, removed, bytes, blocks[1] == null && !negativeResults.containsKey(node));
         }
     }
 
+    /** Returns a record whose name data, for an NS or CNAME record, is the string the trie holds
+     * for that name, or the record itself if it has no such data or the name is not cached.
+     */
+    private ResourceRecord withCanonicalData(ResourceRecord record) {
+        RecordType type = record.getType();
+        if (type != RecordType.NS && type != RecordType.CNAME)
+            return record;
+        String text = record.getTextResult();
+        String canonical = names.getCanonicalName(text);
+        if (canonical == text)
+            return record;
+        return new ResourceRecord(record.getNode(), record.getOriginalTTL(), record.getExpirationTime(), canonical,
+                null);
+    }
+
+    /** Removes all the records of a node, returning the block that held them, or null if the
+     * node had no records.
+     */
+    private RecordBlock removeRecords(DNSNode node) {
+        RecordBlock[] removed = new RecordBlock[1];
+        cachedResults.computeIfPresent(node, (key, block) -> {
+            removed[0] = block;
+            names.remove(key, false);
+            return null;
+        });
+        return removed[0];
+    }
+
+    /** Removes the negative result of a node, if it is a specific result (or any result, if
+     * null), returning true if it was removed.
+     */
+    private boolean removeNegative(DNSNode node, NegativeResult result) {
+        boolean[] removed = new boolean[1];
+        negativeResults.computeIfPresent(node, (key, current) -> {
+            if (result != null && current != result)
+                return current;
+            removed[0] = true;
+            names.remove(key, true);
+            if (current.isNonExistentName())
+                nameErrors.remove(key.getHostName(), current);
+            return null;
+        });
+        return removed[0];
+    }
+
+    /** Removes an expired negative result from the cache, unless it has been replaced. */
+    private void expireNegative(NegativeResult result) {
+        CachePolicy currentPolicy = policy;
+        if (removeNegative(result.getNode(), result) && currentPolicy != null)
+            currentPolicy.recordRemove(result.getNode(), 1, NegativeResult.ESTIMATED_SIZE,
+                    !cachedResults.containsKey(result.getNode()));
+    }
+
+    /** Read-only set view of the records of a node. Records are created from the block of the
+     * node as they are iterated.
+     */
+    private static class RecordSet extends AbstractSet<ResourceRecord> {
+        private final DNSNode node;
+        private final RecordBlock block;
+
+        RecordSet(DNSNode node, RecordBlock block) {
+            this.node = node;
+            this.block = block;
+        }
+
+        @Override
+        public Iterator<ResourceRecord> iterator() {
+            return new Iterator<ResourceRecord>() {
+                private int next = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return next < block.size();
+                }
+
+                @Override
+                public ResourceRecord next() {
+                    if (next >= block.size())
+                        throw new NoSuchElementException();
+                    return block.get(node, next++);
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return block.size();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return false;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof ResourceRecord))
+                return false;
+            ResourceRecord record = (ResourceRecord) o;
+            return record.getNode().equals(node) && block.indexOf(record) >= 0;
+        }
+    }
 }
@@ -1,29 +1,31 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import javax.imageio.IIOException;
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class DNSLookupService {
 
-    private static final int DEFAULT_DNS_PORT = 53;
-    private static final int MAX_INDIRECTION_LEVEL = 10;
+    private static final int DEFAULT_BATCH_CONCURRENCY = 64;
+    private static final int BATCH_OUTPUT_BUFFER_SIZE = 1 << 16;
+    private static final long SNAPSHOT_INTERVAL_SECONDS = 300;
 
-    private static InetAddress rootServer;
-    private static boolean verboseTracing = false;
-    private static DatagramSocket socket;
+    private static volatile boolean verboseTracing = false;
 
     public static DNSCache cache = DNSCache.getInstance();
 
-    private static Random random = new Random();
+    private static IterativeResolver resolver;
 
-    private static ResourceRecord _resA;
-    private static ResourceRecord _resAAAA;
-    private static ResourceRecord _resCN;
-    public static DNSNode oGNode;
-    private static boolean _resent = false;
-    private static int _cNameTimes = 0;
+    private static DNSServer server;
+
+    private static CacheSnapshot snapshot;
 
     /**
      * Main function, called when program is first invoked.
@@ -32,28 +34,115 @@ public class DNSLookupService {
      */
     public static void main(String[] args) {
 
-        if (args.length != 1) {
+        String batchFile = null;
+        String snapshotFile = null;
+        int concurrency = DEFAULT_BATCH_CONCURRENCY;
+        ThreadMode mode = ThreadMode.PLATFORM;
+        boolean tcpOnly = false;
+        int listenPort = -1;
+        int ednsPayloadSize = IterativeResolver.DEFAULT_EDNS_PAYLOAD_SIZE;
+        boolean validArgs = args.length >= 1;
+        for (int i = 1; validArgs && i < args.length; i += 2) {
+            if (i + 1 >= args.length)
+                validArgs = false;
+            else if (args[i].equals("-batch"))
+                batchFile = args[i + 1];
+            else if (args[i].equals("-threads"))
+                try {
+                    mode = ThreadMode.valueOf(args[i + 1].toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    validArgs = false;
+                }
+            else if (args[i].equals("-listen"))
+                try {
+                    listenPort = Integer.parseInt(args[i + 1]);
+                    validArgs = listenPort >= 0 && listenPort <= 0xFFFF;
+                } catch (NumberFormatException e) {
+                    validArgs = false;
+                }
+            else if (args[i].equals("-snapshot"))
+                snapshotFile = args[i + 1];
+            else if (args[i].equals("-transport"))
+                if (args[i + 1].equalsIgnoreCase("udp") || args[i + 1].equalsIgnoreCase("tcp"))
+                    tcpOnly = args[i + 1].equalsIgnoreCase("tcp");
+                else
+                    validArgs = false;
+            else if (args[i].equals("-edns"))
+                try {
+                    ednsPayloadSize = args[i + 1].equalsIgnoreCase("off") ? 0 : Integer.parseInt(args[i + 1]);
+                    validArgs = ednsPayloadSize == 0 || (ednsPayloadSize >= 512 && ednsPayloadSize <= 0xFFFF);
+                } catch (NumberFormatException e) {
+                    validArgs = false;
+                }
+            else if (args[i].equals("-concurrency"))
+                try {
+                    concurrency = Integer.parseInt(args[i + 1]);
+                    validArgs = concurrency > 0;
+                } catch (NumberFormatException e) {
+                    validArgs = false;
+                }
+            else
+                validArgs = false;
+        }
+        if (!validArgs) {
             System.err.println("Invalid call. Usage:");
-            System.err.println("\tjava -jar DNSLookupService.jar rootServer");
+            System.err.println("\tjava -jar DNSLookupService.jar rootServer [-batch file|-] [-concurrency n] [-threads platform|virtual] [-listen port] [-edns size|off] [-transport udp|tcp] [-snapshot file]");
             System.err.println("where rootServer is the IP address (in dotted form) of the root DNS server to start the search at.");
+            System.err.println("With -batch, the names listed in the file (or standard input) are looked up, n at a time, and the program exits.");
+            System.err.println("With -listen, DNS queries received on the UDP port are answered until the program is stopped.");
+            System.err.println("With -edns, queries advertise the size of the UDP responses accepted (1232 bytes by default).");
+            System.err.println("With -snapshot, the cache is loaded from the file at startup, and saved to it periodically and on exit.");
             System.exit(1);
         }
 
+        InetAddress rootServer = null;
         try {
             rootServer = InetAddress.getByName(args[0]);
-            System.out.println("Root DNS server is: " + rootServer.getHostAddress());
+            if (batchFile == null && listenPort < 0)
+                System.out.println("Root DNS server is: " + rootServer.getHostAddress());
         } catch (UnknownHostException e) {
             System.err.println("Invalid root server (" + e.getMessage() + ").");
             System.exit(1);
         }
 
+        if (snapshotFile != null)
+            openSnapshot(Paths.get(snapshotFile));
+
         try {
-            socket = new DatagramSocket();
-            socket.setSoTimeout(5000);
-        } catch (SocketException ex) {
+            resolver = IterativeResolver.builder().rootServer(rootServer).cache(cache)
+                    .ednsPayloadSize(ednsPayloadSize).tcpOnly(tcpOnly).build();
+        } catch (IOException ex) {
             ex.printStackTrace();
             System.exit(1);
         }
+        setThreadMode(mode);
+
+        if (batchFile != null) {
+            try (BufferedReader input = batchFile.equals("-") ?
+                    new BufferedReader(new InputStreamReader(System.in)) : new BufferedReader(new FileReader(batchFile))) {
+                runBatch(input, concurrency);
+            } catch (IOException e) {
+                System.err.println("Error reading " + batchFile + " (" + e.getMessage() + ").");
+                System.exit(1);
+            }
+            System.exit(0);
+        }
+
+        if (listenPort >= 0) {
+            if (!startServer(listenPort, Runtime.getRuntime().availableProcessors()))
+                System.exit(1);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.close();
+                resolver.close();
+            }));
+            while (true)
+                try {
+                    Thread.sleep(Long.MAX_VALUE);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            return;
+        }
 
         Scanner in = new Scanner(System.in);
         Console console = System.console();
@@ -88,8 +177,9 @@ public class DNSLookupService {
                 // SERVER: Change root nameserver
                 if (commandArgs.length == 2) {
                     try {
-                        rootServer = InetAddress.getByName(commandArgs[1]);
-                        System.out.println("Root DNS server is now: " + rootServer.getHostAddress());
+                        InetAddress newRootServer = InetAddress.getByName(commandArgs[1]);
+                        resolver.setRootServers(Collections.singletonList(newRootServer));
+                        System.out.println("Root DNS server is now: " + newRootServer.getHostAddress());
                     } catch (UnknownHostException e) {
                         System.out.println("Invalid root server (" + e.getMessage() + ").");
                         continue;
@@ -109,6 +199,7 @@ public class DNSLookupService {
                         System.err.println("Invalid call. Format:\n\ttrace on|off");
                         continue;
                     }
+                    resolver.setVerboseTracing(verboseTracing);
                     System.out.println("Verbose tracing is now: " + (verboseTracing ? "ON" : "OFF"));
                 } else {
                     System.err.println("Invalid call. Format:\n\ttrace on|off");
@@ -133,21 +224,144 @@ public class DNSLookupService {
                 }
                 findAndPrintResults(commandArgs[1], type);
             } else if (commandArgs[0].equalsIgnoreCase("dump")) {
-                // DUMP: Print all results still cached
-                cache.forEachNode(DNSLookupService::printResults);
+                // DUMP: Print all results still cached, or those under a suffix
+                if (commandArgs.length == 1)
+                    cache.forEachNode(DNSLookupService::printResults);
+                else if (commandArgs.length == 2)
+                    cache.forEachNode(commandArgs[1], DNSLookupService::printResults);
+                else
+                    System.err.println("Invalid call. Format:\n\tdump [suffix]");
+            } else if (commandArgs[0].equalsIgnoreCase("flush")) {
+                // FLUSH: Remove all results cached under a suffix
+                if (commandArgs.length == 2) {
+                    long removed = cache.flush(commandArgs[1]);
+                    System.out.println("Flushed " + removed + " cached results under " + commandArgs[1]);
+                } else {
+                    System.err.println("Invalid call. Format:\n\tflush suffix");
+                }
+            } else if (commandArgs[0].equalsIgnoreCase("snapshot")) {
+                // SNAPSHOT: Save the cache now
+                if (commandArgs.length == 1 && snapshot != null)
+                    saveSnapshot();
+                else if (commandArgs.length == 1)
+                    System.err.println("No snapshot file was set (use -snapshot file).");
+                else
+                    System.err.println("Invalid call. Format:\n\tsnapshot");
+            } else if (commandArgs[0].equalsIgnoreCase("stats")) {
+                // STATS: Print cache size and activity counters
+                printStatistics(cache.getStatistics());
+            } else if (commandArgs[0].equalsIgnoreCase("stale")) {
+                // STALE: Serve expired records for some time if they can't be refreshed
+                if (commandArgs.length == 2) {
+                    try {
+                        long window = commandArgs[1].equalsIgnoreCase("off") ? 0 : Long.parseLong(commandArgs[1]);
+                        cache.setStaleWindow(window);
+                        System.out.println("Serving stale records is now: " +
+                                (window > 0 ? "ON (" + window + " seconds)" : "OFF"));
+                        continue;
+                    } catch (NumberFormatException e) {
+                        // fall through to the usage message
+                    }
+                }
+                System.err.println("Invalid call. Format:\n\tstale seconds|off");
+            } else if (commandArgs[0].equalsIgnoreCase("threads")) {
+                // THREADS: Choose the kind of threads used to run lookups
+                if (commandArgs.length == 2) {
+                    try {
+                        setThreadMode(ThreadMode.valueOf(commandArgs[1].toUpperCase()));
+                        System.out.println("Lookups now run on: " + resolver.getThreadMode().name().toLowerCase() + " threads");
+                        continue;
+                    } catch (IllegalArgumentException e) {
+                        // fall through to the usage message
+                    }
+                }
+                System.err.println("Invalid call. Format:\n\tthreads platform|virtual");
+            } else if (commandArgs[0].equalsIgnoreCase("transport")) {
+                // TRANSPORT: Send queries over UDP (and TCP for truncated responses), or TCP only
+                if (commandArgs.length == 2 &&
+                        (commandArgs[1].equalsIgnoreCase("udp") || commandArgs[1].equalsIgnoreCase("tcp"))) {
+                    resolver.setTcpOnly(commandArgs[1].equalsIgnoreCase("tcp"));
+                    System.out.println("Queries are now sent over: " + (resolver.isTcpOnly() ? "TCP" : "UDP"));
+                } else
+                    System.err.println("Invalid call. Format:\n\ttransport udp|tcp");
+            } else if (commandArgs[0].equalsIgnoreCase("batch")) {
+                // BATCH: Look up all names listed in a file
+                try {
+                    if (commandArgs.length == 2 || commandArgs.length == 3) {
+                        int batchConcurrency = commandArgs.length == 3 ?
+                                Integer.parseInt(commandArgs[2]) : DEFAULT_BATCH_CONCURRENCY;
+                        if (batchConcurrency > 0) {
+                            try (BufferedReader input = new BufferedReader(new FileReader(commandArgs[1]))) {
+                                runBatch(input, batchConcurrency);
+                            } catch (IOException e) {
+                                System.err.println("Error reading " + commandArgs[1] + " (" + e.getMessage() + ").");
+                            }
+                            continue;
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    // fall through to the usage message
+                }
+                System.err.println("Invalid call. Format:\n\tbatch file [concurrency]");
+            } else if (commandArgs[0].equalsIgnoreCase("listen")) {
+                // LISTEN: Answer DNS queries received on a UDP port, in the background
+                try {
+                    if (commandArgs.length == 2 && commandArgs[1].equalsIgnoreCase("off")) {
+                        stopServer();
+                        System.out.println("Server is now: OFF");
+                        continue;
+                    } else if (commandArgs.length == 2 || commandArgs.length == 3) {
+                        int port = Integer.parseInt(commandArgs[1]);
+                        int threads = commandArgs.length == 3 ?
+                                Integer.parseInt(commandArgs[2]) : Runtime.getRuntime().availableProcessors();
+                        if (port >= 0 && port <= 0xFFFF && threads > 0) {
+                            stopServer();
+                            startServer(port, threads);
+                            continue;
+                        }
+                    }
+                } catch (NumberFormatException e) {
+                    // fall through to the usage message
+                }
+                System.err.println("Invalid call. Format:\n\tlisten port [threads]|off");
+            } else if (commandArgs[0].equalsIgnoreCase("limit")) {
+                // LIMIT: Change the capacity of the cache
+                try {
+                    if (commandArgs.length == 2 || commandArgs.length == 3) {
+                        long maxRecords = Long.parseLong(commandArgs[1]);
+                        long maxBytes = commandArgs.length == 3 ? Long.parseLong(commandArgs[2]) : 0;
+                        cache.setCapacity(maxRecords, maxBytes);
+                        System.out.println("Cache limit is now: " + (maxRecords > 0 ? maxRecords : "unlimited") +
+                                " records, " + (maxBytes > 0 ? maxBytes : "unlimited") + " bytes");
+                        continue;
+                    }
+                } catch (NumberFormatException e) {
+                    // fall through to the usage message
+                }
+                System.err.println("Invalid call. Format:\n\tlimit records [bytes]");
             } else {
                 System.err.println("Invalid command. Valid commands are:");
                 System.err.println("\tlookup fqdn [type]");
                 System.err.println("\ttrace on|off");
                 System.err.println("\tserver IP");
-                System.err.println("\tdump");
+                System.err.println("\tdump [suffix]");
+                System.err.println("\tflush suffix");
+                System.err.println("\tstats");
+                System.err.println("\tsnapshot");
+                System.err.println("\tlimit records [bytes]");
+                System.err.println("\tstale seconds|off");
+                System.err.println("\tbatch file [concurrency]");
+                System.err.println("\tthreads platform|virtual");
+                System.err.println("\tlisten port [threads]|off");
+                System.err.println("\ttransport udp|tcp");
                 System.err.println("\tquit");
                 continue;
             }
 
         } while (true);
 
-        socket.close();
+        stopServer();
+        resolver.close();
         System.out.println("Goodbye!");
     }
 
@@ -160,145 +374,178 @@ public class DNSLookupService {
     private static void findAndPrintResults(String hostName, RecordType type) {
 
         DNSNode node = new DNSNode(hostName, type);
-        oGNode = node;
-        printResults(node, getResults(node, 0));
+        Set<ResourceRecord> results;
+        try {
+            results = resolver.resolve(node).join();
+        } catch (CompletionException e) {
+            if (!(e.getCause() instanceof ResolutionException))
+                throw e;
+            System.err.println(e.getCause().getMessage());
+            results = Collections.emptySet();
+        }
+        printResults(node, results);
     }
 
     /**
-     * Finds all the result for a specific node.
+     * Changes the kind of threads used to run lookups. If virtual threads are requested but not
+     * available, platform threads are kept.
      *
-     * @param node             Host and record type to be used for search.
-     * @param indirectionLevel Control to limit the number of recursive calls due to CNAME redirection.
-     *                         The initial call should be made with 0 (zero), while recursive calls for
-     *                         regarding CNAME results should increment this value by 1. Once this value
-     *                         reaches MAX_INDIRECTION_LEVEL, the function prints an error message and
-     *                         returns an empty set.
-     * @return A set of resource records corresponding to the specific query requested.
+     * @param mode Kind of threads to use.
      */
-    private static Set<ResourceRecord> getResults(DNSNode node, int indirectionLevel) {
-        /*if (oGNode == null) {
-            oGNode = node;
-        }*/
-        if (indirectionLevel > MAX_INDIRECTION_LEVEL) {
-            System.err.println("Maximum number of indirection levels reached.");
-            return Collections.emptySet();
-        }
+    private static void setThreadMode(ThreadMode mode) {
+        if (!resolver.setThreadMode(mode))
+            System.err.println("Virtual threads are not available in this Java version (Java 21 or later is needed).");
+    }
 
-        // check if cache has the results. If not, initiate query.
-        if (cache.getCachedResults(node).isEmpty()) {
-            // initiate the search with given node and IP address of default root name server
-            retrieveResultsFromServer(node, rootServer);
+    /**
+     * Loads the cache from a snapshot file, if there is one, and saves the cache to the file
+     * periodically and when the program exits. The snapshot is loaded in the background, so
+     * lookups may start at once.
+     *
+     * @param file Snapshot file.
+     */
+    private static void openSnapshot(Path file) {
+        snapshot = new CacheSnapshot(cache, file);
+        if (Files.exists(file)) {
+            long start = System.nanoTime();
+            snapshot.loadInBackground().whenComplete((count, ex) -> {
+                if (ex != null)
+                    System.err.println("Could not load the cache from " + file + " (" + ex.getMessage() + ").");
+                else
+                    System.err.printf("Loaded %d records from %s in %.3f s\n", count, file,
+                            (System.nanoTime() - start) / 1e9);
+            });
         }
+        snapshot.startPeriodicSaves(SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                snapshot.close();
+            } catch (IOException e) {
+                System.err.println("Could not save the cache to " + file + " (" + e.getMessage() + ").");
+            }
+        }));
+    }
 
-        return cache.getCachedResults(node);
+    /**
+     * Saves the cache to the snapshot file now.
+     */
+    private static void saveSnapshot() {
+        try {
+            long count = snapshot.save();
+            System.out.println("Saved " + count + " records to " + snapshot.getFile());
+        } catch (IOException e) {
+            System.err.println("Could not save the cache to " + snapshot.getFile() + " (" + e.getMessage() + ").");
+        }
     }
 
     /**
-     * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
-     * and the query is repeated with a new server if the provided one is non-authoritative.
-     * Results are stored in the cache.
+     * Starts answering the DNS queries received on a UDP port, from the cache or through the
+     * resolver.
      *
-     * @param node   Host name and record type to be used for the query.
-     * @param server Address of the server to be used for the query.
+     * @param port    UDP port to listen on (0 for any free port).
+     * @param threads Number of threads receiving queries.
+     * @return true if the server was started, or false if the port could not be used.
      */
-    private static void retrieveResultsFromServer(DNSNode node, InetAddress server) {
-        // set up global variables
-        _resCN = null;
-        _resAAAA = null;
-        _resA = null;
-        // encode the DNS query
-        byte[] dnsQuery = Query.createQuery(node, random);
-        if (dnsQuery == null) {
-            // probably should remake the query! An error occurred.
+    private static boolean startServer(int port, int threads) {
+        try {
+            server = new DNSServer(resolver, cache, new InetSocketAddress(port), threads, DNSServer.DEFAULT_MAX_PENDING);
+            System.out.println("Listening on UDP port " + server.getLocalAddress().getPort() + " (" + threads +
+                    " threads, " + server.getSocketCount() + " sockets)");
+            return true;
+        } catch (IOException e) {
+            System.err.println("Could not listen on port " + port + " (" + e.getMessage() + ").");
+            return false;
         }
+    }
 
-        System.out.print(server.getHostAddress() + "\n");
-        DatagramPacket datagramQueryPacket = new DatagramPacket(dnsQuery, dnsQuery.length, server, DEFAULT_DNS_PORT);
-
-        // send the DNS query
-        try {
-            socket.send(datagramQueryPacket);
-        } catch (java.io.IOException e) {
-            // resend packet if there was an error sending it before
-            retrieveResultsFromServer(node, server);
+    /**
+     * Stops answering DNS queries, if a server was started.
+     */
+    private static void stopServer() {
+        if (server != null) {
+            server.close();
+            server = null;
         }
+    }
 
-        // receive the response
-        byte[] byteResponse = new byte[1024];
-        DatagramPacket datagramResponsePacket = new DatagramPacket(byteResponse, byteResponse.length);
-        try {
-            socket.receive(datagramResponsePacket);
-            // parse the response
-            List<ResourceRecord> recordsList = Response.decodeResponse(datagramResponsePacket);
-
-            // save resource records to the cache
-            for (int i = 0; i < recordsList.size(); i++) {
-                ResourceRecord r = recordsList.get(i);
-                if (r.getType() == RecordType.A) {
-                    _resA = r;
-                } else if (r.getType() == RecordType.AAAA) {
-                    _resAAAA = r;
-                } else if (r.getType() == RecordType.CNAME || r.getType() == RecordType.NS) {
-                    _resCN = r;
-                }
-                cache.addResult(r);
-            }
+    /**
+     * Looks up all the names listed in a file, with a limited number of resolutions running at
+     * the same time. Each line of the file has a host name and, optionally, a record type (A by
+     * default); anything after a # is ignored. Names are read as they are needed, so the file
+     * may be arbitrarily large. The results are written to the standard output as they are
+     * found, one record per line, with tab-separated host name, type, TTL and value (or -1 and
+     * 0.0.0.0 if there is no result); the order of the lines doesn't follow the order of the
+     * names. Once all names have been looked up, the number of lookups per second and the
+     * distribution of the lookup times are printed on the standard error.
+     *
+     * @param input       Source of the names to look up.
+     * @param concurrency Maximum number of resolutions running at the same time.
+     * @throws IOException If the names can't be read.
+     */
+    private static void runBatch(BufferedReader input, int concurrency) throws IOException {
+        // results are buffered and written by whichever thread finds them
+        PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(new FileOutputStream(FileDescriptor.out)), BATCH_OUTPUT_BUFFER_SIZE));
+        // limits the number of lookups running at the same time
+        Semaphore slots = new Semaphore(concurrency);
+        LatencyHistogram latencies = new LatencyHistogram();
+        LongAdder unresolved = new LongAdder();
+        System.out.flush();
+        long start = System.nanoTime();
 
-            // save a resource record that may not match the original host name queried. (eg. if a CNAME search is required)
-            for (int i = 0; i < recordsList.size(); i++) {
-                ResourceRecord rr = recordsList.get(i);
-                if (Response._AA && !rr.getHostName().equals(oGNode.getHostName())) {
-                    if (cache.getCachedResults(oGNode).isEmpty() &&
-                            (rr.getType() == RecordType.A || rr.getType() == RecordType.AAAA)) {
-                        cache.addResult(new ResourceRecord(oGNode.getHostName(), rr.getType() , rr.getTTL(), rr.getInetResult()));
-                    }
-                }
-            }
-            // do recursion with the new ip address
-            InetAddress newIP;
-            if (_resA != null) {
-                // return if last response was authoritative and type A
-                if (Response._AA) {
-                    _resA = null;
-                    return;
-                }
-                newIP = _resA.getInetResult();
-                _resA = null;
-                retrieveResultsFromServer(node, newIP);
-            } else if (_resAAAA != null) {
-                // return if last response was authoritative and type AA
-                if (Response._AA) {
-                    _resA = null;
-                    return;
+        try {
+            String line;
+            while ((line = input.readLine()) != null) {
+                String[] fields = line.split("#", 2)[0].trim().split("\\s+");
+                if (fields[0].isEmpty())
+                    continue;
+                RecordType type;
+                try {
+                    type = fields.length > 1 ? RecordType.valueOf(fields[1].toUpperCase()) : RecordType.A;
+                } catch (IllegalArgumentException e) {
+                    System.err.println("Invalid query type: " + line);
+                    continue;
                 }
-                // otherwise query with the type AAAA IP address in the response
-                newIP = _resAAAA.getInetResult();
-                _resAAAA = null;
-                retrieveResultsFromServer(node, newIP);
-            } else if (_resCN != null) {
-                // do another query if the response was CNAME or NS
-                DNSNode dnsNode = new DNSNode(_resCN.getTextResult(), RecordType.A);
-                _resCN = null;
-                _cNameTimes++;
-                getResults(dnsNode, _cNameTimes);
+                DNSNode node = new DNSNode(fields[0], type);
+
+                slots.acquireUninterruptibly();
+                long lookupStart = System.nanoTime();
+                resolver.resolve(node).whenComplete((results, ex) -> {
+                    latencies.record((System.nanoTime() - lookupStart) / 1000);
+                    if (ex != null && ex.getCause() instanceof ResolutionException)
+                        System.err.println(node.getHostName() + ": " + ex.getCause().getMessage());
+                    if (results == null || results.isEmpty())
+                        unresolved.increment();
+                    out.write(formatResults(node, results == null ? Collections.emptySet() : results));
+                    slots.release();
+                });
             }
-        } catch (java.net.SocketTimeoutException s) {
-            // resend query once if there was a timeout problem receiving the response
-            if (!_resent) {
-                retrieveResultsFromServer(node, server);
-                _resent = true;
-            }
-        } catch (java.io.IOException e) {
-            // do nothing if there was another error
+        } finally {
+            // wait for the lookups still running
+            slots.acquireUninterruptibly(concurrency);
+            out.flush();
         }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long count = latencies.getCount();
+        System.err.printf("%d lookups (%d without results) in %.3f s: %.1f lookups/s\n",
+                count, unresolved.sum(), seconds, count / Math.max(seconds, 1e-9));
+        System.err.printf("Latency (ms): p50 %.3f  p90 %.3f  p99 %.3f  max %.3f\n",
+                latencies.getPercentile(50) / 1000.0, latencies.getPercentile(90) / 1000.0,
+                latencies.getPercentile(99) / 1000.0, latencies.getMax() / 1000.0);
     }
 
-    public static void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
-        if (verboseTracing)
-            System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(),
-                    record.getTTL(),
-                    record.getType() == RecordType.OTHER ? rtype : record.getType(),
-                    record.getTextResult());
+    /**
+     * Formats the results of a lookup in batch mode.
+     */
+    private static String formatResults(DNSNode node, Set<ResourceRecord> results) {
+        StringBuilder text = new StringBuilder(64 * Math.max(1, results.size()));
+        if (results.isEmpty())
+            text.append(node.getHostName()).append('\t').append(node.getType()).append("\t-1\t0.0.0.0\n");
+        for (ResourceRecord record : results)
+            text.append(node.getHostName()).append('\t').append(node.getType()).append('\t')
+                    .append(record.getTTL()).append('\t').append(record.getTextResult()).append('\n');
+        return text.toString();
     }
 
     /**
@@ -317,6 +564,29 @@ public class DNSLookupService {
         }
     }
 
+    /**
+     * Prints the size and activity counters of the cache.
+     *
+     * @param statistics Snapshot of the cache statistics.
+     */
+    private static void printStatistics(CacheStatistics statistics) {
+        System.out.printf("%-20s %d\n", "Hits", statistics.getHits());
+        System.out.printf("%-20s %d\n", "Misses", statistics.getMisses());
+        System.out.printf("%-20s %d\n", "Nodes", statistics.getNodes());
+        System.out.printf("%-20s %d\n", "Records", statistics.getRecords());
+        System.out.printf("%-20s %d\n", "Estimated bytes", statistics.getEstimatedBytes());
+        System.out.printf("%-20s %d\n", "Evictions", statistics.getEvictions());
+        System.out.printf("%-20s %d\n", "Evicted records", statistics.getEvictedRecords());
+        System.out.printf("%-20s %d\n", "Rejected on entry", statistics.getRejections());
+        System.out.printf("%-20s %d\n", "Stale hits", statistics.getStaleHits());
+        System.out.printf("%-20s %d\n", "Refreshes", statistics.getRefreshes());
+        DNSServer currentServer = server;
+        if (currentServer != null) {
+            System.out.printf("%-20s %d\n", "Queries received", currentServer.getQueryCount());
+            System.out.printf("%-20s %d\n", "Queries dropped", currentServer.getDroppedCount());
+        }
+    }
+
     /**
      * returns verboseTracing
      *
@@ -1,21 +1,44 @@
 package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
 
 /** DNS nodes can be used to specify an individual DNS query or the key to a specific result.
  * Each node represents a fully-qualified domain name (represented by hostName) and a record
- * type. Two nodes with the same host name and type are considered equal.
+ * type. Two nodes with the same host name and type are considered equal. Host names are
+ * normalized (lower case, without a trailing dot) when the node is created, so names that only
+ * differ in case map to the same node and nodes can be compared and hashed without case
+ * conversions.
  */
 public class DNSNode implements Comparable<DNSNode>, Serializable {
 
     private String hostName;
     private RecordType type;
+    private transient byte[] wireName;
 
     public DNSNode(String hostName, RecordType type) {
-        this.hostName = hostName;
+        this.hostName = normalize(hostName);
         this.type = type;
     }
 
+    /** Returns the normalized form of a host name: in lower case, without a trailing dot.
+     *
+     * @param hostName Host name to be normalized.
+     * @return The normalized host name (the same instance, if already normalized).
+     */
+    public static String normalize(String hostName) {
+        int length = hostName.length();
+        if (length > 0 && hostName.charAt(length - 1) == '.')
+            hostName = hostName.substring(0, --length);
+        for (int i = 0; i < length; i++) {
+            char c = hostName.charAt(i);
+            if (c >= 'A' && c <= 'Z')
+                return hostName.toLowerCase(Locale.ROOT);
+        }
+        return hostName;
+    }
+
     public String getHostName() {
         return hostName;
     }
@@ -24,6 +47,42 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
         return type;
     }
 
+    /** Returns the host name in DNS wire format: a sequence of labels, each preceded by its
+     * length, ending with a zero-length label. The encoding is computed on first use and then
+     * kept with the node, so repeated queries for the same node don't encode it again. The
+     * returned array must not be modified.
+     *
+     * @return The encoded host name.
+     * @throws IllegalArgumentException If the host name has an empty label or a label longer
+     *                                  than 63 octets, or is longer than 255 octets.
+     */
+    byte[] getWireName() {
+        byte[] encoded = wireName;
+        if (encoded == null) {
+            byte[] text = hostName.getBytes(StandardCharsets.UTF_8);
+            int length = text.length;
+            // a trailing dot (the root label) is implicit
+            if (length > 0 && text[length - 1] == '.')
+                length--;
+            encoded = new byte[length == 0 ? 1 : length + 2];
+            int labelStart = 0;
+            for (int i = 0; i <= length && length > 0; i++) {
+                if (i == length || text[i] == '.') {
+                    int labelLength = i - labelStart;
+                    if (labelLength == 0 || labelLength > 63)
+                        throw new IllegalArgumentException("Invalid label in host name: " + hostName);
+                    encoded[labelStart] = (byte) labelLength;
+                    System.arraycopy(text, labelStart, encoded, labelStart + 1, labelLength);
+                    labelStart = i + 1;
+                }
+            }
+            if (encoded.length > 255)
+                throw new IllegalArgumentException("Host name too long: " + hostName);
+            wireName = encoded;
+        }
+        return encoded;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -49,9 +108,7 @@ public class DNSNode implements Comparable<DNSNode>, Serializable {
 
     @Override
     public int compareTo(DNSNode o) {
-        if (!hostName.equalsIgnoreCase(o.hostName))
-            return hostName.compareToIgnoreCase(o.hostName);
-        else
-            return type.compareTo(o.type);
+        int result = hostName.compareTo(o.hostName);
+        return result != 0 ? result : type.compareTo(o.type);
     }
 }
@@ -0,0 +1,260 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/** UDP frontend that turns a resolver into a caching recursive name server: it accepts standard
+ * DNS queries, answers them from the cache or through the resolver, and sends the responses
+ * back with compressed names.
+ *
+ * Queries are received by several threads (by default, one per core). Where the operating
+ * system supports SO_REUSEPORT, each thread has its own socket bound to the same port, and the
+ * kernel spreads the queries over the sockets; otherwise the threads share a single socket.
+ * A query answered from the cache is answered by the thread that received it. Other queries are
+ * handed to the resolver, and answered by the thread that completes the lookup, so a slow
+ * lookup never holds up the receive path. The number of lookups in progress is bounded; queries
+ * received while the bound is reached are dropped, and the clients will retry.
+ */
+public class DNSServer implements Closeable {
+
+    /** Largest response sent over UDP to a client that doesn't advertise a larger size. */
+    public static final int MAX_UDP_PAYLOAD = 512;
+    /** Largest response sent over UDP to a client that advertises a larger size in an OPT
+     * record (EDNS0); larger responses could be fragmented.
+     */
+    public static final int MAX_EDNS_PAYLOAD = 1232;
+    public static final int DEFAULT_MAX_PENDING = 10000;
+    private static final int MAX_MESSAGE_SIZE = 65535;
+    private static final int HEADER_SIZE = 12;
+    // longest chain of CNAME records put in an answer
+    private static final int MAX_ALIAS_CHAIN = 8;
+
+    private final Resolver resolver;
+    private final DNSCache cache;
+    private final List<DatagramChannel> channels = new ArrayList<>();
+    private final List<Thread> receivers = new ArrayList<>();
+    private final InetSocketAddress localAddress;
+    private final Semaphore pendingLookups;
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final Pool<ByteBuffer> sendBuffers = new Pool<>(() -> ByteBuffer.allocateDirect(MAX_EDNS_PAYLOAD));
+    private final Pool<ResponseEncoder> encoders = new Pool<>(ResponseEncoder::new);
+    private volatile boolean closed = false;
+
+    /** Opens the sockets of the server and starts receiving queries.
+     *
+     * @param resolver   Resolver used to answer queries.
+     * @param cache      Cache used by the resolver, where the CNAME records that make up
+     *                   complete answers are found.
+     * @param address    Address and port to listen on (port 0 picks a free port).
+     * @param threads    Number of threads receiving queries.
+     * @param maxPending Maximum number of lookups in progress.
+     * @throws IOException If the sockets could not be opened or bound.
+     */
+    public DNSServer(Resolver resolver, DNSCache cache, InetSocketAddress address, int threads, int maxPending)
+            throws IOException {
+        if (threads <= 0 || maxPending <= 0)
+            throw new IllegalArgumentException("Invalid number of threads or pending lookups");
+        this.resolver = resolver;
+        this.cache = cache;
+        this.pendingLookups = new Semaphore(maxPending);
+
+        try {
+            DatagramChannel first = DatagramChannel.open();
+            channels.add(first);
+            boolean reusePort = first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (reusePort)
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            first.bind(address);
+            // the other sockets are bound to the port actually picked for the first one
+            localAddress = (InetSocketAddress) first.getLocalAddress();
+            for (int i = 1; reusePort && i < threads; i++) {
+                DatagramChannel channel = DatagramChannel.open();
+                channels.add(channel);
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                channel.bind(localAddress);
+            }
+        } catch (IOException | RuntimeException e) {
+            for (DatagramChannel channel : channels)
+                channel.close();
+            throw e;
+        }
+
+        for (int i = 0; i < threads; i++) {
+            DatagramChannel channel = channels.get(i % channels.size());
+            Thread receiver = new Thread(() -> receive(channel), "dns-server-" + receivers.size());
+            receiver.setDaemon(true);
+            receivers.add(receiver);
+        }
+        for (Thread receiver : receivers)
+            receiver.start();
+    }
+
+    /** Returns the address and port the server listens on. */
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    /** Returns the number of sockets receiving queries (one per thread if SO_REUSEPORT is
+     * supported, otherwise one).
+     */
+    public int getSocketCount() {
+        return channels.size();
+    }
+
+    /** Returns the number of messages received since the server started. */
+    public long getQueryCount() {
+        return queries.sum();
+    }
+
+    /** Returns the number of queries dropped because too many lookups were in progress. */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    private void receive(DatagramChannel channel) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE);
+        while (!closed) {
+            SocketAddress client;
+            try {
+                buffer.clear();
+                client = channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (!closed)
+                    System.err.println("Server error (" + e.getMessage() + ").");
+                continue;
+            }
+            buffer.flip();
+            queries.increment();
+            handleQuery(channel, client, buffer);
+        }
+    }
+
+    private void handleQuery(DatagramChannel channel, SocketAddress client, ByteBuffer message) {
+        Response query;
+        try {
+            // the query is decoded in place, before the buffer is reused
+            query = Response.decodeResponse(message);
+        } catch (IOException | RuntimeException e) {
+            // only queries get an error, so that two servers never keep answering each other
+            if (message.remaining() >= HEADER_SIZE && (message.get(message.position() + 2) & 0x80) == 0) {
+                short queryID = message.getShort(message.position());
+                send(channel, client, MAX_UDP_PAYLOAD, (encoder, buffer) ->
+                        encoder.encodeError(buffer, queryID, ResponseEncoder.RCODE_FORMAT_ERROR));
+            }
+            return;
+        }
+        if (!query.isQuery())
+            return;
+
+        DNSNode node = query.getQuestion();
+        if (node == null)
+            reply(channel, client, query, ResponseEncoder.RCODE_FORMAT_ERROR, Collections.emptyList());
+        else if (query.getOpcode() != 0 || node.getType() == RecordType.OTHER)
+            reply(channel, client, query, ResponseEncoder.RCODE_NOT_IMPLEMENTED, Collections.emptyList());
+        else if (!pendingLookups.tryAcquire())
+            dropped.increment();
+        else {
+            // cached results complete the lookup at once, on this thread
+            resolver.lookup(node).whenComplete((result, ex) -> {
+                try {
+                    if (result == null)
+                        reply(channel, client, query, ResponseEncoder.RCODE_SERVER_FAILURE, Collections.emptyList());
+                    else
+                        answer(channel, client, query, result);
+                } finally {
+                    pendingLookups.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Sends the answer to a query, once its lookup is done. If the results belong to the
+     * canonical name of an alias, the CNAME records leading to it come first. The response code
+     * is the one that ended the lookup, so a lookup without results is answered with a name
+     * error, no data (no error and no records of the type requested) or a server failure.
+     */
+    private void answer(DatagramChannel channel, SocketAddress client, Response query, ResolutionResult result) {
+        Set<ResourceRecord> results = result.getRecords();
+        DNSNode node = query.getQuestion();
+        List<ResourceRecord> answers = new ArrayList<>(results.size() + 1);
+        String name = node.getHostName();
+        boolean aliased = results.isEmpty();
+        for (ResourceRecord record : results)
+            aliased |= !record.getHostName().equals(name);
+
+        if (aliased && node.getType() != RecordType.CNAME) {
+            for (int i = 0; i < MAX_ALIAS_CHAIN; i++) {
+                DNSNode cnameNode = new DNSNode(name, RecordType.CNAME);
+                Set<ResourceRecord> cnames = cache.getCachedResults(cnameNode);
+                if (cnames.isEmpty())
+                    cnames = cache.getStaleResults(cnameNode);
+                if (cnames.isEmpty())
+                    break;
+                ResourceRecord cname = cnames.iterator().next();
+                answers.add(cname);
+                name = DNSNode.normalize(cname.getTextResult());
+            }
+        }
+        answers.addAll(results);
+        reply(channel, client, query, result.getRCODE(), answers);
+    }
+
+    private void reply(DatagramChannel channel, SocketAddress client, Response query, int rcode,
+                       Collection<ResourceRecord> answers) {
+        int size = Math.min(query.getUDPPayloadSize(), MAX_EDNS_PAYLOAD);
+        send(channel, client, size, (encoder, buffer) -> encoder.encodeResponse(buffer, query, rcode, answers));
+    }
+
+    private void send(DatagramChannel channel, SocketAddress client, int size,
+                      BiConsumer<ResponseEncoder, ByteBuffer> encoding) {
+        // responses are encoded with reusable encoders and buffers, shared by all threads, since
+        // lookups may complete on short-lived threads
+        ResponseEncoder encoder = encoders.acquire();
+        ByteBuffer buffer = sendBuffers.acquire();
+        try {
+            buffer.clear().limit(size);
+            encoding.accept(encoder, buffer);
+            buffer.flip();
+            channel.send(buffer, client);
+        } catch (IOException e) {
+            // the client will retry, or has given up
+        } finally {
+            sendBuffers.release(buffer);
+            encoders.release(encoder);
+        }
+    }
+
+    /** Stops receiving queries and closes the sockets of the server. Lookups in progress are
+     * not answered.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (DatagramChannel channel : channels)
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to do with the channel
+            }
+        for (Thread receiver : receivers)
+            try {
+                receiver.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+    }
+}
@@ -0,0 +1,43 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+
+/** A delegation links a zone (e.g., "example.com") to the name servers that are authoritative
+ * for it, along with the addresses of those name servers. A cached delegation allows a search
+ * to start at the name servers of the closest known zone instead of at the root.
+ */
+public class Delegation {
+
+    private final String zone;
+    private final List<String> nameServers;
+    private final List<InetAddress> addresses;
+
+    public Delegation(String zone, List<String> nameServers, List<InetAddress> addresses) {
+        this.zone = zone;
+        this.nameServers = Collections.unmodifiableList(nameServers);
+        this.addresses = Collections.unmodifiableList(addresses);
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    public List<String> getNameServers() {
+        return nameServers;
+    }
+
+    /** Returns the addresses of the name servers of the zone, as found in the cache.
+     *
+     * @return A non-empty list of addresses.
+     */
+    public List<InetAddress> getAddresses() {
+        return addresses;
+    }
+
+    @Override
+    public String toString() {
+        return (zone.isEmpty() ? "." : zone) + " " + nameServers;
+    }
+}
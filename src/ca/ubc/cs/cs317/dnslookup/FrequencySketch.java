@@ -0,0 +1,77 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** A count-min sketch of 4-bit counters, used to estimate how often a key has been used
+ * recently. All counters are halved periodically, so the estimate favours recent use. This
+ * class is not thread-safe.
+ */
+class FrequencySketch {
+
+    private static final int MAX_COUNT = 15;
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int[] SEEDS = {0x97CB3127, 0xB5262911, 0x8A3B7F1D, 0xE7A4C02B};
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions = 0;
+
+    /** Creates a sketch suited to tracking the frequency of a number of distinct keys.
+     *
+     * @param capacity Expected number of distinct keys.
+     */
+    FrequencySketch(long capacity) {
+        int size = Integer.highestOneBit((int) Math.max(16, Math.min(capacity, 1 << 26)) - 1) << 1;
+        table = new long[size];
+        tableMask = size - 1;
+        sampleSize = 10 * size;
+    }
+
+    /** Returns the estimated number of times a key has been used (at most 15).
+     *
+     * @param hash Hash code of the key.
+     * @return The estimated frequency.
+     */
+    int frequency(int hash) {
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index >>> 4] >>> ((index & 15) << 2)) & 0xF);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /** Records one use of a key.
+     *
+     * @param hash Hash code of the key.
+     */
+    void increment(int hash) {
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            int index = indexOf(hash, i);
+            int shift = (index & 15) << 2;
+            long word = table[index >>> 4];
+            if (((word >>> shift) & 0xF) < MAX_COUNT) {
+                table[index >>> 4] = word + (1L << shift);
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize)
+            reset();
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++)
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        additions /= 2;
+    }
+
+    /** Returns the index of the 4-bit counter for a key in one of the rows of the sketch. Each
+     * word of the table holds 16 counters.
+     */
+    private int indexOf(int hash, int row) {
+        int h = (hash ^ (hash >>> 16)) * SEEDS[row];
+        h ^= h >>> 15;
+        return h & ((tableMask << 4) | 15);
+    }
+}
@@ -0,0 +1,793 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A resolver that finds records by sending iterative queries, starting at the root name servers
+ * (or at the name servers of the closest zone found in the cache), and following referrals and
+ * CNAME records. Results are kept in a DNS cache, which may be shared by several resolvers.
+ *
+ * Each lookup runs in a thread of the resolver, so a lookup may wait for responses in a
+ * sequential style without blocking the caller; the kind of threads used is set by a
+ * ThreadMode. A resolver is created with a builder:
+ *
+ * <pre>
+ * Resolver resolver = IterativeResolver.builder()
+ *         .rootServer(InetAddress.getByName("198.41.0.4"))
+ *         .resolutionTimeout(5, TimeUnit.SECONDS)
+ *         .build();
+ * Set&lt;ResourceRecord&gt; results = resolver.resolve("www.cs.ubc.ca", RecordType.A).join();
+ * </pre>
+ *
+ * The resolver also registers itself with its cache to refresh popular records ahead of their
+ * expiration, and records whose stale copies are served.
+ */
+public class IterativeResolver implements Resolver {
+
+    public static final int DEFAULT_DNS_PORT = 53;
+    public static final long DEFAULT_RESOLUTION_TIMEOUT_MILLIS = 10000;
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    /** Default size of the UDP responses accepted (as recommended by DNS Flag Day 2020). */
+    public static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
+    private static final int MAX_INDIRECTION_LEVEL = 10;
+    private static final int MAX_RESOLUTION_DEPTH = 4;
+    private static final int MAX_PARALLEL_NS_LOOKUPS = 3;
+
+    private final DNSCache cache;
+    private final QueryEngine engine;
+    private final TcpTransport tcp;
+    private final NameServerStats serverStats = new NameServerStats();
+    private final int port;
+    private final long resolutionTimeoutMillis;
+    private final int maxRetries;
+    private volatile List<InetAddress> rootServers;
+    private volatile boolean verboseTracing = false;
+    private volatile boolean tcpOnly;
+
+    // nodes being resolved, completed with the response code of the final response (or -1 if
+    // there was none) once the results of the resolution are in the cache
+    private final ConcurrentMap<DNSNode, CompletableFuture<Integer>> pendingResolutions =
+            new ConcurrentHashMap<>();
+
+    private volatile ThreadMode threadMode;
+    private volatile ExecutorService executor;
+
+    private IterativeResolver(Builder builder) throws IOException {
+        this.cache = builder.cache;
+        this.port = builder.port;
+        this.resolutionTimeoutMillis = builder.resolutionTimeoutMillis;
+        this.maxRetries = builder.maxRetries;
+        this.rootServers = Collections.unmodifiableList(new ArrayList<>(builder.rootServers));
+        this.threadMode = builder.threadMode;
+        this.executor = threadMode.newExecutor("dns-resolver");
+        this.engine = new QueryEngine(builder.ednsPayloadSize);
+        this.tcp = new TcpTransport(builder.ednsPayloadSize);
+        this.tcpOnly = builder.tcpOnly;
+        cache.setRefresher(this::refresh);
+    }
+
+    /** Returns a builder to configure and create a resolver.
+     *
+     * @return A new builder.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /** Looks up the records for a query. Valid records found in the cache are returned at once;
+     * otherwise the lookup runs in a thread of the resolver.
+     *
+     * @param node Host name and record type to look up.
+     * @return A future completed with the (potentially empty) set of records for the query, or
+     *         completed exceptionally with a ResolutionException if the lookup follows too many
+     *         CNAME records.
+     */
+    @Override
+    public CompletableFuture<Set<ResourceRecord>> resolve(DNSNode node) {
+        return lookup(node).thenApply(ResolutionResult::getRecords);
+    }
+
+    /** Looks up the records for a query, along with the response code that ended the lookup.
+     * Valid records found in the cache are returned at once; otherwise the lookup runs in a
+     * thread of the resolver.
+     *
+     * @param node Host name and record type to look up.
+     * @return A future completed with the outcome of the lookup, or completed exceptionally
+     *         with a ResolutionException if the lookup follows too many CNAME records.
+     */
+    @Override
+    public CompletableFuture<ResolutionResult> lookup(DNSNode node) {
+        Set<ResourceRecord> cached = cache.getCachedResults(node);
+        if (!cached.isEmpty())
+            return CompletableFuture.completedFuture(new ResolutionResult(cached, ResponseEncoder.RCODE_NO_ERROR));
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                ResolutionContext context = new ResolutionContext(node, resolutionTimeoutMillis);
+                Set<ResourceRecord> results = getResults(context, node);
+                return new ResolutionResult(results, context.getRCODE());
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<ResolutionResult> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    /** Returns the servers that a search starts at when no closer zone is found in the cache.
+     *
+     * @return The addresses of the root name servers.
+     */
+    public List<InetAddress> getRootServers() {
+        return rootServers;
+    }
+
+    /** Changes the servers that a search starts at when no closer zone is found in the cache.
+     *
+     * @param rootServers Addresses of the root name servers; must not be empty.
+     */
+    public void setRootServers(List<InetAddress> rootServers) {
+        if (rootServers.isEmpty())
+            throw new IllegalArgumentException("At least one root server is needed");
+        this.rootServers = Collections.unmodifiableList(new ArrayList<>(rootServers));
+    }
+
+    /** Returns the kind of threads used to run lookups and sub-resolutions. */
+    public ThreadMode getThreadMode() {
+        return threadMode;
+    }
+
+    /** Changes the kind of threads used to run lookups and sub-resolutions. Lookups already
+     * running are not affected.
+     *
+     * @param mode Kind of threads to use.
+     * @return true if the mode was changed, or false if the mode is not available (virtual
+     *         threads with a Java version that has none).
+     */
+    public synchronized boolean setThreadMode(ThreadMode mode) {
+        if (mode == ThreadMode.VIRTUAL && !ThreadMode.isVirtualAvailable())
+            return false;
+        if (mode != threadMode) {
+            ExecutorService previous = executor;
+            executor = mode.newExecutor("dns-resolver");
+            threadMode = mode;
+            previous.shutdown();
+        }
+        return true;
+    }
+
+    /** Turns on or off the printing of every query sent and response received (on the standard
+     * output).
+     *
+     * @param verboseTracing true to print queries and responses.
+     */
+    public void setVerboseTracing(boolean verboseTracing) {
+        this.verboseTracing = verboseTracing;
+    }
+
+    /** Returns true if queries are sent over TCP only, or false if they are sent over UDP
+     * (and over TCP only when a response is truncated).
+     */
+    public boolean isTcpOnly() {
+        return tcpOnly;
+    }
+
+    /** Chooses whether queries are sent over TCP only, on connections kept open to each server,
+     * or over UDP. Queries already sent are not affected.
+     *
+     * @param tcpOnly true to send queries over TCP only.
+     */
+    public void setTcpOnly(boolean tcpOnly) {
+        this.tcpOnly = tcpOnly;
+    }
+
+    /** Stops the resolver: the cache stops refreshing records through this resolver, and the
+     * socket and connections used for queries are closed.
+     */
+    @Override
+    public void close() {
+        cache.setRefresher(null);
+        executor.shutdownNow();
+        for (Transport transport : Arrays.asList(engine, tcp))
+            try {
+                transport.close();
+            } catch (IOException e) {
+                // nothing left to do with the transport
+            }
+    }
+
+    /**
+     * Finds all the result for a specific node, and sets the response code of the context to
+     * the one that ended the search.
+     *
+     * @param context Resolution the search is part of. The indirection level of the context is
+     *                used to limit the number of recursive calls due to CNAME redirection or name
+     *                server lookups.
+     * @param node    Host and record type to be used for search.
+     * @return A set of resource records corresponding to the specific query requested.
+     * @throws ResolutionException If the indirection level exceeds MAX_INDIRECTION_LEVEL.
+     */
+    private Set<ResourceRecord> getResults(ResolutionContext context, DNSNode node) {
+        if (context.getIndirectionLevel() > MAX_INDIRECTION_LEVEL)
+            throw new ResolutionException("Maximum number of indirection levels reached.");
+
+        DNSNode cnameNode = new DNSNode(node.getHostName(), RecordType.CNAME);
+        boolean followCNAME = node.getType() != RecordType.CNAME;
+
+        // check if cache has the results (or a CNAME for the host name, or knows there are no
+        // results). If not, initiate query.
+        int rcode = -1;
+        if (getCachedOrStaleResults(node).isEmpty() &&
+                (!followCNAME || getCachedOrStaleResults(cnameNode).isEmpty()) &&
+                cache.getNegativeResult(node) == null)
+            rcode = resolveOnce(context, node);
+
+        Set<ResourceRecord> results = getCachedOrStaleResults(node);
+        Set<ResourceRecord> cnames = followCNAME && results.isEmpty() ?
+                getCachedOrStaleResults(cnameNode) : Collections.emptySet();
+        if (cnames.isEmpty()) {
+            context.setRCODE(getRCODE(node, results, rcode));
+            return results;
+        }
+
+        // the host name is an alias, so the results are those of its canonical name, and the
+        // response code is that of the last name in the chain
+        Set<ResourceRecord> aliasResults = new HashSet<>();
+        for (ResourceRecord cname : cnames) {
+            context.enterIndirection();
+            try {
+                aliasResults.addAll(getResults(context, new DNSNode(cname.getTextResult(), node.getType())));
+            } finally {
+                context.leaveIndirection();
+            }
+        }
+        if (!aliasResults.isEmpty())
+            context.setRCODE(ResponseEncoder.RCODE_NO_ERROR);
+        return aliasResults;
+    }
+
+    /**
+     * Returns the response code that ends the search for a node: no error if there are
+     * results; otherwise the code given by a cached negative result, or by the final response
+     * obtained (e.g., a negative response without an SOA record, which is not cached), or a
+     * server failure if there was none.
+     *
+     * @param node    Host and record type searched.
+     * @param results Results found for the node.
+     * @param rcode   Response code of the final response obtained, or -1 if none was.
+     */
+    private int getRCODE(DNSNode node, Set<ResourceRecord> results, int rcode) {
+        if (!results.isEmpty())
+            return ResponseEncoder.RCODE_NO_ERROR;
+        NegativeResult negative = cache.getNegativeResult(node);
+        if (negative != null)
+            return negative.isNonExistentName() ? ResponseEncoder.RCODE_NAME_ERROR : ResponseEncoder.RCODE_NO_ERROR;
+        return rcode >= 0 ? rcode : ResponseEncoder.RCODE_SERVER_FAILURE;
+    }
+
+    /**
+     * Returns the valid records cached for a node or, if there are none, no negative result is
+     * cached for the node and stale records are served, its stale records. Returning stale
+     * records starts a refresh of the node in the background, so the lookup is answered
+     * immediately even if the name servers are slow or unreachable.
+     *
+     * @param node Host and record type to be used for search.
+     * @return A potentially empty set of records.
+     */
+    private Set<ResourceRecord> getCachedOrStaleResults(DNSNode node) {
+        Set<ResourceRecord> results = cache.getCachedResults(node);
+        if (results.isEmpty() && cache.getNegativeResult(node) == null)
+            return cache.getStaleResults(node);
+        return results;
+    }
+
+    /**
+     * Queries name servers for a node that is not in the cache, and stores the results in the
+     * cache. If another resolution is already querying for the same node, no queries are sent:
+     * this resolution waits for the other one to finish (within its own time budget) and then
+     * uses the results it cached. This way, many concurrent lookups of a popular name that just
+     * expired result in a single iterative resolution.
+     *
+     * @param context Resolution the search is part of.
+     * @param node    Host and record type to be used for search.
+     * @return The response code of the final response obtained, or -1 if there was none.
+     */
+    private int resolveOnce(ResolutionContext context, DNSNode node) {
+        CompletableFuture<Integer> pending = new CompletableFuture<>();
+        CompletableFuture<Integer> existing = pendingResolutions.putIfAbsent(node, pending);
+        if (existing != null) {
+            try {
+                return existing.get(context.getRemainingMicros(), TimeUnit.MICROSECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                // use whatever is in the cache by now
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return -1;
+        }
+
+        int rcode = -1;
+        try {
+            // initiate the search at the closest zone whose name servers are cached, falling back
+            // to the root name servers if there is none, or if its name servers don't respond.
+            // Only records within the zone of the servers that sent them are cached, so cached
+            // delegations all come from referrals by the servers of a parent zone.
+            Delegation delegation = cache.getClosestDelegation(node.getHostName());
+            if (delegation != null)
+                rcode = retrieveResultsFromServer(context, node, delegation.getZone(), delegation.getNameServers(),
+                        delegation.getAddresses());
+            if (rcode < 0)
+                rcode = retrieveResultsFromServer(context, node, "", Collections.emptyList(), rootServers);
+            return rcode;
+        } finally {
+            pendingResolutions.remove(node, pending);
+            pending.complete(rcode);
+        }
+    }
+
+    /**
+     * Resolves a node again in the background, ignoring the records already in the cache, so
+     * that the records of a popular node are replaced before they expire.
+     *
+     * @param node Host and record type to be refreshed.
+     * @return A future completed once the new records (if any) are in the cache.
+     */
+    private CompletableFuture<Void> refresh(DNSNode node) {
+        return CompletableFuture.runAsync(
+                () -> resolveOnce(new ResolutionContext(node, resolutionTimeoutMillis), node), executor);
+    }
+
+    /**
+     * Retrieves DNS results from a specified DNS server. Queries are sent in iterative mode,
+     * and the query is repeated with a new server if the provided one is non-authoritative.
+     * Results are stored in the cache.
+     *
+     * Only the records at or below the zone being queried are cached (a bailiwick check), so a
+     * server can't plant records, e.g., name servers or their addresses, for zones it is not
+     * authoritative for. A referral is only followed to a zone below the zone being queried.
+     *
+     * @param context Resolution the query is part of.
+     * @param node    Host name and record type to be used for the query.
+     * @param zone    Zone the servers are authoritative for (an empty string for the root).
+     * @param nsNames Names of the name servers of the zone, whose addresses may be cached while
+     *                the query is retried (empty for the root, whose servers are configured).
+     * @param servers Addresses of the servers to be used for the query, in order of preference.
+     * @return The response code of the final response (an answer, or an authoritative negative
+     *         response) obtained, or -1 if the search stopped because no server could be used.
+     */
+    private int retrieveResultsFromServer(ResolutionContext context, DNSNode node, String zone,
+                                          List<String> nsNames, List<InetAddress> servers) {
+        context.setServers(servers);
+
+        while (true) {
+            Response response = queryServers(context, node, nsNames);
+            if (response == null)
+                return -1;
+
+            // save resource records to the cache
+            for (ResourceRecord r : response.getRecords())
+                if (isInZone(r.getHostName(), zone))
+                    cache.addResult(r);
+
+            // remember that there is no answer, for as long as the zone's SOA allows
+            if (response.isNegative() && response.getNegativeTTL() > 0 && node.equals(response.getQuestion()))
+                cache.addNegativeResult(new NegativeResult(node, response.isNameError(), response.getNegativeTTL()));
+
+            // an answer (including a CNAME) or an authoritative response ends the search
+            if (!response.isReferral())
+                return response.getRCODE();
+
+            // otherwise the response is a referral; continue with the referred name servers,
+            // if they are those of a zone below this one that contains the host name
+            String referralZone = getReferralZone(response);
+            if (referralZone.equals(zone) || !isInZone(referralZone, zone) ||
+                    !isInZone(node.getHostName(), referralZone))
+                return -1;
+            nsNames = getReferralNames(response, referralZone);
+            List<InetAddress> nextServers = getReferralServers(context, response, zone, nsNames);
+            if (nextServers.isEmpty())
+                return -1;
+            zone = referralZone;
+            context.setServers(nextServers);
+        }
+    }
+
+    /**
+     * Returns true if a (normalized) host name is a zone or a name below it.
+     */
+    private static boolean isInZone(String hostName, String zone) {
+        if (zone.isEmpty() || hostName.equals(zone))
+            return true;
+        return hostName.length() > zone.length() && hostName.endsWith(zone) &&
+                hostName.charAt(hostName.length() - zone.length() - 1) == '.';
+    }
+
+    /**
+     * Sends the query to the servers currently in the context until one of them responds.
+     * Servers are tried in order of their smoothed round-trip time. If the preferred server
+     * hasn't responded within a short delay (based on its usual round-trip time), the query is
+     * also sent to the next server, and so on; the first usable response is returned. Each
+     * query is considered lost after the server's retransmission timeout, which grows with
+     * each timeout. If no server responds, the whole procedure is repeated up to maxRetries
+     * times, as long as the time budget of the resolution allows; name servers of the zone
+     * whose addresses were found in the meantime (e.g., by sub-resolutions still running when
+     * the query started) are added to the servers to try. Queries are sent over UDP, unless
+     * the resolver uses TCP only; a truncated UDP response is replaced by the complete
+     * response, obtained from the same server over TCP.
+     *
+     * @param context Resolution the query is part of.
+     * @param node    Host name and record type to be used for the query.
+     * @param nsNames Names of the name servers of the zone being queried, if known.
+     * @return The decoded response, or null if no server returned a valid response.
+     */
+    private Response queryServers(ResolutionContext context, DNSNode node, List<String> nsNames) {
+        try {
+            for (int attempt = 0; attempt <= maxRetries && context.getRemainingMicros() > 0; attempt++) {
+                if (attempt > 0) {
+                    List<InetAddress> servers = new ArrayList<>(context.getServers());
+                    for (InetAddress address : getCachedAddresses(nsNames))
+                        if (!servers.contains(address))
+                            servers.add(address);
+                    context.setServers(servers);
+                }
+                Response response = queryServersStaggered(context, node, serverStats.rank(context.getServers()));
+                if (response != null)
+                    return response;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    private Response queryServersStaggered(ResolutionContext context, DNSNode node, List<InetAddress> servers)
+            throws InterruptedException {
+        BlockingQueue<PendingQuery> completed = new LinkedBlockingQueue<>();
+        List<PendingQuery> inFlight = new ArrayList<>();
+        int next = 0;
+        boolean overTcp = tcpOnly;
+        Transport transport = overTcp ? tcp : engine;
+        try {
+            while (next < servers.size() || !inFlight.isEmpty()) {
+                long remaining = context.getRemainingMicros();
+                if (remaining <= 0)
+                    return null;
+
+                long waitMicros = remaining;
+                if (next < servers.size()) {
+                    InetAddress server = servers.get(next++);
+                    long timeout = serverStats.getRetransmissionTimeout(server);
+                    // a new connection takes one more round trip
+                    if (overTcp)
+                        timeout *= 2;
+                    timeout = Math.min(timeout, remaining);
+                    PendingQuery query = transport.send(server, port, node,
+                            Math.max(1, TimeUnit.MICROSECONDS.toMillis(timeout)));
+                    verbosePrintQuery(query);
+                    query.whenComplete((response, ex) -> completed.add(query));
+                    inFlight.add(query);
+                    waitMicros = Math.min(serverStats.getStaggerDelay(server), remaining);
+                }
+
+                // wait for a response, or until it's time to query the next server
+                PendingQuery done;
+                while ((done = completed.poll(waitMicros, TimeUnit.MICROSECONDS)) != null) {
+                    inFlight.remove(done);
+                    InetAddress server = done.getServer().getAddress();
+                    Response response = null;
+                    try {
+                        response = done.join();
+                    } catch (CompletionException | CancellationException e) {
+                        if (e.getCause() instanceof SocketTimeoutException)
+                            serverStats.recordTimeout(server);
+                        else
+                            serverStats.recordFailure(server);
+                    }
+                    if (response != null && response.isTruncated() && !overTcp) {
+                        // a partial response can't be cached, the complete one is sent over TCP
+                        response = queryOverTcp(context, done);
+                        if (response == null)
+                            serverStats.recordFailure(server);
+                    }
+                    // the records of a truncated response are not decoded
+                    if (response != null && response.isTruncated()) {
+                        serverStats.recordFailure(server);
+                        response = null;
+                    }
+                    // an error other than a non-existing name means this server can't be used
+                    if (response != null && response.getRCODE() != 0 && response.getRCODE() != 3) {
+                        serverStats.recordFailure(server);
+                        response = null;
+                    }
+                    if (response != null) {
+                        serverStats.recordResponse(server, done.getRoundTripMicros());
+                        verbosePrintResponse(response);
+                        return response;
+                    }
+                    // fail over to the next server without waiting any longer
+                    if (next < servers.size() || inFlight.isEmpty())
+                        break;
+                    waitMicros = context.getRemainingMicros();
+                }
+            }
+            return null;
+        } finally {
+            // responses to queries still in flight are not needed any more
+            for (PendingQuery query : inFlight)
+                query.cancel(false);
+        }
+    }
+
+    /**
+     * Sends a query again over TCP, after its response over UDP was truncated.
+     *
+     * @param context   Resolution the query is part of; the query may take the rest of its
+     *                  time budget.
+     * @param truncated The query whose response was truncated.
+     * @return The complete response, or null if it could not be obtained.
+     */
+    private Response queryOverTcp(ResolutionContext context, PendingQuery truncated) {
+        long timeout = TimeUnit.MICROSECONDS.toMillis(context.getRemainingMicros());
+        if (timeout <= 0)
+            return null;
+        if (verboseTracing)
+            System.out.printf("\n\nTruncated response, query over TCP  %s  %s --> %s\n",
+                    truncated.getQuestion().getHostName(), truncated.getQuestion().getType(),
+                    truncated.getServer().getAddress().getHostAddress());
+        PendingQuery query = tcp.send(truncated.getServer().getAddress(), truncated.getServer().getPort(),
+                truncated.getQuestion(), timeout);
+        try {
+            return query.join();
+        } catch (CompletionException | CancellationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the addresses of the name servers listed in a referral. Addresses are taken from
+     * the glue records in the additional section when available. Otherwise the addresses of
+     * several name servers are looked up at once, each in its own sub-resolution, and the
+     * addresses found by the first successful one are returned first, followed by any other
+     * name server addresses already in the cache. The other sub-resolutions are left to
+     * complete in the background, adding their results to the cache.
+     *
+     * @param context  Resolution the referral is part of.
+     * @param response The referral response.
+     * @param zone     Zone of the server that sent the referral; glue records outside of it are
+     *                 ignored.
+     * @param nsNames  Names of the name servers listed in the referral.
+     * @return A potentially empty list of name server addresses.
+     */
+    private List<InetAddress> getReferralServers(ResolutionContext context, Response response, String zone,
+                                                 List<String> nsNames) {
+        List<InetAddress> servers = new ArrayList<>();
+        for (ResourceRecord r : response.getAdditional())
+            if (r.getType() == RecordType.A && nsNames.contains(r.getHostName()) && isInZone(r.getHostName(), zone))
+                servers.add(r.getInetResult());
+        if (!servers.isEmpty() || context.getDepth() >= MAX_RESOLUTION_DEPTH)
+            return servers;
+
+        // no glue: find the addresses of the name servers, skipping those whose resolution
+        // depends on this one
+        List<DNSNode> nsNodes = new ArrayList<>();
+        for (String nsName : nsNames) {
+            DNSNode nsNode = new DNSNode(nsName, RecordType.A);
+            if (!context.isInProgress(nsNode) && nsNodes.size() < MAX_PARALLEL_NS_LOOKUPS)
+                nsNodes.add(nsNode);
+        }
+        if (nsNodes.isEmpty())
+            return servers;
+
+        CompletableFuture<List<InetAddress>> firstFound = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(nsNodes.size());
+        for (DNSNode nsNode : nsNodes) {
+            ResolutionContext subContext = context.createSubResolution(nsNode);
+            CompletableFuture.supplyAsync(() -> getResults(subContext, nsNode), executor)
+                    .whenComplete((results, ex) -> {
+                        List<InetAddress> addresses = new ArrayList<>();
+                        if (results != null)
+                            for (ResourceRecord r : results)
+                                addresses.add(r.getInetResult());
+                        if (!addresses.isEmpty())
+                            firstFound.complete(addresses);
+                        else if (remaining.decrementAndGet() == 0)
+                            firstFound.complete(Collections.emptyList());
+                    });
+        }
+
+        try {
+            servers.addAll(firstFound.get(context.getRemainingMicros(), TimeUnit.MICROSECONDS));
+            // other name servers whose addresses are known by now can be used if these fail
+            for (InetAddress address : getCachedAddresses(nsNames))
+                if (!servers.contains(address))
+                    servers.add(address);
+            return servers;
+        } catch (TimeoutException | ExecutionException e) {
+            // no address found within the resolution's time budget; sub-resolutions still
+            // running go on in the background
+            return servers;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return servers;
+        }
+    }
+
+    /**
+     * Returns the zone a referral delegates to: the owner of its first NS record.
+     */
+    private String getReferralZone(Response response) {
+        for (ResourceRecord r : response.getNameservers())
+            if (r.getType() == RecordType.NS)
+                return r.getHostName();
+        return "";
+    }
+
+    /**
+     * Returns the (normalized) names of the name servers listed in a referral for a zone.
+     */
+    private List<String> getReferralNames(Response response, String zone) {
+        List<String> nsNames = new ArrayList<>();
+        for (ResourceRecord r : response.getNameservers())
+            if (r.getType() == RecordType.NS && r.getHostName().equals(zone))
+                nsNames.add(DNSNode.normalize(r.getTextResult()));
+        return nsNames;
+    }
+
+    /**
+     * Returns the addresses of the specified name servers that are currently in the cache.
+     */
+    private List<InetAddress> getCachedAddresses(List<String> nsNames) {
+        List<InetAddress> addresses = new ArrayList<>();
+        for (String nsName : nsNames)
+            for (ResourceRecord r : cache.getCachedResults(new DNSNode(nsName, RecordType.A)))
+                if (!addresses.contains(r.getInetResult()))
+                    addresses.add(r.getInetResult());
+        return addresses;
+    }
+
+    private void verbosePrintQuery(PendingQuery query) {
+        if (verboseTracing)
+            System.out.printf("\n\nQuery ID     %d %s  %s --> %s\n", query.getQueryID(),
+                    query.getQuestion().getHostName(), query.getQuestion().getType(),
+                    query.getServer().getAddress().getHostAddress());
+    }
+
+    private void verbosePrintResponse(Response response) {
+        if (!verboseTracing)
+            return;
+        System.out.println("Response ID: " + response.getID() + " Authoritative = " + response.isAuthoritative());
+        System.out.println("  Answers (" + response.getAnswers().size() + ")");
+        for (ResourceRecord record : response.getAnswers())
+            verbosePrintResourceRecord(record, record.getType().getCode());
+        System.out.println("  Nameservers  (" + response.getNameservers().size() + ")");
+        for (ResourceRecord record : response.getNameservers())
+            verbosePrintResourceRecord(record, record.getType().getCode());
+        System.out.println("  Additional Information (" + response.getAdditional().size() + ")");
+        for (ResourceRecord record : response.getAdditional())
+            verbosePrintResourceRecord(record, record.getType().getCode());
+    }
+
+    private void verbosePrintResourceRecord(ResourceRecord record, int rtype) {
+        if (verboseTracing)
+            System.out.format("       %-30s %-10d %-4s %s\n", record.getHostName(),
+                    record.getTTL(),
+                    record.getType() == RecordType.OTHER ? rtype : record.getType(),
+                    record.getTextResult());
+    }
+
+    /** Configures and creates an IterativeResolver. At least one root server must be set; all
+     * other settings have defaults.
+     */
+    public static class Builder {
+        private final List<InetAddress> rootServers = new ArrayList<>();
+        private DNSCache cache = DNSCache.getInstance();
+        private int port = DEFAULT_DNS_PORT;
+        private long resolutionTimeoutMillis = DEFAULT_RESOLUTION_TIMEOUT_MILLIS;
+        private int maxRetries = DEFAULT_MAX_RETRIES;
+        private int ednsPayloadSize = DEFAULT_EDNS_PAYLOAD_SIZE;
+        private boolean tcpOnly = false;
+        private ThreadMode threadMode = ThreadMode.PLATFORM;
+
+        private Builder() {
+        }
+
+        /** Adds a root name server, where searches start when no closer zone is cached. */
+        public Builder rootServer(InetAddress rootServer) {
+            rootServers.add(rootServer);
+            return this;
+        }
+
+        /** Adds several root name servers. */
+        public Builder rootServers(Collection<InetAddress> rootServers) {
+            this.rootServers.addAll(rootServers);
+            return this;
+        }
+
+        /** Sets the cache where results are kept (by default, the single DNSCache instance). */
+        public Builder cache(DNSCache cache) {
+            this.cache = Objects.requireNonNull(cache);
+            return this;
+        }
+
+        /** Sets the UDP port that name servers are queried on (by default, 53). */
+        public Builder port(int port) {
+            if (port <= 0 || port > 0xFFFF)
+                throw new IllegalArgumentException("Invalid port " + port);
+            this.port = port;
+            return this;
+        }
+
+        /** Sets the maximum time a lookup may take, including the lookups of name server
+         * addresses and CNAME targets it depends on (by default, 10 seconds). The time each
+         * query is given is based on the response times of the server it is sent to.
+         */
+        public Builder resolutionTimeout(long timeout, TimeUnit unit) {
+            if (timeout <= 0)
+                throw new IllegalArgumentException("Invalid timeout " + timeout);
+            this.resolutionTimeoutMillis = unit.toMillis(timeout);
+            return this;
+        }
+
+        /** Sets how many more times the name servers of a zone are queried if none of them
+         * responds (by default, 2).
+         */
+        public Builder maxRetries(int maxRetries) {
+            if (maxRetries < 0)
+                throw new IllegalArgumentException("Invalid number of retries " + maxRetries);
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /** Sets the size of the UDP responses accepted, advertised in an OPT record (EDNS0) in
+         * each query (by default, 1232 bytes), or 0 to send queries without an OPT record, which
+         * limits responses to 512 bytes. Truncated responses are obtained again over TCP.
+         */
+        public Builder ednsPayloadSize(int payloadSize) {
+            if (payloadSize != 0 && (payloadSize < 512 || payloadSize > 0xFFFF))
+                throw new IllegalArgumentException("Invalid payload size " + payloadSize);
+            this.ednsPayloadSize = payloadSize;
+            return this;
+        }
+
+        /** Sets whether queries are sent over TCP only, on connections kept open to each server
+         * (by default, queries are sent over UDP, and over TCP when a response is truncated).
+         */
+        public Builder tcpOnly(boolean tcpOnly) {
+            this.tcpOnly = tcpOnly;
+            return this;
+        }
+
+        /** Sets the kind of threads used to run lookups (by default, platform threads). */
+        public Builder threadMode(ThreadMode threadMode) {
+            if (threadMode == ThreadMode.VIRTUAL && !ThreadMode.isVirtualAvailable())
+                throw new UnsupportedOperationException("Virtual threads are not available");
+            this.threadMode = threadMode;
+            return this;
+        }
+
+        /** Creates the resolver.
+         *
+         * @return A new resolver, ready to be used.
+         * @throws IOException If the socket or selectors used to send queries can't be opened.
+         */
+        public IterativeResolver build() throws IOException {
+            if (rootServers.isEmpty())
+                throw new IllegalStateException("No root server");
+            return new IterativeResolver(this);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/** A histogram of latencies, used to compute percentiles over a large number of lookups in
+ * constant memory. Values are counted in buckets whose width grows with the value: each power
+ * of two is split into 16 buckets, so a percentile is reported with an error of at most about
+ * 6%. Values may be recorded concurrently from any number of threads.
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /** Records one value.
+     *
+     * @param micros Latency, in microseconds.
+     */
+    void record(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(indexOf(value));
+        total.increment();
+        max.accumulate(value);
+    }
+
+    /** Returns the number of values recorded. */
+    long getCount() {
+        return total.sum();
+    }
+
+    /** Returns the largest value recorded, or 0 if none. */
+    long getMax() {
+        return max.get();
+    }
+
+    /** Returns an upper bound of the value below which a percentage of the values fall.
+     *
+     * @param percentile Percentage of the values, between 0 and 100.
+     * @return The percentile, in microseconds, or 0 if no value was recorded.
+     */
+    long getPercentile(double percentile) {
+        long count = total.sum();
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(upperBoundOf(i), getMax());
+        }
+        return getMax();
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
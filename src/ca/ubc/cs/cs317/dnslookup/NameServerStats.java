@@ -0,0 +1,162 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Keeps track of how fast and reliable each name server has been, and uses this information
+ * to choose which server to query first. Each server has a smoothed round-trip time (SRTT),
+ * similar to the one used by BIND: it is updated with every response, and increased with
+ * every query that gets no response. Servers that have not been queried yet start with a small
+ * random SRTT, so they are tried early; the SRTT of servers that are passed over decays
+ * slowly, so a server that was slow once is eventually tried again.
+ *
+ * Separately, the round-trip time of each server and its variation are estimated as in TCP
+ * (RFC 6298), and used to compute how long to wait for a response from the server before the
+ * query is considered lost (the retransmission timeout, or RTO). The RTO doubles with each
+ * consecutive timeout of a server, and is reset when the server responds again.
+ */
+public class NameServerStats {
+
+    private static final double SRTT_WEIGHT = 0.3;
+    private static final double DECAY = 0.98;
+    private static final long INITIAL_SRTT_MAX_MICROS = 32_000;
+    private static final long TIMEOUT_PENALTY_MICROS = 500_000;
+    private static final long MAX_SRTT_MICROS = 10_000_000;
+    private static final long MIN_STAGGER_MICROS = 20_000;
+    private static final long MAX_STAGGER_MICROS = 500_000;
+    private static final long INITIAL_RTO_MICROS = 1_000_000;
+    private static final long MIN_RTO_MICROS = 50_000;
+    private static final long MAX_RTO_MICROS = 5_000_000;
+    private static final long CLOCK_GRANULARITY_MICROS = 10_000;
+    private static final int MAX_BACKOFF = 6;
+
+    private final ConcurrentMap<InetAddress, Server> servers = new ConcurrentHashMap<>();
+
+    /** Returns a list of servers ordered from the most to the least preferred (lowest to highest
+     * SRTT).
+     *
+     * @param candidates Addresses of the servers to choose from.
+     * @return A new list with the same addresses, in order of preference.
+     */
+    public List<InetAddress> rank(List<InetAddress> candidates) {
+        List<InetAddress> ranked = new ArrayList<>(candidates);
+        if (ranked.size() < 2)
+            return ranked;
+        ranked.sort((a, b) -> Long.compare(get(a).srtt, get(b).srtt));
+        // servers passed over get a chance to be chosen later
+        for (int i = 1; i < ranked.size(); i++)
+            get(ranked.get(i)).decay();
+        return ranked;
+    }
+
+    /** Records a response received from a server.
+     *
+     * @param server    Address of the server.
+     * @param rttMicros Time between sending the query and receiving the response.
+     */
+    public void recordResponse(InetAddress server, long rttMicros) {
+        get(server).update(rttMicros);
+    }
+
+    /** Records a query to a server that got an unusable response (e.g., a server failure).
+     *
+     * @param server Address of the server.
+     */
+    public void recordFailure(InetAddress server) {
+        get(server).penalize();
+    }
+
+    /** Records a query to a server that got no response in time. The retransmission timeout of
+     * the server is doubled.
+     *
+     * @param server Address of the server.
+     */
+    public void recordTimeout(InetAddress server) {
+        Server stats = get(server);
+        stats.penalize();
+        stats.backOff();
+    }
+
+    /** Returns how long to wait for a response from a server before considering the query
+     * lost: SRTT + 4 * RTTVAR (with no samples, one second), doubled for each consecutive
+     * timeout of the server.
+     *
+     * @param server Address of the server.
+     * @return The retransmission timeout, in microseconds.
+     */
+    public long getRetransmissionTimeout(InetAddress server) {
+        return get(server).rto();
+    }
+
+    /** Returns the smoothed round-trip time of a server.
+     *
+     * @param server Address of the server.
+     * @return The SRTT, in microseconds.
+     */
+    public long getSmoothedRTT(InetAddress server) {
+        return get(server).srtt;
+    }
+
+    /** Returns how long to wait for a response from a server before also querying the next
+     * server: somewhat more than the server's usual round-trip time.
+     *
+     * @param server Address of the server.
+     * @return The delay, in microseconds.
+     */
+    public long getStaggerDelay(InetAddress server) {
+        Server stats = get(server);
+        long delay = Math.max(MIN_STAGGER_MICROS, Math.min(MAX_STAGGER_MICROS, stats.srtt * 2));
+        return Math.min(delay, stats.rto());
+    }
+
+    private Server get(InetAddress server) {
+        return servers.computeIfAbsent(server, address -> new Server());
+    }
+
+    /** Statistics for a single server. Updates may race with each other; a lost update only
+     * makes the estimate slightly less precise.
+     */
+    private static final class Server {
+        // used to rank servers; includes penalties for failures
+        private volatile long srtt = 1 + ThreadLocalRandom.current().nextLong(INITIAL_SRTT_MAX_MICROS);
+        // used to compute the RTO; only based on actual round-trip times
+        private volatile long rttEstimate = -1;
+        private volatile long rttVariation;
+        private volatile int backoff = 0;
+
+        void update(long rttMicros) {
+            srtt = (long) ((1 - SRTT_WEIGHT) * srtt + SRTT_WEIGHT * rttMicros);
+            if (rttEstimate < 0) {
+                rttEstimate = rttMicros;
+                rttVariation = rttMicros / 2;
+            } else {
+                rttVariation = (3 * rttVariation + Math.abs(rttEstimate - rttMicros)) / 4;
+                rttEstimate = (7 * rttEstimate + rttMicros) / 8;
+            }
+            backoff = 0;
+        }
+
+        void backOff() {
+            backoff = Math.min(MAX_BACKOFF, backoff + 1);
+        }
+
+        long rto() {
+            long rto = rttEstimate < 0 ? INITIAL_RTO_MICROS :
+                    rttEstimate + Math.max(CLOCK_GRANULARITY_MICROS, 4 * rttVariation);
+            rto = Math.max(MIN_RTO_MICROS, rto) << backoff;
+            return Math.min(MAX_RTO_MICROS, rto);
+        }
+
+        void penalize() {
+            srtt = Math.min(MAX_SRTT_MICROS, srtt + TIMEOUT_PENALTY_MICROS);
+        }
+
+        void decay() {
+            srtt = (long) (srtt * DECAY);
+        }
+    }
+}
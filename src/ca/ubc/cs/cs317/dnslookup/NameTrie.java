@@ -0,0 +1,199 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/** Index of the names held by the DNS cache, as a trie of labels in reverse order (from the
+ * top-level domain down), so the names under a suffix form a subtree. Each name in the trie
+ * records the types of the nodes cached for it, separately for records and negative results.
+ * Finding the cached ancestors of a name, or the nodes under a suffix, takes time proportional
+ * to the depth of the name (plus the size of the subtree), rather than to the size of the
+ * cache.
+ *
+ * Each level of the trie is keyed by one more label, but the children of a name are mapped by
+ * their whole names rather than by their first label, so names are never rebuilt from labels.
+ * A name added for a cached node keeps the node's host name string, and the cache keys the
+ * other nodes of the same name with that string (see getCanonicalName), so the trie and the
+ * cache share one copy of each cached name. Names are not interned in the JVM's string table:
+ * the string of a name is released along with its label, once the name is no longer cached.
+ *
+ * Updates are made while holding a lock, and only when a node enters or leaves the cache.
+ * Reads don't lock: children are kept in concurrent maps, and a read that overlaps an update
+ * sees the trie either before or after that update.
+ */
+final class NameTrie {
+
+    private final Label root = new Label(null, "");
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Records that a node is cached.
+     *
+     * @param node     Node entering the cache.
+     * @param negative true if the node has a negative result, false if it has records.
+     */
+    void add(DNSNode node, boolean negative) {
+        lock.lock();
+        try {
+            String name = node.getHostName();
+            Label label = root;
+            for (int end = name.length(); end > 0; ) {
+                int start = name.lastIndexOf('.', end - 1) + 1;
+                label = label.getOrAddChild(start == 0 ? name : name.substring(start));
+                end = start - 1;
+            }
+            label.setTypes(negative, label.getTypes(negative) | 1 << node.getType().ordinal());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that a node is no longer cached, and removes the labels no longer needed.
+     *
+     * @param node     Node leaving the cache.
+     * @param negative true if the node had a negative result, false if it had records.
+     */
+    void remove(DNSNode node, boolean negative) {
+        lock.lock();
+        try {
+            Label label = find(node.getHostName());
+            if (label == null)
+                return;
+            label.setTypes(negative, label.getTypes(negative) & ~(1 << node.getType().ordinal()));
+            while (label != root && label.isEmpty()) {
+                label.parent.children.remove(label.name);
+                label = label.parent;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the nodes cached for a host name and its ancestors, from the host name up to
+     * the root.
+     *
+     * @param hostName Normalized host name.
+     * @param negative true for nodes with negative results, false for nodes with records.
+     * @return The nodes cached for the host name or its ancestors, closest first.
+     */
+    List<DNSNode> getEnclosingNodes(String hostName, boolean negative) {
+        List<DNSNode> nodes = new ArrayList<>();
+        Label label = root;
+        addNodes(nodes, label.name, label.getTypes(negative));
+        for (int end = hostName.length(); end > 0 && label != null; ) {
+            int start = hostName.lastIndexOf('.', end - 1) + 1;
+            label = label.getChild(start == 0 ? hostName : hostName.substring(start));
+            if (label != null)
+                addNodes(nodes, label.name, label.getTypes(negative));
+            end = start - 1;
+        }
+        // nodes were found from the root down
+        List<DNSNode> closestFirst = new ArrayList<>(nodes.size());
+        for (int i = nodes.size() - 1; i >= 0; i--)
+            closestFirst.add(nodes.get(i));
+        return closestFirst;
+    }
+
+    /** Performs an action for each node cached for a suffix or any name under it.
+     *
+     * @param suffix   Normalized suffix, or an empty string for all names.
+     * @param negative true for nodes with negative results, false for nodes with records.
+     * @param action   Action to be performed for each node.
+     */
+    void forEachNode(String suffix, boolean negative, Consumer<DNSNode> action) {
+        Label label = find(suffix);
+        if (label != null)
+            forEachNode(label, negative, action);
+    }
+
+    private void forEachNode(Label label, boolean negative, Consumer<DNSNode> action) {
+        List<DNSNode> nodes = new ArrayList<>();
+        addNodes(nodes, label.name, label.getTypes(negative));
+        nodes.forEach(action);
+        ConcurrentMap<String, Label> children = label.children;
+        if (children != null)
+            for (Label child : children.values())
+                forEachNode(child, negative, action);
+    }
+
+    /** Returns the string held by the trie for a host name, to be shared by all the nodes of
+     * that name, or the host name itself if the trie has no such name.
+     *
+     * @param hostName Normalized host name.
+     * @return A string equal to the host name.
+     */
+    String getCanonicalName(String hostName) {
+        Label label = find(hostName);
+        return label != null ? label.name : hostName;
+    }
+
+    /** Returns true if no node is cached, in which case the trie holds no label but the root. */
+    boolean isEmpty() {
+        return root.isEmpty();
+    }
+
+    private Label find(String name) {
+        Label label = root;
+        for (int end = name.length(); end > 0 && label != null; ) {
+            int start = name.lastIndexOf('.', end - 1) + 1;
+            label = label.getChild(start == 0 ? name : name.substring(start));
+            end = start - 1;
+        }
+        return label;
+    }
+
+    private static void addNodes(List<DNSNode> nodes, String name, int types) {
+        for (RecordType type : RecordType.values())
+            if ((types & 1 << type.ordinal()) != 0)
+                nodes.add(new DNSNode(name, type));
+    }
+
+    private static final class Label {
+        private final Label parent;
+        private final String name;
+        private volatile ConcurrentMap<String, Label> children;
+        // bit sets of the record types cached for the name
+        private volatile int recordTypes;
+        private volatile int negativeTypes;
+
+        Label(Label parent, String name) {
+            this.parent = parent;
+            this.name = name;
+        }
+
+        Label getChild(String name) {
+            ConcurrentMap<String, Label> current = children;
+            return current == null ? null : current.get(name);
+        }
+
+        Label getOrAddChild(String name) {
+            if (children == null)
+                children = new ConcurrentHashMap<>(4);
+            Label child = children.get(name);
+            if (child == null) {
+                child = new Label(this, name);
+                children.put(name, child);
+            }
+            return child;
+        }
+
+        int getTypes(boolean negative) {
+            return negative ? negativeTypes : recordTypes;
+        }
+
+        void setTypes(boolean negative, int types) {
+            if (negative)
+                negativeTypes = types;
+            else
+                recordTypes = types;
+        }
+
+        boolean isEmpty() {
+            ConcurrentMap<String, Label> current = children;
+            return recordTypes == 0 && negativeTypes == 0 && (current == null || current.isEmpty());
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** A negative result records that a query has no answer: either the host name does not exist
+ * (NXDOMAIN), or it exists but has no records of the requested type (NODATA). Negative results
+ * are cached like resource records, for the TTL given by the SOA record of the zone (RFC 2308).
+ */
+public class NegativeResult {
+
+    /** Estimated memory used by a cached negative result, in bytes. */
+    static final long ESTIMATED_SIZE = 120;
+
+    private final DNSNode node;
+    private final boolean nonExistentName;
+    private long expirationTime;
+
+    public NegativeResult(DNSNode node, boolean nonExistentName, long ttl) {
+        this.node = node;
+        this.nonExistentName = nonExistentName;
+        this.expirationTime = CoarseClock.now() + (ttl * 1000);
+    }
+
+    /** Creates a negative result that expires at a specific time rather than after a TTL, e.g.,
+     * to restore a result saved earlier.
+     *
+     * @param node            Query that has no answer.
+     * @param nonExistentName true for NXDOMAIN, false for NODATA.
+     * @param expirationTime  Time when the result expires, as a time of the CoarseClock.
+     * @return The new negative result.
+     */
+    static NegativeResult expiringAt(DNSNode node, boolean nonExistentName, long expirationTime) {
+        NegativeResult result = new NegativeResult(node, nonExistentName, 0);
+        result.expirationTime = expirationTime;
+        return result;
+    }
+
+    public DNSNode getNode() {
+        return node;
+    }
+
+    /** Returns true if the host name does not exist at all (NXDOMAIN), in which case there are
+     * no records of any type for it; or false if only the record type was not found (NODATA).
+     *
+     * @return true for NXDOMAIN, false for NODATA.
+     */
+    public boolean isNonExistentName() {
+        return nonExistentName;
+    }
+
+    public long getTTL() {
+        return (expirationTime - CoarseClock.now() + 999) / 1000;
+    }
+
+    public boolean isStillValid() {
+        return expirationTime > CoarseClock.now();
+    }
+
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+}
@@ -0,0 +1,65 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/** A query sent by a transport and not yet answered. Completes with the response to the
+ * query, once it is received, or exceptionally if no response is received in time.
+ */
+public class PendingQuery extends CompletableFuture<Response> implements Delayed {
+
+    private final InetSocketAddress server;
+    private final short queryID;
+    private final DNSNode question;
+    // encoded query waiting until it can be sent, if any
+    ByteBuffer unsentData;
+    volatile long receivedNanos;
+    private final long sentNanos;
+    private final long deadlineNanos;
+
+    PendingQuery(InetSocketAddress server, short queryID, DNSNode question, long timeoutMillis) {
+        this.server = server;
+        this.queryID = queryID;
+        this.question = question;
+        this.sentNanos = System.nanoTime();
+        this.deadlineNanos = sentNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    public InetSocketAddress getServer() {
+        return server;
+    }
+
+    public short getQueryID() {
+        return queryID;
+    }
+
+    public DNSNode getQuestion() {
+        return question;
+    }
+
+    public long getSentNanos() {
+        return sentNanos;
+    }
+
+    /** Returns the time between sending the query and receiving its response.
+     *
+     * @return The round-trip time in microseconds, or -1 if no response was received.
+     */
+    public long getRoundTripMicros() {
+        long received = receivedNanos;
+        return received == 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(received - sentNanos);
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(deadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public int compareTo(Delayed o) {
+        return Long.compare(deadlineNanos, ((PendingQuery) o).deadlineNanos);
+    }
+}
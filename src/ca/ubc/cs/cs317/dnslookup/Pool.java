@@ -0,0 +1,64 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+/** A bounded pool of reusable objects, such as the buffers and encoders used to send messages,
+ * shared by all threads. Unlike a thread-local object, a pooled object is not tied to the
+ * thread that created it, so short-lived threads (e.g., a virtual thread per lookup) reuse the
+ * objects of the threads before them instead of creating their own.
+ *
+ * The pool is a small array of slots, taken and filled with a compare-and-set; each thread
+ * starts looking at a different slot, so threads rarely compete for the same one. An object is
+ * created when the pool is empty, and dropped when it is returned to a full pool, so the pool
+ * never holds more than its number of slots.
+ *
+ * @param <T> Type of the objects pooled.
+ */
+final class Pool<T> {
+
+    private static final int SLOTS =
+            Integer.highestOneBit(Math.min(64, 4 * Runtime.getRuntime().availableProcessors()) - 1) << 1;
+
+    private final AtomicReferenceArray<T> slots = new AtomicReferenceArray<>(SLOTS);
+    private final Supplier<T> factory;
+
+    /** Creates an empty pool.
+     *
+     * @param factory Creates an object when the pool has none available.
+     */
+    Pool(Supplier<T> factory) {
+        this.factory = factory;
+    }
+
+    /** Takes an object from the pool, or creates one if the pool is empty. The object must be
+     * returned with release once the caller is done with it.
+     */
+    T acquire() {
+        int start = start();
+        for (int i = 0; i < SLOTS; i++) {
+            int index = (start + i) & (SLOTS - 1);
+            T item = slots.get(index);
+            if (item != null && slots.compareAndSet(index, item, null))
+                return item;
+        }
+        return factory.get();
+    }
+
+    /** Returns an object to the pool, or drops it if the pool is full. The caller must not use
+     * the object afterwards.
+     */
+    void release(T item) {
+        int start = start();
+        for (int i = 0; i < SLOTS; i++) {
+            int index = (start + i) & (SLOTS - 1);
+            if (slots.get(index) == null && slots.compareAndSet(index, null, item))
+                return;
+        }
+    }
+
+    private static int start() {
+        // spread thread IDs over the slots
+        return ((int) Thread.currentThread().getId() * 0x9E3779B9) >>> 16;
+    }
+}
@@ -1,119 +1,125 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
-import java.util.*;
+import java.nio.ByteBuffer;
 
 public class Query {
-    private static short _iD;
+    /** Size of a query header and the fixed part of its question, excluding the name. */
+    public static final int FIXED_SIZE = 12 + 4;
+    /** Size of an OPT pseudo-record with no options (RFC 6891). */
+    public static final int OPT_SIZE = 11;
+    /** Largest size of an encoded query. */
+    public static final int MAX_QUERY_SIZE = FIXED_SIZE + 255 + OPT_SIZE;
+    /** Type code of the OPT pseudo-record. */
+    public static final int OPT_TYPE = 41;
+
     private static Query instance = new Query();
     public static Query getInstance() {
         return instance;
     }
+
     /**
      * returns the byte code for a DNSQuery using the given node as data.
      *
      * @param node  The node to create a query for
+     * @param queryID  The ID to be used in the query header
      *
      */
-    public static byte[] createQuery(DNSNode node, Random random) {
-        System.out.println();
-        System.out.println();
-        try {
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
-            createQueryHeader(dataOutputStream, random);
-            encodeNodeName(node, dataOutputStream);
-            return byteArrayOutputStream.toByteArray();
-        } catch (java.io.IOException e) {
-            // ignore IO exception
-        }
+    public static byte[] createQuery(DNSNode node, short queryID) {
+        ByteBuffer buffer = ByteBuffer.allocate(FIXED_SIZE + node.getWireName().length);
+        encodeQuery(buffer, node, queryID);
+        return buffer.array();
+    }
+
+    /**
+     * writes a DNSQuery for the given node to the buffer, starting at its position. No objects
+     * are allocated: the wire format of the name is computed once per node and reused, so the
+     * buffer may be a pooled (and direct) buffer reused for every query.
+     *
+     * @param buffer  The buffer to write to; its position is moved past the query
+     * @param node  The node to create a query for
+     * @param queryID  The ID to be used in the query header
+     *
+     */
+    public static void encodeQuery(ByteBuffer buffer, DNSNode node, short queryID) {
+        encodeQuery(buffer, node, queryID, 0);
+    }
 
-        return null;
+    /**
+     * writes a DNSQuery for the given node to the buffer, starting at its position, and
+     * advertises the size of the UDP responses that can be received in an OPT record (EDNS0).
+     *
+     * @param buffer  The buffer to write to; its position is moved past the query
+     * @param node  The node to create a query for
+     * @param queryID  The ID to be used in the query header
+     * @param payloadSize  The largest UDP response accepted, or 0 to send no OPT record
+     *
+     */
+    public static void encodeQuery(ByteBuffer buffer, DNSNode node, short queryID, int payloadSize) {
+        int start = buffer.position();
+        createQueryHeader(buffer, queryID);
+        encodeNodeName(buffer, node);
+        if (payloadSize > 0) {
+            // ARCOUNT
+            buffer.putShort(start + 10, (short) 0x0001);
+            encodeOPT(buffer, payloadSize);
+        }
     }
 
     /**
      * writes the node information to the given buffer.
      * Sets the QNAME, QTYPE, and QCLASS of the query.
      *
+     *  @param buffer  The buffer to write data to
      *  @param node The node to get the hostname and type from
-     *  @param dataOutputStream  The stream to write data to
      *
      */
-    public static void encodeNodeName(DNSNode node, DataOutputStream dataOutputStream) throws IOException {
-        // write QNAME
-        String[] domainNameArray = node.getHostName().split("[.]");
-        System.out.print(node.getHostName() + "  ");
-        for (int i = 0; i < domainNameArray.length; i++) {
-            String label = domainNameArray[i];
-            // write label length (2-bits)
-            dataOutputStream.writeByte(label.length());
-            // write label
-            dataOutputStream.write(label.getBytes("UTF-8"));
-        }
-        // write zero octet to mark end of domain name
-        dataOutputStream.writeByte(0x00);
+    public static void encodeNodeName(ByteBuffer buffer, DNSNode node) {
+        // write QNAME (length-prefixed labels, ending with a zero octet)
+        buffer.put(node.getWireName());
         // write QTYPE
-        int qtype = node.getType().getCode();
-        switch (qtype) {
-            case 1:
-                dataOutputStream.writeShort(0x0001);
-                break;
-            case 2:
-                dataOutputStream.writeShort(0x0002);
-                break;
-            case 5:
-                dataOutputStream.writeShort(0x0005);
-                break;
-            case 6:
-                dataOutputStream.writeShort(0x0006);
-                break;
-            case 15:
-                dataOutputStream.writeShort(0x000F);
-                break;
-            case 28:
-                dataOutputStream.writeShort(0x001C);
-                break;
-            default:
-                // type other
-                dataOutputStream.writeShort(0x0000);
-                break;
-        }
-        System.out.print(RecordType.getByCode(node.getType().getCode()) + " --> ");
+        buffer.putShort((short) node.getType().getCode());
         // write QCLASS
-        dataOutputStream.writeShort(0x0001);
+        buffer.putShort((short) 0x0001);
     }
 
     /**
-     * creates the header for the DNS query
+     * writes an OPT pseudo-record with no options to the given buffer.
      *
-     * @param dataOutputStream  The stream to write data to
+     *  @param buffer  The buffer to write data to
+     *  @param payloadSize  The largest UDP message accepted (at least 512)
      *
      */
-    public static void createQueryHeader(DataOutputStream dataOutputStream, Random random) throws IOException {
-        _iD = (short) random.nextInt(Short.MAX_VALUE + 1);
-        System.out.print("Query ID     " + _iD + " ");
-        // write 16-bit ID
-        dataOutputStream.writeShort(_iD);
-        // write QR, Opcode, AA, TC, RD, RA, Z, RCODE (all set to 0) (16 bits)
-        dataOutputStream.writeShort(0x0000);
-        // write QDCOUNT
-        dataOutputStream.writeShort(0x0001);
-        // write ANCOUNT
-        dataOutputStream.writeShort( 0x0000);
-        // write NSCOUNT
-        dataOutputStream.writeShort(0x0000);
-        // write ARCOUNT
-        dataOutputStream.writeShort(0x0000);
+    public static void encodeOPT(ByteBuffer buffer, int payloadSize) {
+        // write NAME (the root)
+        buffer.put((byte) 0x00);
+        // write TYPE
+        buffer.putShort((short) OPT_TYPE);
+        // write CLASS (the payload size)
+        buffer.putShort((short) Math.max(512, Math.min(payloadSize, 0xFFFF)));
+        // write extended RCODE, version and flags (all set to 0) (32 bits)
+        buffer.putInt(0);
+        // write RDLENGTH (no options)
+        buffer.putShort((short) 0x0000);
     }
 
     /**
-     * returns the ID of the last query made
+     * creates the header for the DNS query
+     *
+     * @param buffer  The buffer to write data to
+     * @param queryID  The ID to be written
      *
      */
-    public static short getQueryID (){
-        return _iD;
+    public static void createQueryHeader(ByteBuffer buffer, short queryID) {
+        // write 16-bit ID
+        buffer.putShort(queryID);
+        // write QR, Opcode, AA, TC, RD, RA, Z, RCODE (all set to 0) (16 bits)
+        buffer.putShort((short) 0x0000);
+        // write QDCOUNT
+        buffer.putShort((short) 0x0001);
+        // write ANCOUNT, NSCOUNT, ARCOUNT
+        buffer.putShort((short) 0x0000);
+        buffer.putShort((short) 0x0000);
+        buffer.putShort((short) 0x0000);
     }
 
 }
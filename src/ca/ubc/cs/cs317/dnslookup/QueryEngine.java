@@ -0,0 +1,396 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Non-blocking UDP query engine. Queries are sent through a small set of datagram channels,
+ * and a single event loop thread receives the responses and hands each one to the query waiting
+ * for it. Outstanding queries are kept in a table keyed by channel, server address, port, query
+ * ID and question, so any number of queries (from any number of resolutions) may be in flight at
+ * the same time, and a slow server only delays the queries sent to it.
+ *
+ * To make forged responses hard to guess (RFC 5452), each query has a random 16-bit ID and is
+ * sent from a channel picked at random, each bound to a random source port. A channel is only
+ * used for a limited number of queries: it is then replaced by a channel bound to a new random
+ * port, and closed once the queries sent through it are done.
+ */
+public class QueryEngine implements Transport {
+
+    private static final int MAX_MESSAGE_SIZE = 65535;
+    /** Number of channels (source ports) queries are spread over. */
+    public static final int PORT_COUNT = 8;
+    /** Number of queries sent through a channel before it is replaced. */
+    public static final int QUERIES_PER_PORT = 1000;
+    private static final int MIN_PORT = 1024;
+    private static final int BIND_ATTEMPTS = 16;
+
+    private final int payloadSize;
+    // replaced as a whole by the event loop when channels are rotated
+    private volatile Socket[] sockets;
+    // replaced channels, closed once their queries are done; only used by the event loop
+    private final List<Socket> retired = new ArrayList<>();
+    private final Selector selector;
+    private final Thread eventLoop;
+    private final Map<Key, PendingQuery> outstanding = new ConcurrentHashMap<>();
+    private final DelayQueue<PendingQuery> deadlines = new DelayQueue<>();
+    private final Queue<UdpQuery> unsent = new ConcurrentLinkedQueue<>();
+    private final Pool<ByteBuffer> sendBuffers = new Pool<>(() -> ByteBuffer.allocateDirect(Query.MAX_QUERY_SIZE));
+    private volatile boolean closed = false;
+
+    /** Opens the channels used by this engine and starts its event loop. Queries are sent
+     * without an OPT record, so responses are limited to 512 bytes.
+     *
+     * @throws IOException If the channels or selector could not be opened.
+     */
+    public QueryEngine() throws IOException {
+        this(0);
+    }
+
+    /** Opens the channels used by this engine and starts its event loop.
+     *
+     * @param payloadSize Largest UDP response accepted, advertised in an OPT record (EDNS0) in
+     *                    each query, or 0 to send no OPT record.
+     * @throws IOException If the channels or selector could not be opened.
+     */
+    public QueryEngine(int payloadSize) throws IOException {
+        this.payloadSize = payloadSize;
+        selector = Selector.open();
+        Socket[] initial = new Socket[PORT_COUNT];
+        try {
+            for (int i = 0; i < PORT_COUNT; i++)
+                initial[i] = openSocket();
+        } catch (IOException e) {
+            for (Socket socket : initial)
+                if (socket != null)
+                    socket.channel.close();
+            selector.close();
+            throw e;
+        }
+        sockets = initial;
+
+        eventLoop = new Thread(this::run, "dns-query-engine");
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+    }
+
+    /** Sends a query to a server. The returned future is completed with the decoded response
+     * (which may be truncated), or completed exceptionally with a SocketTimeoutException if no
+     * response is received in the specified time, or with an IOException if the query could
+     * not be sent. The query ID is chosen by the engine so that it does not clash with any
+     * other outstanding query to the same server.
+     *
+     * @param server        Address of the server to be queried.
+     * @param port          Port of the server to be queried.
+     * @param question      Host name and record type to be queried.
+     * @param timeoutMillis Time to wait for a response.
+     * @return The outstanding query.
+     */
+    @Override
+    public PendingQuery send(InetAddress server, int port, DNSNode question, long timeoutMillis) {
+        InetSocketAddress address = new InetSocketAddress(server, port);
+        Socket[] current = sockets;
+        Socket socket = current[ThreadLocalRandom.current().nextInt(current.length)];
+        UdpQuery query;
+        Key key;
+        do {
+            short queryID = (short) ThreadLocalRandom.current().nextInt(1 << 16);
+            query = new UdpQuery(address, queryID, question, timeoutMillis, socket);
+            key = new Key(socket, address, queryID, question);
+        } while (outstanding.putIfAbsent(key, query) != null);
+
+        // remove the query from the table however it ends
+        Key registered = key;
+        PendingQuery pending = query;
+        socket.outstanding.incrementAndGet();
+        query.whenComplete((response, ex) -> {
+            outstanding.remove(registered, pending);
+            socket.outstanding.decrementAndGet();
+        });
+        if (socket.sent.incrementAndGet() == QUERIES_PER_PORT)
+            // the event loop replaces the channel
+            selector.wakeup();
+
+        if (closed) {
+            query.completeExceptionally(new ClosedChannelException());
+            return query;
+        }
+
+        deadlines.add(query);
+        if (deadlines.peek() == query)
+            // the event loop may be waiting for a later deadline
+            selector.wakeup();
+        // queries are encoded into reusable buffers, shared by all sending threads
+        ByteBuffer buffer = sendBuffers.acquire();
+        try {
+            buffer.clear();
+            Query.encodeQuery(buffer, question, query.getQueryID(), payloadSize);
+            buffer.flip();
+            if (socket.channel.send(buffer, address) == 0) {
+                // socket buffer is full, let the event loop send a copy when possible
+                buffer.rewind();
+                query.unsentData = ByteBuffer.allocate(buffer.remaining()).put(buffer);
+                query.unsentData.flip();
+                unsent.add(query);
+                selector.wakeup();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            query.completeExceptionally(e);
+        } finally {
+            sendBuffers.release(buffer);
+        }
+        return query;
+    }
+
+    /** Returns the number of queries currently waiting for a response.
+     *
+     * @return The number of outstanding queries.
+     */
+    public int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    private void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_MESSAGE_SIZE);
+        while (!closed) {
+            try {
+                PendingQuery next = deadlines.peek();
+                long wait = next == null ? 0 : Math.max(1, next.getDelay(TimeUnit.MILLISECONDS));
+                selector.select(wait);
+                for (SelectionKey key : selector.selectedKeys())
+                    if (key.isValid() && key.isReadable())
+                        receiveAll((Socket) key.attachment(), buffer);
+                selector.selectedKeys().clear();
+
+                sendUnsent();
+                expire();
+                rotate();
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                if (!closed)
+                    System.err.println("Query engine error (" + e.getMessage() + ").");
+            }
+        }
+    }
+
+    private void receiveAll(Socket socket, ByteBuffer buffer) throws IOException {
+        SocketAddress source;
+        while (true) {
+            buffer.clear();
+            try {
+                source = socket.channel.receive(buffer);
+            } catch (ClosedChannelException e) {
+                // a retired channel closed by close()
+                return;
+            }
+            if (source == null)
+                return;
+            buffer.flip();
+
+            Response response;
+            try {
+                // the response is decoded in place, before the buffer is reused
+                response = Response.decodeResponse(buffer);
+            } catch (IOException | RuntimeException e) {
+                // malformed response; the query it belongs to (if any) will time out
+                continue;
+            }
+            Key key = new Key(socket, (InetSocketAddress) source, response.getID(), response.getQuestion());
+            PendingQuery query = outstanding.get(key);
+            if (query != null) {
+                query.receivedNanos = System.nanoTime();
+                query.complete(response);
+            }
+        }
+    }
+
+    private void sendUnsent() throws IOException {
+        UdpQuery query;
+        while ((query = unsent.peek()) != null) {
+            DatagramChannel channel = query.socket.channel;
+            if (!query.isDone() && channel.isOpen() && channel.send(query.unsentData, query.getServer()) == 0) {
+                query.socket.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            query.unsentData = null;
+            unsent.poll();
+        }
+        for (Socket socket : sockets)
+            socket.key.interestOps(SelectionKey.OP_READ);
+        for (Socket socket : retired)
+            if (socket.key.isValid())
+                socket.key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /** Replaces the channels that have been used for enough queries by channels bound to new
+     * random ports, and closes the replaced channels that have no outstanding queries left.
+     */
+    private void rotate() {
+        Socket[] current = sockets;
+        Socket[] next = null;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].sent.get() < QUERIES_PER_PORT)
+                continue;
+            try {
+                Socket replacement = openSocket();
+                if (next == null)
+                    next = current.clone();
+                retired.add(next[i]);
+                next[i] = replacement;
+            } catch (IOException e) {
+                // keep using the channel for now, and try again later
+                System.err.println("Query engine error (" + e.getMessage() + ").");
+            }
+        }
+        if (next != null)
+            sockets = next;
+
+        for (Iterator<Socket> iterator = retired.iterator(); iterator.hasNext(); ) {
+            Socket socket = iterator.next();
+            if (socket.outstanding.get() > 0)
+                continue;
+            iterator.remove();
+            socket.key.cancel();
+            try {
+                socket.channel.close();
+            } catch (IOException e) {
+                // nothing left to do with the channel
+            }
+        }
+    }
+
+    /** Opens a channel bound to a random port (or, if no random port can be bound, to a port
+     * chosen by the system), and registers it with the selector.
+     */
+    private Socket openSocket() throws IOException {
+        DatagramChannel channel = null;
+        for (int attempt = 0; attempt < BIND_ATTEMPTS && channel == null; attempt++) {
+            channel = DatagramChannel.open();
+            try {
+                channel.bind(new InetSocketAddress(MIN_PORT + ThreadLocalRandom.current().nextInt(0x10000 - MIN_PORT)));
+            } catch (BindException e) {
+                // port in use
+                channel.close();
+                channel = null;
+            }
+        }
+        if (channel == null) {
+            channel = DatagramChannel.open();
+            channel.bind(null);
+        }
+        try {
+            channel.configureBlocking(false);
+            Socket socket = new Socket(channel);
+            socket.key = channel.register(selector, SelectionKey.OP_READ, socket);
+            return socket;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void expire() {
+        PendingQuery query;
+        while ((query = deadlines.poll()) != null)
+            if (!query.isDone())
+                query.completeExceptionally(new SocketTimeoutException("No response from " +
+                        query.getServer().getAddress().getHostAddress()));
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            eventLoop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (PendingQuery query : outstanding.values())
+            query.completeExceptionally(new ClosedChannelException());
+        selector.close();
+        for (Socket socket : sockets)
+            socket.channel.close();
+        for (Socket socket : retired)
+            socket.channel.close();
+    }
+
+    /** A channel queries are sent through, with the number of queries sent through it and not
+     * done yet.
+     */
+    private static final class Socket {
+        private final DatagramChannel channel;
+        private SelectionKey key;
+        private final AtomicInteger sent = new AtomicInteger();
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        Socket(DatagramChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private static final class UdpQuery extends PendingQuery {
+        private final Socket socket;
+
+        UdpQuery(InetSocketAddress server, short queryID, DNSNode question, long timeoutMillis, Socket socket) {
+            super(server, queryID, question, timeoutMillis);
+            this.socket = socket;
+        }
+    }
+
+    /** Identifies an outstanding query: a response is only matched to a query if it is
+     * received on the channel the query was sent through, comes from the same server and port,
+     * and has the same ID and question.
+     */
+    private static final class Key {
+        private final Socket socket;
+        private final InetSocketAddress server;
+        private final short queryID;
+        private final DNSNode question;
+
+        Key(Socket socket, InetSocketAddress server, short queryID, DNSNode question) {
+            this.socket = socket;
+            this.server = server;
+            this.queryID = queryID;
+            this.question = question;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return queryID == key.queryID && socket == key.socket && server.equals(key.server) &&
+                    (question == null ? key.question == null : question.equals(key.question));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = System.identityHashCode(socket);
+            result = 31 * result + server.hashCode();
+            result = 31 * result + queryID;
+            result = 31 * result + (question != null ? question.hashCode() : 0);
+            return result;
+        }
+    }
+}
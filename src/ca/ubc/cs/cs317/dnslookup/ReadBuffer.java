@@ -0,0 +1,79 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/** A lossy buffer of reads, used to record reads without taking a lock on every read. The
+ * buffer is split into stripes, each a small ring buffer; a thread always adds to the same
+ * stripe, so threads reading at the same time rarely touch the same counters. Reads are
+ * dropped when their stripe is full or when another thread is adding to it at the same time,
+ * which only makes the consumer of the reads slightly less precise.
+ *
+ * Items may be added from any thread. The buffer is drained by one thread at a time, e.g.,
+ * while holding the lock that protects the structure the reads are applied to.
+ *
+ * @param <T> Type of the items read.
+ */
+class ReadBuffer<T> {
+
+    private static final int STRIPES =
+            Integer.highestOneBit(Math.min(64, 4 * Runtime.getRuntime().availableProcessors()) - 1) << 1;
+    private static final int STRIPE_SIZE = 16;
+    private static final int STRIPE_MASK = STRIPE_SIZE - 1;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final Stripe<T>[] stripes = new Stripe[STRIPES];
+
+    ReadBuffer() {
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe<>();
+    }
+
+    /** Adds a read to the stripe of the current thread, unless that stripe is full or busy.
+     *
+     * @param item Item read.
+     * @return true if the stripe is full and the buffer should be drained.
+     */
+    boolean offer(T item) {
+        // spread thread IDs over the stripes
+        int hash = (int) Thread.currentThread().getId() * 0x9E3779B9;
+        Stripe<T> stripe = stripes[(hash >>> 16) & (STRIPES - 1)];
+        long writes = stripe.writes.get();
+        long pending = writes - stripe.reads;
+        if (pending >= STRIPE_SIZE)
+            return true;
+        if (!stripe.writes.compareAndSet(writes, writes + 1))
+            return false;
+        stripe.items.lazySet((int) (writes & STRIPE_MASK), item);
+        return pending + 1 == STRIPE_SIZE;
+    }
+
+    /** Removes all the reads from the buffer, passing each one to a consumer. Must not be
+     * called concurrently from more than one thread.
+     *
+     * @param consumer Action performed for each read, in the order of each stripe.
+     */
+    void drainTo(Consumer<T> consumer) {
+        for (Stripe<T> stripe : stripes) {
+            long reads = stripe.reads;
+            long writes = stripe.writes.get();
+            for (; reads < writes; reads++) {
+                int index = (int) (reads & STRIPE_MASK);
+                T item = stripe.items.get(index);
+                // reserved but not stored yet: leave it and the reads after it for next time
+                if (item == null)
+                    break;
+                stripe.items.lazySet(index, null);
+                consumer.accept(item);
+            }
+            stripe.reads = reads;
+        }
+    }
+
+    private static final class Stripe<T> {
+        private final AtomicReferenceArray<T> items = new AtomicReferenceArray<>(STRIPE_SIZE);
+        private final AtomicLong writes = new AtomicLong();
+        private volatile long reads;
+    }
+}
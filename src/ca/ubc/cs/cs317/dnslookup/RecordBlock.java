@@ -0,0 +1,296 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+/** Compact storage for the cached records of one node. The records are packed in flat arrays
+ * of primitives: for each record, its expiration time and original TTL and, for an address
+ * record, the address itself (an IPv4 address as an int, an IPv6 address as two longs). Only
+ * other records (names and textual data) keep a reference, to the string of the record, which
+ * the cache replaces by the one it holds for the name, if any (see DNSCache.addResult).
+ * ResourceRecord objects are only created when the records are read.
+ *
+ * A block is immutable: adding or removing records creates a new block, which the cache swaps
+ * in while holding the lock for the node. Nodes have few records, so copying them is cheap,
+ * and readers always see a consistent set of records without any locking.
+ */
+final class RecordBlock {
+
+    // layouts of the records, chosen by the first record of the block
+    private static final byte IPV4 = 0;
+    private static final byte IPV6 = 1;
+    private static final byte OTHER = 2;
+
+    // estimated memory used by a record, including a share of the per-node overhead (map entry,
+    // key, block and expiry wheel entry), which is counted with each record
+    private static final long RECORD_OVERHEAD = 144;
+    private static final long STRING_OVERHEAD = 48;
+
+    private final byte layout;
+    // per record: the expiration time; the original TTL (low 32 bits) and, for IPv4, the
+    // address (high 32 bits); and, for IPv6, the two halves of the address
+    private final long[] words;
+    // per record, for the OTHER layout: the textual result, or the address if there is one
+    private final Object[] values;
+
+    private RecordBlock(byte layout, long[] words, Object[] values) {
+        this.layout = layout;
+        this.words = words;
+        this.values = values;
+    }
+
+    /** Returns a block holding a single record. */
+    static RecordBlock of(ResourceRecord record) {
+        InetAddress address = record.getInetResult();
+        byte layout = address instanceof Inet4Address ? IPV4 : isPlainIPv6(address) ? IPV6 : OTHER;
+        RecordBlock empty = new RecordBlock(layout, new long[0], layout == OTHER ? new Object[0] : null);
+        return empty.with(record, -1);
+    }
+
+    /** Returns a block holding a list of records, built in one pass. The records must all
+     * belong to the same node, and no two of them may be equivalent.
+     */
+    static RecordBlock of(List<ResourceRecord> records) {
+        boolean ipv4 = true, ipv6 = true;
+        for (ResourceRecord record : records) {
+            InetAddress address = record.getInetResult();
+            ipv4 &= address instanceof Inet4Address;
+            ipv6 &= isPlainIPv6(address);
+        }
+        byte layout = ipv4 ? IPV4 : ipv6 ? IPV6 : OTHER;
+        long[] words = new long[records.size() * (layout == IPV6 ? 4 : 2)];
+        Object[] values = layout == OTHER ? new Object[records.size()] : null;
+        for (int i = 0; i < records.size(); i++)
+            put(layout, words, values, i, records.get(i));
+        return new RecordBlock(layout, words, values);
+    }
+
+    /** Returns the number of records in the block. */
+    int size() {
+        return words.length / stride();
+    }
+
+    /** Returns the expiration time of a record, as a time of the CoarseClock. */
+    long getExpirationTime(int index) {
+        return words[index * stride()];
+    }
+
+    /** Returns the TTL of a record when it was received, in seconds. */
+    long getOriginalTTL(int index) {
+        return words[index * stride() + 1] & 0xFFFFFFFFL;
+    }
+
+    /** Returns the earliest expiration time of the records in the block. */
+    long getEarliestExpiration() {
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < words.length; i += stride())
+            earliest = Math.min(earliest, words[i]);
+        return earliest;
+    }
+
+    /** Returns the next time when a record of the block expires, or, if it is already expired,
+     * when it leaves the stale window.
+     */
+    long getNextExpiration(long now, long staleWindowMillis) {
+        long next = Long.MAX_VALUE;
+        for (int i = 0; i < words.length; i += stride())
+            next = Math.min(next, words[i] > now ? words[i] : words[i] + staleWindowMillis);
+        return next;
+    }
+
+    /** Returns the index of the record equivalent to a record (same data, regardless of the
+     * TTL), or -1 if the block has none. The record must belong to the node of the block.
+     */
+    int indexOf(ResourceRecord record) {
+        InetAddress address = record.getInetResult();
+        switch (layout) {
+            case IPV4:
+                if (!(address instanceof Inet4Address))
+                    return -1;
+                long ipv4 = (long) toInt(address.getAddress()) << 32;
+                for (int i = 1, index = 0; i < words.length; i += 2, index++)
+                    if ((words[i] & 0xFFFFFFFF00000000L) == ipv4)
+                        return index;
+                return -1;
+            case IPV6:
+                if (!isPlainIPv6(address))
+                    return -1;
+                byte[] bytes = address.getAddress();
+                long high = toLong(bytes, 0), low = toLong(bytes, 8);
+                for (int i = 2, index = 0; i < words.length; i += 4, index++)
+                    if (words[i] == high && words[i + 1] == low)
+                        return index;
+                return -1;
+            default:
+                Object value = address != null ? address : record.getTextResult();
+                for (int i = 0; i < values.length; i++)
+                    if (values[i].equals(value))
+                        return i;
+                return -1;
+        }
+    }
+
+    /** Returns a block with a record added, or replacing the record at an index.
+     *
+     * @param record Record to be added.
+     * @param index  Index of the equivalent record to be replaced, or -1 to add the record.
+     * @return The new block.
+     */
+    RecordBlock with(ResourceRecord record, int index) {
+        InetAddress address = record.getInetResult();
+        if (layout == IPV4 && !(address instanceof Inet4Address) || layout == IPV6 && !isPlainIPv6(address))
+            return toOther().with(record, index);
+
+        int stride = stride();
+        int position = index >= 0 ? index : size();
+        long[] newWords = index >= 0 ? words.clone() : Arrays.copyOf(words, words.length + stride);
+        Object[] newValues = layout != OTHER ? null :
+                index >= 0 ? values.clone() : Arrays.copyOf(values, values.length + 1);
+        put(layout, newWords, newValues, position, record);
+        return new RecordBlock(layout, newWords, newValues);
+    }
+
+    /** Returns a block without the records that expire at or before a time.
+     *
+     * @param time Time, as a time of the CoarseClock.
+     * @return The remaining records: this block if none is removed, or null if all are.
+     */
+    RecordBlock withoutExpired(long time) {
+        int stride = stride();
+        int remaining = 0;
+        for (int i = 0; i < words.length; i += stride)
+            if (words[i] > time)
+                remaining++;
+        if (remaining == size())
+            return this;
+        if (remaining == 0)
+            return null;
+
+        long[] newWords = new long[remaining * stride];
+        Object[] newValues = values == null ? null : new Object[remaining];
+        for (int i = 0, kept = 0; i < words.length; i += stride) {
+            if (words[i] <= time)
+                continue;
+            System.arraycopy(words, i, newWords, kept * stride, stride);
+            if (newValues != null)
+                newValues[kept] = values[i / stride];
+            kept++;
+        }
+        return new RecordBlock(layout, newWords, newValues);
+    }
+
+    /** Returns a record of the block, as a new ResourceRecord of a node. */
+    ResourceRecord get(DNSNode node, int index) {
+        int offset = index * stride();
+        long expirationTime = words[offset];
+        long originalTTL = words[offset + 1] & 0xFFFFFFFFL;
+        switch (layout) {
+            case IPV4:
+                int ipv4 = (int) (words[offset + 1] >>> 32);
+                byte[] bytes = {(byte) (ipv4 >>> 24), (byte) (ipv4 >>> 16), (byte) (ipv4 >>> 8), (byte) ipv4};
+                return new ResourceRecord(node, originalTTL, expirationTime, null, toAddress(bytes));
+            case IPV6:
+                bytes = new byte[16];
+                for (int i = 0; i < 8; i++) {
+                    bytes[i] = (byte) (words[offset + 2] >>> (56 - 8 * i));
+                    bytes[i + 8] = (byte) (words[offset + 3] >>> (56 - 8 * i));
+                }
+                return new ResourceRecord(node, originalTTL, expirationTime, null, toAddress(bytes));
+            default:
+                Object value = values[index];
+                if (value instanceof InetAddress)
+                    return new ResourceRecord(node, originalTTL, expirationTime, null, (InetAddress) value);
+                return new ResourceRecord(node, originalTTL, expirationTime, (String) value, null);
+        }
+    }
+
+    /** Returns an estimate of the memory used by a record of the block, in bytes. */
+    long estimateSize(int index) {
+        switch (layout) {
+            case IPV4:
+                return RECORD_OVERHEAD + 16;
+            case IPV6:
+                return RECORD_OVERHEAD + 32;
+            default:
+                Object value = values[index];
+                long size = value instanceof String ? STRING_OVERHEAD + ((String) value).length() : 64;
+                return RECORD_OVERHEAD + 16 + 4 + size;
+        }
+    }
+
+    /** Returns an estimate of the memory used by all records of the block, in bytes. */
+    long estimateSize() {
+        long size = 0;
+        for (int i = 0, count = size(); i < count; i++)
+            size += estimateSize(i);
+        return size;
+    }
+
+    private int stride() {
+        return layout == IPV6 ? 4 : 2;
+    }
+
+    /** Returns a copy of the block in the OTHER layout, e.g., to add a record whose address
+     * doesn't fit the layout of the other records.
+     */
+    private RecordBlock toOther() {
+        int count = size();
+        long[] newWords = new long[count * 2];
+        Object[] newValues = new Object[count];
+        for (int i = 0; i < count; i++) {
+            newWords[2 * i] = getExpirationTime(i);
+            newWords[2 * i + 1] = getOriginalTTL(i);
+            newValues[i] = get(null, i).getInetResult();
+        }
+        return new RecordBlock(OTHER, newWords, newValues);
+    }
+
+    /** Stores a record at a position of the arrays of a block, which must fit the layout. */
+    private static void put(byte layout, long[] words, Object[] values, int position, ResourceRecord record) {
+        InetAddress address = record.getInetResult();
+        int offset = position * (layout == IPV6 ? 4 : 2);
+        words[offset] = record.getExpirationTime();
+        words[offset + 1] = Math.max(0, Math.min(record.getOriginalTTL(), 0xFFFFFFFFL));
+        switch (layout) {
+            case IPV4:
+                words[offset + 1] |= (long) toInt(address.getAddress()) << 32;
+                break;
+            case IPV6:
+                byte[] bytes = address.getAddress();
+                words[offset + 2] = toLong(bytes, 0);
+                words[offset + 3] = toLong(bytes, 8);
+                break;
+            default:
+                values[position] = address != null ? address : record.getTextResult();
+        }
+    }
+
+    private static boolean isPlainIPv6(InetAddress address) {
+        return address instanceof Inet6Address && ((Inet6Address) address).getScopeId() == 0 &&
+                ((Inet6Address) address).getScopedInterface() == null;
+    }
+
+    private static int toInt(byte[] bytes) {
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = value << 8 | (bytes[offset + i] & 0xFF);
+        return value;
+    }
+
+    private static InetAddress toAddress(byte[] bytes) {
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // only thrown for arrays of an invalid length
+            throw new IllegalStateException(e);
+        }
+    }
+}
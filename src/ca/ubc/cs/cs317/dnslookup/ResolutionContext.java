@@ -0,0 +1,135 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** A resolution context holds all the state associated to a single top-level lookup: the query
+ * originally requested by the user, the current level of CNAME indirection, its deadline, the
+ * response code of its outcome and the set of servers currently being queried. Since no
+ * resolution state is kept in static fields, several resolutions may run at the same time
+ * (e.g., in different threads), each with its own context, sharing only the DNS cache.
+ *
+ * A resolution may start sub-resolutions, e.g., to find the address of a name server for which
+ * no glue record was provided. Each sub-resolution has its own context, linked to the context
+ * that started it, with its own indirection level. Linked contexts are used to detect loops (a
+ * sub-resolution for a query that one of its ancestors is already resolving) and to limit how
+ * deeply sub-resolutions may be nested.
+ */
+public class ResolutionContext {
+
+    private final DNSNode query;
+    private final ResolutionContext parent;
+    private final int depth;
+    private final long deadlineNanos;
+    private int indirectionLevel = 0;
+    private int rcode = ResponseEncoder.RCODE_SERVER_FAILURE;
+    private List<InetAddress> servers = Collections.emptyList();
+
+    /** Creates a new context for a resolution of the specified query.
+     *
+     * @param query        Host name and record type originally requested.
+     * @param budgetMillis Maximum time the whole resolution may take.
+     */
+    public ResolutionContext(DNSNode query, long budgetMillis) {
+        this.query = query;
+        this.parent = null;
+        this.depth = 0;
+        this.deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+    }
+
+    private ResolutionContext(DNSNode query, ResolutionContext parent) {
+        this.query = query;
+        this.parent = parent;
+        this.depth = parent.depth + 1;
+        this.deadlineNanos = parent.deadlineNanos;
+    }
+
+    /** Returns how much time is left before this resolution should give up. A sub-resolution
+     * has the same deadline as the resolution that started it.
+     *
+     * @return The remaining time in microseconds, or 0 if the deadline has passed.
+     */
+    public long getRemainingMicros() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMicros(deadlineNanos - System.nanoTime()));
+    }
+
+    /** Creates the context for a sub-resolution started by this resolution.
+     *
+     * @param query Host name and record type to be resolved by the sub-resolution.
+     * @return The context of the sub-resolution.
+     */
+    public ResolutionContext createSubResolution(DNSNode query) {
+        return new ResolutionContext(query, this);
+    }
+
+    public DNSNode getQuery() {
+        return query;
+    }
+
+    /** Returns how deeply this resolution is nested: 0 for a top-level resolution, 1 for a
+     * sub-resolution started by a top-level resolution, and so on.
+     *
+     * @return The nesting depth of this resolution.
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /** Returns true if a query is being resolved by this resolution or by one of the
+     * resolutions that (directly or indirectly) started it. Starting a sub-resolution for such
+     * a query would result in a loop.
+     *
+     * @param node Host name and record type to be checked.
+     * @return true if the query is already in progress in this chain of resolutions.
+     */
+    public boolean isInProgress(DNSNode node) {
+        for (ResolutionContext context = this; context != null; context = context.parent)
+            if (context.query.equals(node))
+                return true;
+        return false;
+    }
+
+    public int getIndirectionLevel() {
+        return indirectionLevel;
+    }
+
+    /** Marks the start of a lookup that is the result of an indirection (e.g., following a CNAME
+     * or finding the address of a name server). Must be paired with a call to leaveIndirection.
+     *
+     * @return The new indirection level.
+     */
+    public int enterIndirection() {
+        return ++indirectionLevel;
+    }
+
+    public void leaveIndirection() {
+        indirectionLevel--;
+    }
+
+    /** Returns the response code that ended the last lookup of this resolution (after any
+     * CNAME records were followed): no error, a name error, or a server failure if no final
+     * response was obtained.
+     */
+    public int getRCODE() {
+        return rcode;
+    }
+
+    public void setRCODE(int rcode) {
+        this.rcode = rcode;
+    }
+
+    /** Returns the set of servers (usually the name servers of a single zone) currently being
+     * used to resolve the query. Servers are listed in the order they should be tried.
+     *
+     * @return An unmodifiable list of server addresses.
+     */
+    public List<InetAddress> getServers() {
+        return servers;
+    }
+
+    public void setServers(List<InetAddress> servers) {
+        this.servers = Collections.unmodifiableList(servers);
+    }
+}
@@ -0,0 +1,13 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+/** Thrown when a lookup can't be completed, e.g., because it follows too many CNAME records.
+ * The future of such a lookup is completed exceptionally, with this exception as its cause.
+ */
+public class ResolutionException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ResolutionException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,32 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Set;
+
+/** The outcome of a lookup: its records, and the response code of the DNS response that ended
+ * it, which tells why a lookup without records has none.
+ */
+public class ResolutionResult {
+
+    private final Set<ResourceRecord> records;
+    private final int rcode;
+
+    /** Creates the outcome of a lookup.
+     *
+     * @param records Records found (possibly stale).
+     * @param rcode   Response code (see ResponseEncoder): no error if there are records, or if
+     *                the name exists but has no records of the type (NODATA); name error if the
+     *                name does not exist; server failure if no answer could be obtained.
+     */
+    public ResolutionResult(Set<ResourceRecord> records, int rcode) {
+        this.records = records;
+        this.rcode = rcode;
+    }
+
+    public Set<ResourceRecord> getRecords() {
+        return records;
+    }
+
+    public int getRCODE() {
+        return rcode;
+    }
+}
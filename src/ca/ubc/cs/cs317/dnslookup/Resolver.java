@@ -0,0 +1,79 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/** A resolver finds the resource records for DNS queries, without blocking the caller: every
+ * lookup returns a future that is completed once the records are known. A lookup for which no
+ * record can be found (the name does not exist, or no name server responded in time) is
+ * completed with an empty set; a lookup that can't be completed (e.g., a chain of too many CNAME
+ * records) is completed exceptionally with a ResolutionException.
+ */
+public interface Resolver extends Closeable {
+
+    /** Looks up the records for a query.
+     *
+     * @param node Host name and record type to look up.
+     * @return A future completed with the (potentially empty) set of records for the query.
+     */
+    CompletableFuture<Set<ResourceRecord>> resolve(DNSNode node);
+
+    /** Looks up the records for a query, along with the response code that ended the lookup,
+     * e.g., to tell a name that does not exist from a name with no records of the type.
+     *
+     * @param node Host name and record type to look up.
+     * @return A future completed with the outcome of the lookup.
+     */
+    CompletableFuture<ResolutionResult> lookup(DNSNode node);
+
+    /** Looks up the records of a specific type for a host name.
+     *
+     * @param hostName Host name to look up.
+     * @param type     Type of the records to look up.
+     * @return A future completed with the (potentially empty) set of records for the query.
+     */
+    default CompletableFuture<Set<ResourceRecord>> resolve(String hostName, RecordType type) {
+        return resolve(new DNSNode(hostName, type));
+    }
+
+    /** Looks up the records for several queries at the same time.
+     *
+     * @param nodes Host names and record types to look up. Duplicates are looked up once.
+     * @return A future completed, once all queries are done, with the (potentially empty) set
+     *         of records for each query, in the order of the queries.
+     */
+    default CompletableFuture<Map<DNSNode, Set<ResourceRecord>>> resolveAll(Collection<DNSNode> nodes) {
+        Map<DNSNode, CompletableFuture<Set<ResourceRecord>>> lookups = new LinkedHashMap<>();
+        for (DNSNode node : nodes)
+            lookups.computeIfAbsent(node, this::resolve);
+        return CompletableFuture.allOf(lookups.values().toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> {
+                    Map<DNSNode, Set<ResourceRecord>> results = new LinkedHashMap<>();
+                    lookups.forEach((node, lookup) -> results.put(node, lookup.join()));
+                    return results;
+                });
+    }
+
+    /** Looks up the records of a specific type for several host names at the same time.
+     *
+     * @param type      Type of the records to look up.
+     * @param hostNames Host names to look up.
+     * @return A future completed, once all queries are done, with the (potentially empty) set
+     *         of records for each query, in the order of the host names.
+     */
+    default CompletableFuture<Map<DNSNode, Set<ResourceRecord>>> resolveAll(RecordType type,
+                                                                           Collection<String> hostNames) {
+        Map<DNSNode, Boolean> nodes = new LinkedHashMap<>();
+        for (String hostName : hostNames)
+            nodes.put(new DNSNode(hostName, type), Boolean.TRUE);
+        return resolveAll(nodes.keySet());
+    }
+
+    /** Stops the resolver. Lookups that have not completed yet may never complete. */
+    @Override
+    void close();
+}
@@ -2,32 +2,64 @@ package ca.ubc.cs.cs317.dnslookup;
 
 import java.io.Serializable;
 import java.net.InetAddress;
-import java.util.Date;
 
 /** A resource record corresponds to each individual result returned by a DNS response. It links
  * a DNS node (host name and record type) to either an IP address (e.g., A or AAAA records) or
  * a textual response (e.g., CNAME or NS records). A TTL (time-to-live) field is also specified,
- * and is represented by an expiration time calculated as a delta from the current time.
+ * and is represented by an expiration time calculated as a delta from the current time. The
+ * expiration time is kept as a time of the CoarseClock, so checking whether a record is still
+ * valid only compares two numbers.
  */
 public class ResourceRecord implements Serializable {
 
     private DNSNode node;
-    private Date expirationTime;
+    private long expirationTime;
+    private long originalTTL;
     private String textResult;
     private InetAddress inetResult;
 
     public ResourceRecord(String hostName, RecordType type, long ttl, String result) {
         this.node = new DNSNode(hostName, type);
-        this.expirationTime = new Date(System.currentTimeMillis() + (ttl * 1000));
+        this.expirationTime = CoarseClock.now() + (ttl * 1000);
+        this.originalTTL = ttl;
         this.textResult = result;
         this.inetResult = null;
     }
 
     public ResourceRecord(String hostName, RecordType type, long ttl, InetAddress result) {
-        this(hostName, type, ttl, result.getHostAddress());
+        this(hostName, type, ttl, (String) null);
         this.inetResult = result;
     }
 
+    /** Creates a record of an existing node, e.g., to read a record kept in a more compact form.
+     * The textual result of an address record may be null; it is then obtained from the address
+     * when first used.
+     */
+    ResourceRecord(DNSNode node, long originalTTL, long expirationTime, String textResult, InetAddress inetResult) {
+        this.node = node;
+        this.expirationTime = expirationTime;
+        this.originalTTL = originalTTL;
+        this.textResult = textResult;
+        this.inetResult = inetResult;
+    }
+
+    /** Creates a record that expires at a specific time rather than after a TTL, e.g., to
+     * restore a record saved earlier.
+     *
+     * @param hostName       Host name of the record.
+     * @param type           Type of the record.
+     * @param originalTTL    TTL obtained from the DNS server when the record was first created.
+     * @param expirationTime Time when the record expires, as a time of the CoarseClock.
+     * @param textResult     Textual result of the record.
+     * @param inetResult     Address result of the record, or null if it has none.
+     * @return The new record.
+     */
+    static ResourceRecord expiringAt(String hostName, RecordType type, long originalTTL, long expirationTime,
+                                     String textResult, InetAddress inetResult) {
+        return new ResourceRecord(new DNSNode(hostName, type), originalTTL, expirationTime,
+                inetResult != null ? null : textResult, inetResult);
+    }
+
     public DNSNode getNode() {
         return node;
     }
@@ -48,7 +80,15 @@ public class ResourceRecord implements Serializable {
      * @return The number of seconds, rounded up, until this record expires.
      */
     public long getTTL() {
-        return (expirationTime.getTime() - System.currentTimeMillis() + 999) / 1000;
+        return (expirationTime - CoarseClock.now() + 999) / 1000;
+    }
+
+    /** Returns the TTL obtained from the DNS server when this record was created.
+     *
+     * @return The original TTL of this record, in seconds.
+     */
+    public long getOriginalTTL() {
+        return originalTTL;
     }
 
     /** Returns true if this record has not expired yet, and false otherwise. An expired record
@@ -58,7 +98,7 @@ public class ResourceRecord implements Serializable {
      * @return true if this record has not expired yet, and false otherwise.
      */
     public boolean isStillValid() {
-        return expirationTime.after(new Date());
+        return expirationTime > CoarseClock.now();
     }
 
     /** Returns true if this record expires before another record. This method may be used to
@@ -70,11 +110,27 @@ public class ResourceRecord implements Serializable {
      * @return true if this record expires before the parameter record, or false otherwise.
      */
     public boolean expiresBefore(ResourceRecord record) {
-        return this.expirationTime.before(record.expirationTime);
+        return this.expirationTime < record.expirationTime;
+    }
+
+    /** Returns the time when this record expires, as a time of the CoarseClock.
+     *
+     * @return The expiration time of this record.
+     */
+    public long getExpirationTime() {
+        return expirationTime;
     }
 
+    /** Returns the textual result of this record. For an address record, this is the address
+     * in textual form, which is only computed when first needed.
+     *
+     * @return The textual result of this record.
+     */
     public String getTextResult() {
-        return textResult;
+        String text = textResult;
+        if (text == null && inetResult != null)
+            textResult = text = inetResult.getHostAddress();
+        return text;
     }
 
     public InetAddress getInetResult() {
@@ -89,14 +145,16 @@ public class ResourceRecord implements Serializable {
         ResourceRecord record = (ResourceRecord) o;
 
         if (!node.equals(record.node)) return false;
-        if (!textResult.equals(record.textResult)) return false;
-        return inetResult != null ? inetResult.equals(record.inetResult) : record.inetResult == null;
+        // the textual result of an address record is derived from the address
+        if (inetResult != null || record.inetResult != null)
+            return inetResult != null && inetResult.equals(record.inetResult);
+        return textResult.equals(record.textResult);
     }
 
     @Override
     public int hashCode() {
         int result = node.hashCode();
-        result = 31 * result + textResult.hashCode();
+        result = 31 * result + (inetResult != null ? inetResult.hashCode() : textResult.hashCode());
         return result;
     }
 }
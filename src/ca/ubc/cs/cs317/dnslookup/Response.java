@@ -1,196 +1,452 @@
 package ca.ubc.cs.cs317.dnslookup;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
 public class Response {
-    private static int _offset;
-    private static Response instance = new Response();
-    private static ByteArrayInputStream _byteArrayInputStream;
-    private static DataInputStream _dataInputStream;
-    private static DatagramPacket _datagramPacket;
-    public static boolean inAnswers = false;
-    public static Boolean _AA;
+    private static final int HEADER_SIZE = 12;
+    private static final int MAX_NAME_LENGTH = 255;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
 
-    public static Response getInstance() { return instance; }
+    // the message is read in place using absolute indexes; position is the next byte to read
+    private final ByteBuffer buffer;
+    private final int start;
+    private final int limit;
+    private int position;
+    private final StringBuilder nameBuilder = new StringBuilder(64);
+
+    private short iD;
+    private boolean _QR;
+    private int opcode;
+    private boolean _AA;
+    private boolean _TC;
+    private boolean _RD;
+    private int RCODE;
+    private int payloadSize = -1;
+    private int ednsVersion;
+    private DNSNode question;
+    private String questionName;
+    private long negativeTTL = -1;
+    private long soaMinimum;
+    private final List<ResourceRecord> answers = new ArrayList<>();
+    private final List<ResourceRecord> nameservers = new ArrayList<>();
+    private final List<ResourceRecord> additional = new ArrayList<>();
+
+    private Response(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.start = buffer.position();
+        this.limit = buffer.limit();
+        this.position = start;
+    }
 
     /**
      * decodes the DNS response
      *
-     * @param datagramResponsePacket  the datagram packet
+     * @param data  the content of the datagram packet
      *
      */
-    public static  List<ResourceRecord> decodeResponse(DatagramPacket datagramResponsePacket) throws IOException {
-        // setup global variables
-         _byteArrayInputStream = new ByteArrayInputStream(datagramResponsePacket.getData());
-         _dataInputStream = new DataInputStream(_byteArrayInputStream);
-         _datagramPacket = datagramResponsePacket;
-         _offset = 0;
-         _AA = false;
-        List<ResourceRecord> recordsList = new ArrayList<>();
+    public static Response decodeResponse(byte[] data) throws IOException {
+        return decodeResponse(ByteBuffer.wrap(data));
+    }
 
-        // read the response id
-        short iD = _dataInputStream.readShort();
-        _offset += 2;
+    /**
+     * decodes the DNS response between the position and the limit of the buffer. The buffer is
+     * read in place and is left unchanged, so it can be reused as soon as this method returns.
+     *
+     * @param message  the buffer containing the message (up to 64 KB)
+     *
+     */
+    public static Response decodeResponse(ByteBuffer message) throws IOException {
+        Response response = new Response(message);
+        response.decode();
+        return response;
+    }
 
-        if(iD != Query.getQueryID())
-            throw new IOException("IDs do not match");
+    private void decode() throws IOException {
+        require(HEADER_SIZE);
+        iD = buffer.getShort(start);
 
-        byte header = _dataInputStream.readByte();
-        _offset ++;
+        int flags = buffer.getShort(start + 2) & 0xFFFF;
+        _QR = (flags & 0x8000) != 0;
+        opcode = (flags >> 11) & 0x000F;
         // get the AA
-        _AA = ((header >> 2) & 1) > 0;
+        _AA = (flags & 0x0400) != 0;
+        _TC = (flags & 0x0200) != 0;
+        _RD = (flags & 0x0100) != 0;
+        RCODE = flags & 0x000F;
 
-        header = _dataInputStream.readByte();
-        _offset ++;
-        int RCODE = header & 15;
+        int QDCOUNT = buffer.getShort(start + 4) & 0xFFFF;
+        int ANCOUNT = buffer.getShort(start + 6) & 0xFFFF;
+        int NSCOUNT = buffer.getShort(start + 8) & 0xFFFF;
+        int ARCOUNT = buffer.getShort(start + 10) & 0xFFFF;
+        position = start + HEADER_SIZE;
 
-        if(RCODE == 3 || RCODE == 5) {
-            throw new IOException("Error Code");
+        for (int i = 0; i < QDCOUNT; i++) {
+            // keep the first question, to match the response to its query
+            String name = getName();
+            require(4);
+            int qtype = buffer.getShort(position) & 0xFFFF;
+            position += 4;
+            if (question == null) {
+                questionName = name;
+                question = new DNSNode(name, RecordType.getByCode(qtype));
+            }
         }
 
-        if(DNSLookupService.isVerboseTracing()) {
-            System.out.println("Response ID: " + iD + " Authoritative = " + _AA);
-        }
+        // the records of a truncated response may be cut anywhere, and are not used: the
+        // complete response is obtained over TCP
+        if (_TC)
+            return;
 
-        int QDCOUNT = _dataInputStream.readShort();
-        _offset += 2;
-        int ANCOUNT = _dataInputStream.readShort();
-        _offset += 2;
-        int NSCOUNT = _dataInputStream.readShort();
-        _offset += 2;
-        int ARCOUNT = _dataInputStream.readShort();
-        _offset += 2;
+        for (int i = 0; i < ANCOUNT; i++)
+            addResourceRecord(answers);
 
-        for (int i = 0; i < QDCOUNT; i++) {
-            // skipping over questions
-            getName();
-            _dataInputStream.readShort();
-            _offset += 2;
-            _dataInputStream.readShort();
-            _offset += 2;
+        for (int i = 0; i < NSCOUNT; i++) {
+            ResourceRecord record = addResourceRecord(nameservers);
+            if (record == null)
+                continue;
+            // negative answers are cached for the lesser of the SOA's TTL and MINIMUM (RFC 2308)
+            if (record.getType() == RecordType.SOA && negativeTTL < 0)
+                negativeTTL = Math.min(record.getTTL(), soaMinimum);
         }
 
-        if(DNSLookupService.isVerboseTracing()) {
-            System.out.println("  Answers (" + ANCOUNT + ")");
-        }
-        for (int i = 0; i < ANCOUNT; i++) {
-            inAnswers = true;
-            ResourceRecord temp = getResourceRecord();
-            recordsList.add(temp);
-            DNSLookupService.verbosePrintResourceRecord(temp, temp.getType().getCode());
-        }
+        for (int i = 0; i < ARCOUNT; i++)
+            addResourceRecord(additional);
+    }
 
-        inAnswers = false;
+    /**
+     * returns the ID of the response
+     *
+     */
+    public short getID() {
+        return iD;
+    }
 
-        if(DNSLookupService.isVerboseTracing()) {
-            System.out.println("  Nameservers  (" + NSCOUNT + ")");
-        }
-        for (int i = 0; i < NSCOUNT; i++) {
-            ResourceRecord temp = getResourceRecord();
-            recordsList.add(temp);
-            DNSLookupService.verbosePrintResourceRecord(temp, temp.getType().getCode());
-        }
+    /**
+     * returns the (first) question in the response, or null if there is none
+     *
+     */
+    public DNSNode getQuestion() {
+        return question;
+    }
 
-        if(DNSLookupService.isVerboseTracing()) {
-            System.out.println("  Additional Information (" + ARCOUNT + ")");
-        }
-        for (int i = 0; i < ARCOUNT; i++) {
-            ResourceRecord temp = getResourceRecord();
-            recordsList.add(temp);
-            DNSLookupService.verbosePrintResourceRecord(temp, temp.getType().getCode());
-        }
+    /**
+     * returns the host name in the (first) question exactly as it appears in the message, i.e.,
+     * without changing its case, or null if there is no question
+     *
+     */
+    public String getQuestionName() {
+        return questionName;
+    }
 
-        return recordsList;
+    /**
+     * returns true if the message is a query rather than a response (the QR bit is not set)
+     *
+     */
+    public boolean isQuery() {
+        return !_QR;
     }
 
     /**
-     * returns a name read from the DNS response
+     * returns the kind of query (0 for a standard query)
      *
-     * @return String
+     */
+    public int getOpcode() {
+        return opcode;
+    }
+
+    /**
+     * returns true if the query asks for the name to be resolved recursively (the RD bit)
      *
      */
-    private static String getName() throws IOException{
-        int ptr = _dataInputStream.readByte();
-        _offset ++;
-        StringBuilder name = new StringBuilder();
+    public boolean isRecursionDesired() {
+        return _RD;
+    }
 
-        while(ptr != 0) {
-            if(ptr < 0) {//pointer
-                _offset ++;
-                int offsetTemp = _dataInputStream.readByte();
+    /**
+     * returns true if the message was truncated to fit in a UDP datagram (the TC bit), so the
+     * complete message must be obtained over TCP. Only the header and question of a truncated
+     * message are decoded.
+     *
+     */
+    public boolean isTruncated() {
+        return _TC;
+    }
 
-                // get back to beginning of input stream
-                _byteArrayInputStream = new ByteArrayInputStream(_datagramPacket.getData());
-                _dataInputStream = new DataInputStream(_byteArrayInputStream);
+    /**
+     * returns true if the message has an OPT record (EDNS0)
+     *
+     */
+    public boolean hasEDNS() {
+        return payloadSize >= 0;
+    }
 
-                // skip to offsetTemp
-                _dataInputStream.skipBytes(offsetTemp);
+    /**
+     * returns the largest UDP message the sender accepts: the size in its OPT record, or 512
+     * if there is none
+     *
+     */
+    public int getUDPPayloadSize() {
+        return Math.max(512, payloadSize);
+    }
 
-                int currentOffset = _offset;
-                // get name at offset
-                name.append(getName());
+    /**
+     * returns the EDNS version in the OPT record, or -1 if there is none
+     *
+     */
+    public int getEDNSVersion() {
+        return hasEDNS() ? ednsVersion : -1;
+    }
 
-                // reset the stream to previous place
-                _byteArrayInputStream = new ByteArrayInputStream(_datagramPacket.getData());
-                _dataInputStream = new DataInputStream(_byteArrayInputStream);
-                 _dataInputStream.skipBytes(currentOffset);
+    /**
+     * returns the response code (0 for no error, 3 for a name that does not exist, etc.),
+     * including the upper bits of the extended response code in the OPT record, if any
+     *
+     */
+    public int getRCODE() {
+        return RCODE;
+    }
 
-                 _offset = currentOffset;
-                return name.toString();
-            }
+    /**
+     * returns how long (in seconds) a negative answer in this response may be cached, based on
+     * the SOA record in the authority section, or -1 if there is no SOA record
+     *
+     */
+    public long getNegativeTTL() {
+        return negativeTTL;
+    }
+
+    /**
+     * returns true if this response says the name in the question does not exist
+     *
+     */
+    public boolean isNameError() {
+        return RCODE == 3;
+    }
 
-            while(ptr > 0) {
-                int temp = _dataInputStream.readByte();
-                _offset ++;
-                name.append((char) temp);
-                ptr--;
+    /**
+     * returns true if this response is a referral to the name servers of another zone
+     *
+     */
+    public boolean isReferral() {
+        if (_AA || !answers.isEmpty())
+            return false;
+        for (ResourceRecord record : nameservers)
+            if (record.getType() == RecordType.NS)
+                return true;
+        return false;
+    }
+
+    /**
+     * returns true if this response is a final negative answer for the question: either the
+     * name does not exist, or it has no records of the requested type
+     *
+     */
+    public boolean isNegative() {
+        return answers.isEmpty() && (RCODE == 3 || (RCODE == 0 && !isReferral()));
+    }
+
+    /**
+     * returns true if the response was flagged as authoritative
+     *
+     */
+    public boolean isAuthoritative() {
+        return _AA;
+    }
+
+    public List<ResourceRecord> getAnswers() {
+        return answers;
+    }
+
+    public List<ResourceRecord> getNameservers() {
+        return nameservers;
+    }
+
+    public List<ResourceRecord> getAdditional() {
+        return additional;
+    }
+
+    /**
+     * returns all records in the response, in the order they appear in the message
+     *
+     */
+    public List<ResourceRecord> getRecords() {
+        List<ResourceRecord> recordsList = new ArrayList<>(answers.size() + nameservers.size() + additional.size());
+        recordsList.addAll(answers);
+        recordsList.addAll(nameservers);
+        recordsList.addAll(additional);
+        return recordsList;
+    }
+
+    /**
+     * returns a name read from the DNS response at the current position, and moves the position
+     * past it. Compression pointers (14-bit offsets from the start of the message) are followed
+     * in place; a pointer must point before the label it appears in, so pointer loops are
+     * rejected.
+     *
+     * @return String
+     *
+     */
+    private String getName() throws IOException {
+        nameBuilder.setLength(0);
+        int index = position;
+        int end = -1;
+        // length of the name on the wire, counting the length octets and the root label
+        int length = 1;
+        // a pointer must point strictly before this index, so every jump goes backwards
+        int pointerLimit = index;
+
+        while (true) {
+            checkIndex(index, 1);
+            int len = buffer.get(index) & 0xFF;
+
+            if ((len & 0xC0) == 0xC0) { // pointer
+                checkIndex(index, 2);
+                int target = start + (buffer.getShort(index) & 0x3FFF);
+                if (target >= pointerLimit)
+                    throw new IOException("Invalid compression pointer at offset " + (index - start));
+                if (end < 0)
+                    end = index + 2;
+                index = target;
+                pointerLimit = target;
+                continue;
             }
+            if ((len & 0xC0) != 0)
+                throw new IOException("Unsupported label type at offset " + (index - start));
 
-            name.append('.');
-            ptr = _dataInputStream.readByte();
-            _offset ++;
+            index++;
+            if (len == 0)
+                break;
 
+            checkIndex(index, len);
+            length += len + 1;
+            if (length > MAX_NAME_LENGTH)
+                throw new IOException("Name too long at offset " + (index - start));
+            if (nameBuilder.length() > 0)
+                nameBuilder.append('.');
+            for (int i = 0; i < len; i++)
+                nameBuilder.append((char) (buffer.get(index + i) & 0xFF));
+            index += len;
         }
 
-        int nameLen = name.toString().length();
-        return name.toString().substring(0, nameLen-1);
+        position = end < 0 ? index : end;
+        return nameBuilder.toString();
+    }
+
+    /**
+     * reads a ResourceRecord from the DNS response and adds it to a section, unless it is an
+     * OPT pseudo-record
+     *
+     * @return the record read, or null for an OPT record
+     *
+     */
+    private ResourceRecord addResourceRecord(List<ResourceRecord> section) throws IOException {
+        ResourceRecord record = getResourceRecord();
+        if (record != null)
+            section.add(record);
+        return record;
     }
 
     /**
-     * returns a ResourceRecord read from the DNS response
+     * returns a ResourceRecord read from the DNS response. An OPT pseudo-record is not a
+     * record: its fields are kept with the response and null is returned.
      *
      * @return ResourceRecord
      *
      */
-    private static ResourceRecord getResourceRecord() throws IOException{
+    private ResourceRecord getResourceRecord() throws IOException {
         String name = getName();
-        int stype = _dataInputStream.readShort();
+        require(10);
+        int stype = buffer.getShort(position) & 0xFFFF;
         RecordType type = RecordType.getByCode(stype);
-        _offset += 2;
-        short classRR = _dataInputStream.readShort();
-        _offset += 2;
-        long TTL = _dataInputStream.readInt();
-        _offset += 4;
-        int dataLen = _dataInputStream.readShort();
-        _offset += 2;
-
-        if (type == RecordType.A || type == RecordType.AAAA) {
-            byte[] bytes =  new byte[dataLen];
-            _dataInputStream.read(bytes);
-            _offset += dataLen;
-            InetAddress addr = InetAddress.getByAddress(bytes);
-
-            return new ResourceRecord(name, type, TTL, addr);
+        long TTL = buffer.getInt(position + 4) & 0xFFFFFFFFL;
+        int dataLen = buffer.getShort(position + 8) & 0xFFFF;
+        if (stype == Query.OPT_TYPE) {
+            // the class is the payload size, and the TTL holds the extended RCODE and version
+            payloadSize = buffer.getShort(position + 2) & 0xFFFF;
+            RCODE |= (int) (TTL >>> 24) << 4;
+            ednsVersion = (int) (TTL >>> 16) & 0xFF;
+            position += 10;
+            require(dataLen);
+            position += dataLen;
+            return null;
         }
-        else { // type NS or type CNAME //
-            String result = getName();
-            return new ResourceRecord(name, type, TTL, result);
+        position += 10;
+        require(dataLen);
+        int dataEnd = position + dataLen;
+
+        ResourceRecord record;
+        switch (type) {
+            case A:
+            case AAAA:
+                byte[] bytes = new byte[dataLen];
+                for (int i = 0; i < dataLen; i++)
+                    bytes[i] = buffer.get(position + i);
+                record = new ResourceRecord(name, type, TTL, InetAddress.getByAddress(bytes));
+                break;
+            case NS:
+            case CNAME:
+                record = new ResourceRecord(name, type, TTL, getName());
+                break;
+            case SOA:
+                record = new ResourceRecord(name, type, TTL, getSOAData());
+                break;
+            case MX:
+                // presentation format: preference and exchange
+                require(2);
+                int preference = buffer.getShort(position) & 0xFFFF;
+                position += 2;
+                record = new ResourceRecord(name, type, TTL, preference + " " + getName());
+                break;
+            default:
+                record = new ResourceRecord(name, type, TTL, getUnknownData(dataLen));
+                break;
+        }
+        if (position > dataEnd)
+            throw new IOException("Record data overflows its length at offset " + (dataEnd - start));
+        position = dataEnd;
+        return record;
+    }
+
+    /**
+     * returns the data of an SOA record in presentation format, and keeps its MINIMUM field
+     *
+     */
+    private String getSOAData() throws IOException {
+        String mname = getName();
+        String rname = getName();
+        require(20);
+        long serial = buffer.getInt(position) & 0xFFFFFFFFL;
+        long refresh = buffer.getInt(position + 4) & 0xFFFFFFFFL;
+        long retry = buffer.getInt(position + 8) & 0xFFFFFFFFL;
+        long expire = buffer.getInt(position + 12) & 0xFFFFFFFFL;
+        soaMinimum = buffer.getInt(position + 16) & 0xFFFFFFFFL;
+        position += 20;
+        return mname + " " + rname + " " + serial + " " + refresh + " " + retry + " " + expire + " " + soaMinimum;
+    }
+
+    /**
+     * returns the data of a record of unknown type in the generic format of RFC 3597
+     *
+     */
+    private String getUnknownData(int dataLen) {
+        StringBuilder data = new StringBuilder(6 + dataLen * 2).append("\\# ").append(dataLen).append(' ');
+        for (int i = 0; i < dataLen; i++) {
+            int b = buffer.get(position + i) & 0xFF;
+            data.append(HEX_DIGITS[b >> 4]).append(HEX_DIGITS[b & 0xF]);
         }
+        return data.toString();
+    }
+
+    private void require(int length) throws IOException {
+        checkIndex(position, length);
+    }
+
+    private void checkIndex(int index, int length) throws IOException {
+        if (index < start || index + length > limit)
+            throw new IOException("Truncated message at offset " + (index - start));
     }
 }
@@ -0,0 +1,206 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Encodes DNS responses to queries, as sent by the server frontend. Names are compressed
+ * (RFC 1035, section 4.1.4): each name, or its longest suffix already written in the message,
+ * is replaced by a pointer to the earlier occurrence. An encoder keeps the table of names it
+ * has written, so it is not thread-safe, but it may be reused for any number of responses.
+ */
+public class ResponseEncoder {
+
+    public static final int RCODE_NO_ERROR = 0;
+    public static final int RCODE_FORMAT_ERROR = 1;
+    public static final int RCODE_SERVER_FAILURE = 2;
+    public static final int RCODE_NAME_ERROR = 3;
+    public static final int RCODE_NOT_IMPLEMENTED = 4;
+
+    private static final int FLAG_QR = 0x8000;
+    private static final int FLAG_TC = 0x0200;
+    private static final int FLAG_RD = 0x0100;
+    private static final int FLAG_RA = 0x0080;
+    // compression pointers hold a 14-bit offset
+    private static final int MAX_POINTER_OFFSET = 0x3FFF;
+
+    // offsets (from the start of the message) of the names written so far, by normalized name
+    private final Map<String, Integer> names = new HashMap<>();
+    private ByteBuffer buffer;
+    private int start;
+
+    /**
+     * writes a response to a query to the buffer, starting at its position. The ID, opcode, RD
+     * bit and question are copied from the query (the question name keeps its case), and
+     * recursion is flagged as available. Records are added to the answer section as long as
+     * they fit before the limit of the buffer; if some don't, the answer section is left empty
+     * and the TC bit is set, so the client knows to ask again over another transport. Records
+     * whose data can't be encoded are left out. If the query has an OPT record, the response
+     * has one too, advertising the limit of the buffer as the server's payload size.
+     *
+     * @param buffer   The buffer to write to; its position is moved past the response
+     * @param query    The decoded query being answered
+     * @param rcode    The response code
+     * @param answers  The records to put in the answer section, in order
+     *
+     */
+    public void encodeResponse(ByteBuffer buffer, Response query, int rcode, Collection<ResourceRecord> answers) {
+        begin(buffer, query.getID(), getFlags(query, rcode));
+        DNSNode question = query.getQuestion();
+        if (question == null)
+            return;
+
+        putName(query.getQuestionName());
+        buffer.putShort((short) question.getType().getCode());
+        buffer.putShort((short) 0x0001);
+        buffer.putShort(start + 4, (short) 1);
+
+        // keep room for the OPT record at the end
+        int limit = buffer.limit();
+        if (query.hasEDNS())
+            buffer.limit(limit - Query.OPT_SIZE);
+
+        int questionEnd = buffer.position();
+        int count = 0;
+        for (ResourceRecord record : answers) {
+            int recordStart = buffer.position();
+            try {
+                putResourceRecord(record);
+                count++;
+            } catch (IllegalArgumentException e) {
+                // the record's data is not in the expected format, skip it
+                rollback(recordStart);
+            } catch (BufferOverflowException e) {
+                // a partial answer could be mistaken for a complete one
+                rollback(questionEnd);
+                count = 0;
+                buffer.putShort(start + 2, (short) (buffer.getShort(start + 2) | FLAG_TC));
+                break;
+            }
+        }
+        buffer.putShort(start + 6, (short) count);
+
+        buffer.limit(limit);
+        if (query.hasEDNS()) {
+            Query.encodeOPT(buffer, limit - start);
+            buffer.putShort(start + 10, (short) 1);
+        }
+    }
+
+    /**
+     * writes a response made of a header only, e.g., to report a query that could not be
+     * decoded.
+     *
+     * @param buffer   The buffer to write to; its position is moved past the response
+     * @param queryID  The ID of the query being answered
+     * @param rcode    The response code
+     *
+     */
+    public void encodeError(ByteBuffer buffer, short queryID, int rcode) {
+        begin(buffer, queryID, FLAG_QR | FLAG_RA | rcode);
+    }
+
+    private static int getFlags(Response query, int rcode) {
+        int flags = FLAG_QR | FLAG_RA | (query.getOpcode() << 11) | (rcode & 0x000F);
+        if (query.isRecursionDesired())
+            flags |= FLAG_RD;
+        return flags;
+    }
+
+    private void begin(ByteBuffer buffer, short queryID, int flags) {
+        this.buffer = buffer;
+        this.start = buffer.position();
+        names.clear();
+        buffer.putShort(queryID);
+        buffer.putShort((short) flags);
+        // QDCOUNT, ANCOUNT, NSCOUNT, ARCOUNT are set as sections are written
+        for (int i = 0; i < 4; i++)
+            buffer.putShort((short) 0x0000);
+    }
+
+    private void putResourceRecord(ResourceRecord record) {
+        putName(record.getHostName());
+        buffer.putShort((short) record.getType().getCode());
+        buffer.putShort((short) 0x0001);
+        buffer.putInt((int) Math.max(0, Math.min(record.getTTL(), Integer.MAX_VALUE)));
+        int lengthIndex = buffer.position();
+        buffer.putShort((short) 0);
+
+        switch (record.getType()) {
+            case A:
+            case AAAA:
+                if (record.getInetResult() == null)
+                    throw new IllegalArgumentException("No address in " + record.getNode());
+                buffer.put(record.getInetResult().getAddress());
+                break;
+            case NS:
+            case CNAME:
+                putName(record.getTextResult());
+                break;
+            case MX:
+                String[] mx = record.getTextResult().split(" ");
+                if (mx.length != 2)
+                    throw new IllegalArgumentException("Invalid MX data: " + record.getTextResult());
+                buffer.putShort((short) Integer.parseInt(mx[0]));
+                putName(mx[1]);
+                break;
+            case SOA:
+                String[] soa = record.getTextResult().split(" ");
+                if (soa.length != 7)
+                    throw new IllegalArgumentException("Invalid SOA data: " + record.getTextResult());
+                putName(soa[0]);
+                putName(soa[1]);
+                for (int i = 2; i < 7; i++)
+                    buffer.putInt((int) Long.parseLong(soa[i]));
+                break;
+            default:
+                // the original type code of other records is not kept
+                throw new IllegalArgumentException("Unsupported record type in " + record.getNode());
+        }
+        buffer.putShort(lengthIndex, (short) (buffer.position() - lengthIndex - 2));
+    }
+
+    /**
+     * writes a name at the current position, replacing its longest suffix already in the
+     * message by a pointer.
+     */
+    private void putName(String name) {
+        int length = name.length();
+        if (length > 0 && name.charAt(length - 1) == '.')
+            length--;
+        int labelStart = 0;
+        while (labelStart < length) {
+            String suffix = DNSNode.normalize(name.substring(labelStart, length));
+            Integer offset = names.get(suffix);
+            if (offset != null) {
+                buffer.putShort((short) (0xC000 | offset));
+                return;
+            }
+            int here = buffer.position() - start;
+            if (here <= MAX_POINTER_OFFSET)
+                names.put(suffix, here);
+
+            int labelEnd = name.indexOf('.', labelStart);
+            if (labelEnd < 0 || labelEnd > length)
+                labelEnd = length;
+            int labelLength = labelEnd - labelStart;
+            if (labelLength == 0 || labelLength > 63)
+                throw new IllegalArgumentException("Invalid label in host name: " + name);
+            buffer.put((byte) labelLength);
+            for (int i = labelStart; i < labelEnd; i++)
+                buffer.put((byte) name.charAt(i));
+            labelStart = labelEnd + 1;
+        }
+        buffer.put((byte) 0);
+    }
+
+    /**
+     * moves the position back to an earlier point, forgetting the names written after it.
+     */
+    private void rollback(int position) {
+        buffer.position(position);
+        names.values().removeIf(offset -> offset >= position - start);
+    }
+}
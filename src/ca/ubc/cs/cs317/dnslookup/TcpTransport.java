@@ -0,0 +1,430 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Sends queries over TCP (RFC 7766), for responses that don't fit in a UDP datagram, or for
+ * resolutions that only use TCP. Each message is preceded by its length in two bytes.
+ *
+ * Connections are kept open and reused: each server has a small pool of connections, and
+ * several queries are pipelined on each connection, without waiting for the responses to the
+ * earlier ones. Servers may answer the queries on a connection in any order; responses are
+ * matched to queries by ID and question. Once a connection to a server is open, a query costs a
+ * single round trip instead of a handshake and a round trip. Connections without queries for a
+ * while are closed.
+ *
+ * All connections are handled by a single event loop thread. Queries are handed to the event
+ * loop, which assigns each one to the least busy connection to its server, opening a new
+ * connection if all are full and the pool is not, or keeping the query waiting otherwise.
+ *
+ * A server may close a connection at any time, e.g., after a number of queries, even with
+ * queries still waiting for their responses (RFC 7766). The unanswered queries are then sent
+ * again on another connection to the same server, within their original deadlines; a query
+ * only fails once it has been sent on MAX_SENDS connections.
+ */
+public class TcpTransport implements Transport {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 2;
+    public static final int DEFAULT_MAX_PIPELINED = 64;
+    /** Number of connections a query may be sent on, if they close before it is answered. */
+    public static final int MAX_SENDS = 3;
+    private static final long IDLE_TIMEOUT_MILLIS = 10000;
+    private static final long IDLE_CHECK_MILLIS = 1000;
+    private static final int MAX_MESSAGE_SIZE = 65535;
+
+    private final int payloadSize;
+    private final int maxConnections;
+    private final int maxPipelined;
+    private final Selector selector;
+    private final Thread eventLoop;
+    private final Queue<TcpQuery> submitted = new ConcurrentLinkedQueue<>();
+    private final DelayQueue<TcpQuery> deadlines = new DelayQueue<>();
+    // connections by server, only used by the event loop
+    private final Map<InetSocketAddress, Pool> pools = new HashMap<>();
+    private long lastIdleCheck = CoarseClock.now();
+    private volatile boolean closed = false;
+
+    /** Creates a transport with the default pool size and starts its event loop.
+     *
+     * @param payloadSize Size advertised in the OPT record of each query, or 0 to send none.
+     * @throws IOException If the selector could not be opened.
+     */
+    public TcpTransport(int payloadSize) throws IOException {
+        this(payloadSize, DEFAULT_MAX_CONNECTIONS, DEFAULT_MAX_PIPELINED);
+    }
+
+    /** Creates a transport and starts its event loop.
+     *
+     * @param payloadSize    Size advertised in the OPT record of each query, or 0 to send none.
+     * @param maxConnections Maximum number of connections open to each server.
+     * @param maxPipelined   Maximum number of queries waiting for a response on each connection.
+     * @throws IOException If the selector could not be opened.
+     */
+    public TcpTransport(int payloadSize, int maxConnections, int maxPipelined) throws IOException {
+        if (maxConnections <= 0 || maxPipelined <= 0)
+            throw new IllegalArgumentException("Invalid number of connections or pipelined queries");
+        this.payloadSize = payloadSize;
+        this.maxConnections = maxConnections;
+        this.maxPipelined = maxPipelined;
+        selector = Selector.open();
+
+        eventLoop = new Thread(this::run, "dns-tcp-transport");
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+    }
+
+    /** Sends a query to a server over one of its pooled connections. The returned future is
+     * completed with the decoded response, or completed exceptionally with a
+     * SocketTimeoutException if no response is received in the specified time (including the
+     * time to connect, if needed), or with an IOException if the connection fails.
+     *
+     * @param server        Address of the server to be queried.
+     * @param port          Port of the server to be queried.
+     * @param question      Host name and record type to be queried.
+     * @param timeoutMillis Time to wait for a response.
+     * @return The outstanding query.
+     */
+    @Override
+    public PendingQuery send(InetAddress server, int port, DNSNode question, long timeoutMillis) {
+        short queryID = (short) ThreadLocalRandom.current().nextInt(1 << 16);
+        TcpQuery query = new TcpQuery(new InetSocketAddress(server, port), queryID, question, timeoutMillis);
+        if (closed) {
+            query.completeExceptionally(new ClosedChannelException());
+            return query;
+        }
+        try {
+            ByteBuffer data = ByteBuffer.allocate(2 + Query.MAX_QUERY_SIZE);
+            data.position(2);
+            Query.encodeQuery(data, question, queryID, payloadSize);
+            data.putShort(0, (short) (data.position() - 2));
+            data.flip();
+            query.message = data;
+        } catch (IllegalArgumentException e) {
+            query.completeExceptionally(e);
+            return query;
+        }
+
+        deadlines.add(query);
+        submitted.add(query);
+        selector.wakeup();
+        return query;
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                TcpQuery next = deadlines.peek();
+                long wait = next == null ? IDLE_CHECK_MILLIS :
+                        Math.max(1, Math.min(IDLE_CHECK_MILLIS, next.getDelay(TimeUnit.MILLISECONDS)));
+                selector.select(wait);
+                for (SelectionKey key : selector.selectedKeys())
+                    handle((Connection) key.attachment());
+                selector.selectedKeys().clear();
+
+                assignSubmitted();
+                expire();
+                closeIdle();
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException e) {
+                if (!closed)
+                    System.err.println("TCP transport error (" + e.getMessage() + ").");
+            }
+        }
+    }
+
+    private void assignSubmitted() {
+        TcpQuery query;
+        Set<Pool> updated = new HashSet<>();
+        while ((query = submitted.poll()) != null) {
+            Pool pool = pools.computeIfAbsent(query.getServer(), Pool::new);
+            pool.waiting.add(query);
+            updated.add(pool);
+        }
+        for (Pool pool : updated)
+            dispatch(pool);
+    }
+
+    /**
+     * Assigns the queries waiting for a connection to a server to the least busy connection
+     * that can take them, opening new connections as needed.
+     */
+    private void dispatch(Pool pool) {
+        TcpQuery query;
+        while ((query = pool.waiting.peek()) != null) {
+            if (query.isDone()) {
+                pool.waiting.poll();
+                continue;
+            }
+            Connection connection = pool.pick(query.getQueryID());
+            if (connection == null) {
+                if (pool.connections.size() >= maxConnections)
+                    return;
+                try {
+                    connection = open(pool);
+                } catch (IOException e) {
+                    pool.waiting.poll().completeExceptionally(e);
+                    continue;
+                }
+            }
+            pool.waiting.poll();
+            connection.enqueue(query);
+        }
+    }
+
+    private Connection open(Pool pool) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = channel.connect(pool.server);
+            Connection connection = new Connection(pool, channel);
+            connection.key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT,
+                    connection);
+            connection.connected = connected;
+            pool.connections.add(connection);
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void handle(Connection connection) {
+        SelectionKey key = connection.key;
+        try {
+            if (key.isValid() && key.isConnectable()) {
+                connection.channel.finishConnect();
+                connection.connected = true;
+                connection.updateInterest();
+            }
+            if (key.isValid() && key.isReadable())
+                read(connection);
+            if (key.isValid() && key.isWritable())
+                connection.write();
+        } catch (IOException e) {
+            close(connection, e);
+        }
+    }
+
+    private void read(Connection connection) throws IOException {
+        ByteBuffer buffer = connection.readBuffer;
+        if (connection.channel.read(buffer) < 0)
+            throw new EOFException("Connection closed by " + connection.pool.server.getAddress().getHostAddress());
+        buffer.flip();
+        while (buffer.remaining() >= 2) {
+            int start = buffer.position();
+            int length = buffer.getShort(start) & 0xFFFF;
+            if (buffer.remaining() < 2 + length)
+                break;
+            // the response is decoded in place, before the buffer is compacted
+            ByteBuffer message = buffer.duplicate();
+            message.position(start + 2).limit(start + 2 + length);
+            buffer.position(start + 2 + length);
+            receive(connection, message);
+        }
+        buffer.compact();
+    }
+
+    private void receive(Connection connection, ByteBuffer message) {
+        Response response;
+        try {
+            response = Response.decodeResponse(message);
+        } catch (IOException | RuntimeException e) {
+            // malformed response; the query it belongs to (if any) will time out
+            return;
+        }
+        TcpQuery query = connection.outstanding.get(response.getID());
+        if (query == null || !query.getQuestion().equals(response.getQuestion()))
+            return;
+        connection.outstanding.remove(response.getID());
+        connection.lastActive = CoarseClock.now();
+        query.receivedNanos = System.nanoTime();
+        query.complete(response);
+        // a query waiting for a connection may now take this one
+        dispatch(connection.pool);
+    }
+
+    private void expire() {
+        TcpQuery query;
+        while ((query = deadlines.poll()) != null) {
+            if (query.connection != null)
+                query.connection.outstanding.remove(query.getQueryID(), query);
+            if (!query.isDone())
+                query.completeExceptionally(new SocketTimeoutException("No response from " +
+                        query.getServer().getAddress().getHostAddress()));
+        }
+    }
+
+    private void closeIdle() {
+        long now = CoarseClock.now();
+        if (now - lastIdleCheck < IDLE_CHECK_MILLIS)
+            return;
+        lastIdleCheck = now;
+        for (Iterator<Pool> pools = this.pools.values().iterator(); pools.hasNext(); ) {
+            Pool pool = pools.next();
+            for (Connection connection : new ArrayList<>(pool.connections))
+                if (connection.isIdle() && now - connection.lastActive > IDLE_TIMEOUT_MILLIS)
+                    close(connection, null);
+            if (pool.connections.isEmpty() && pool.waiting.isEmpty())
+                pools.remove();
+        }
+    }
+
+    /**
+     * Closes a connection. Queries sent on it that have not been answered are sent again on
+     * another connection to the same server, ahead of the queries already waiting, unless they
+     * have been sent on too many connections already, or the transport is closing, in which
+     * case they fail.
+     */
+    private void close(Connection connection, IOException cause) {
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // nothing left to do with the channel
+        }
+        connection.pool.connections.remove(connection);
+        for (TcpQuery query : connection.outstanding.values()) {
+            query.connection = null;
+            if (query.isDone())
+                continue;
+            if (closed || query.sends >= MAX_SENDS)
+                query.completeExceptionally(cause != null ? cause : new ClosedChannelException());
+            else
+                connection.pool.waiting.addFirst(query);
+        }
+        connection.outstanding.clear();
+        if (!closed)
+            dispatch(connection.pool);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            eventLoop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Pool pool : pools.values()) {
+            for (Connection connection : new ArrayList<>(pool.connections))
+                close(connection, null);
+            for (TcpQuery query : pool.waiting)
+                query.completeExceptionally(new ClosedChannelException());
+        }
+        for (TcpQuery query : submitted)
+            query.completeExceptionally(new ClosedChannelException());
+        selector.close();
+    }
+
+    /** A query sent over TCP, with the connection it was assigned to. */
+    private static final class TcpQuery extends PendingQuery {
+        // the encoded query, preceded by its length
+        private ByteBuffer message;
+        private Connection connection;
+        // number of connections the query was assigned to
+        private int sends;
+
+        TcpQuery(InetSocketAddress server, short queryID, DNSNode question, long timeoutMillis) {
+            super(server, queryID, question, timeoutMillis);
+        }
+    }
+
+    /** The connections to a server, and the queries waiting for one of them to take them. */
+    private final class Pool {
+        private final InetSocketAddress server;
+        private final List<Connection> connections = new ArrayList<>(maxConnections);
+        private final Deque<TcpQuery> waiting = new ArrayDeque<>();
+
+        Pool(InetSocketAddress server) {
+            this.server = server;
+        }
+
+        /**
+         * Returns the connection with the fewest outstanding queries that can take another query
+         * with the given ID, or null if there is none.
+         */
+        Connection pick(short queryID) {
+            Connection best = null;
+            for (Connection connection : connections) {
+                if (connection.outstanding.size() >= maxPipelined)
+                    // queries that timed out or were cancelled don't need their slots any more
+                    connection.outstanding.values().removeIf(PendingQuery::isDone);
+                if (connection.outstanding.size() < maxPipelined &&
+                        !connection.outstanding.containsKey(queryID) &&
+                        (best == null || connection.outstanding.size() < best.outstanding.size()))
+                    best = connection;
+            }
+            return best;
+        }
+    }
+
+    /** A connection to a server, with the queries sent on it and not yet answered. */
+    private static final class Connection {
+        private final Pool pool;
+        private final SocketChannel channel;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(2 + MAX_MESSAGE_SIZE);
+        private final Map<Short, TcpQuery> outstanding = new HashMap<>();
+        private final Queue<TcpQuery> unsent = new ArrayDeque<>();
+        private SelectionKey key;
+        private boolean connected;
+        private long lastActive = CoarseClock.now();
+
+        Connection(Pool pool, SocketChannel channel) {
+            this.pool = pool;
+            this.channel = channel;
+        }
+
+        void enqueue(TcpQuery query) {
+            query.connection = this;
+            query.sends++;
+            query.unsentData = query.message.duplicate();
+            outstanding.put(query.getQueryID(), query);
+            unsent.add(query);
+            lastActive = CoarseClock.now();
+            updateInterest();
+        }
+
+        void write() throws IOException {
+            TcpQuery query;
+            while ((query = unsent.peek()) != null) {
+                ByteBuffer data = query.unsentData;
+                // a query that ended before any of it was written is not sent at all
+                if (!query.isDone() || data.position() > 0) {
+                    channel.write(data);
+                    if (data.hasRemaining())
+                        return;
+                }
+                query.unsentData = null;
+                unsent.poll();
+            }
+            updateInterest();
+        }
+
+        void updateInterest() {
+            if (connected && key.isValid())
+                key.interestOps(unsent.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        boolean isIdle() {
+            return outstanding.isEmpty() && unsent.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/** The kind of threads used to run lookups and sub-resolutions. With platform threads, tasks
+ * run on pools of operating system threads. With virtual threads (Java 21 or later), every task
+ * runs on its own virtual thread, which is cheap to create and to block, so a resolution can
+ * wait for responses in a sequential style while hundreds of thousands of others are running.
+ *
+ * Virtual threads are created through reflection, so the resolver still compiles and runs on
+ * Java versions that don't have them.
+ */
+public enum ThreadMode {
+    PLATFORM, VIRTUAL;
+
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = findVirtualThreadFactory();
+
+    /** Returns true if virtual threads are supported by the running Java version.
+     *
+     * @return true if the VIRTUAL mode may be used.
+     */
+    public static boolean isVirtualAvailable() {
+        return VIRTUAL_THREAD_FACTORY != null;
+    }
+
+    /** Creates an executor that runs each task on a new thread (VIRTUAL), or on a pool of threads
+     * created as needed and reused (PLATFORM). Platform threads are daemon threads, so they don't
+     * keep the program running.
+     *
+     * @param name Name of the threads.
+     * @return A new executor.
+     * @throws UnsupportedOperationException If virtual threads are not available.
+     */
+    public ExecutorService newExecutor(String name) {
+        if (this == PLATFORM)
+            return Executors.newCachedThreadPool(platformThreadFactory(name));
+        return newVirtualExecutor();
+    }
+
+    private static ThreadFactory platformThreadFactory(String name) {
+        return runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static ExecutorService newVirtualExecutor() {
+        if (VIRTUAL_THREAD_FACTORY == null)
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+        try {
+            Method newExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newExecutor.invoke(null, VIRTUAL_THREAD_FACTORY);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads are not available", e);
+        }
+    }
+
+    /** Returns a factory of virtual threads, i.e., Thread.ofVirtual().factory(), or null if
+     * virtual threads are not available (before Java 21, or as a disabled preview feature).
+     */
+    private static ThreadFactory findVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            // make sure virtual threads can actually be started
+            factory.newThread(() -> { });
+            return factory;
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/** A hierarchical timing wheel, used to expire items (e.g., cached records) in the background.
+ * The wheel has four levels of 64 slots each. Each slot of the lowest level covers one tick,
+ * and each slot of a higher level covers all 64 slots of the level below, so the wheel spans
+ * 64^4 ticks. Items are scheduled in constant time in the lowest level that covers their
+ * expiration time, and are moved to lower levels as time advances.
+ *
+ * Items may be scheduled from any thread; the wheel is advanced by a single thread. An item
+ * scheduled while the wheel is being advanced may be expired up to one rotation late, which is
+ * acceptable since expired items are also recognized (and ignored) when they are read.
+ *
+ * Each slot keeps its items and their expiration times in two flat arrays, so a scheduled item
+ * costs a few bytes rather than an entry and a queue node.
+ *
+ * @param <T> Type of the items in the wheel.
+ */
+public class TimingWheel<T> {
+
+    private static final int LEVELS = 4;
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+
+    private final long tickMillis;
+    private final Slot<T>[][] wheel;
+    private volatile long currentTick;
+
+    /** Creates a new timing wheel.
+     *
+     * @param tickMillis Duration of a tick, i.e., the precision of the expiration times.
+     * @param startTime  Current time, in the same units (and clock) as the expiration times.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, long startTime) {
+        this.tickMillis = tickMillis;
+        this.currentTick = startTime / tickMillis;
+        this.wheel = new Slot[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++)
+            for (int slot = 0; slot < SLOTS; slot++)
+                wheel[level][slot] = new Slot<>();
+    }
+
+    /** Schedules an item to be expired at a specific time.
+     *
+     * @param item      Item to be expired.
+     * @param expiresAt Time when the item expires.
+     */
+    public void schedule(T item, long expiresAt) {
+        long current = currentTick;
+        // first tick at whose end the item will have expired
+        long tick = Math.max((expiresAt + tickMillis - 1) / tickMillis, current + 1);
+        for (int level = 0; level < LEVELS; level++) {
+            int shift = level * SLOT_BITS;
+            if ((tick >> shift) - (current >> shift) < SLOTS) {
+                wheel[level][(int) ((tick >> shift) & SLOT_MASK)].add(item, expiresAt);
+                return;
+            }
+        }
+        // beyond the span of the wheel: park in the farthest slot, it will be rescheduled
+        int shift = (LEVELS - 1) * SLOT_BITS;
+        wheel[LEVELS - 1][(int) (((current >> shift) + SLOTS - 1) & SLOT_MASK)].add(item, expiresAt);
+    }
+
+    /** Advances the wheel up to the specified time, passing every item that has expired by then
+     * to the consumer. Must not be called concurrently from more than one thread.
+     *
+     * @param now     Current time.
+     * @param expired Action to be performed on each expired item.
+     */
+    public void advance(long now, Consumer<T> expired) {
+        long target = now / tickMillis;
+        while (currentTick < target) {
+            long tick = currentTick + 1;
+            currentTick = tick;
+            // move items from higher levels down when their slot becomes current
+            for (int level = LEVELS - 1; level > 0; level--) {
+                int shift = level * SLOT_BITS;
+                if ((tick & ((1L << shift) - 1)) == 0)
+                    cascade(wheel[level][(int) ((tick >> shift) & SLOT_MASK)], now, expired);
+            }
+            cascade(wheel[0][(int) (tick & SLOT_MASK)], now, expired);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void cascade(Slot<T> slot, long now, Consumer<T> expired) {
+        // take only what is there now; rescheduled items never return to this slot
+        Slot<T> taken = slot.takeAll();
+        for (int i = 0; i < taken.size; i++) {
+            if (taken.times[i] <= now)
+                expired.accept((T) taken.items[i]);
+            else
+                schedule((T) taken.items[i], taken.times[i]);
+        }
+    }
+
+    private static final class Slot<T> {
+        private static final int INITIAL_CAPACITY = 4;
+
+        private Object[] items;
+        private long[] times;
+        private int size;
+
+        synchronized void add(T item, long expiresAt) {
+            if (items == null) {
+                items = new Object[INITIAL_CAPACITY];
+                times = new long[INITIAL_CAPACITY];
+            } else if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+                times = Arrays.copyOf(times, size * 2);
+            }
+            items[size] = item;
+            times[size] = expiresAt;
+            size++;
+        }
+
+        /** Empties the slot, releasing its arrays, and returns a slot with its former items. */
+        synchronized Slot<T> takeAll() {
+            Slot<T> taken = new Slot<>();
+            taken.items = items;
+            taken.times = times;
+            taken.size = size;
+            items = null;
+            times = null;
+            size = 0;
+            return taken;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.Closeable;
+import java.net.InetAddress;
+
+/** A way of sending queries to name servers and receiving their responses, such as UDP
+ * datagrams (QueryEngine) or TCP connections (TcpTransport). Queries are sent without blocking:
+ * the caller gets a pending query, completed once the response is received.
+ */
+public interface Transport extends Closeable {
+
+    /** Sends a query to a server. The returned query is completed with the decoded response,
+     * or completed exceptionally with a SocketTimeoutException if no response is received in
+     * the specified time, or with an IOException if the query could not be sent. The query ID
+     * is chosen by the transport.
+     *
+     * @param server        Address of the server to be queried.
+     * @param port          Port of the server to be queried.
+     * @param question      Host name and record type to be queried.
+     * @param timeoutMillis Time to wait for a response.
+     * @return The outstanding query.
+     */
+    PendingQuery send(InetAddress server, int port, DNSNode question, long timeoutMillis);
+}
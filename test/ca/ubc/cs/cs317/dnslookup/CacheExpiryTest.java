@@ -0,0 +1,193 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Expiry of cached records. The caches read the time from a clock set by the tests, and their
+ * expiry wheels are advanced explicitly, so the tests don't depend on the scheduling of the
+ * expiry thread.
+ */
+class CacheExpiryTest {
+
+    private static final DNSNode NODE = new DNSNode("www.example.com", RecordType.A);
+
+    private final AtomicLong time = new AtomicLong(CoarseClock.now());
+    private final long start = time.get();
+
+    @Test
+    void coarseClockIsMonotonicAndFollowsTheWallClock() throws InterruptedException {
+        long start = CoarseClock.now();
+        long wallStart = System.currentTimeMillis();
+        Thread.sleep(200);
+        long end = CoarseClock.now();
+        long wallEnd = System.currentTimeMillis();
+
+        assertTrue(end >= start);
+        // the clock lags by up to its resolution, plus scheduling delays
+        assertEquals(wallEnd - wallStart, end - start, 100);
+        long wallClock = CoarseClock.toWallClock(end + 5000);
+        assertEquals(System.currentTimeMillis() + 5000, wallClock, 100);
+        assertEquals(end + 5000, CoarseClock.fromWallClock(wallClock), 100);
+    }
+
+    @Test
+    void expiredRecordsAreNeverReturned() throws Exception {
+        DNSCache cache = new DNSCache(0, 0, time::get);
+        cache.addResult(record(1, 1));
+        time.set(start + 999);
+        assertEquals(1, cache.getCachedResults(NODE).size());
+
+        // not removed yet, but skipped by reads
+        time.set(start + 1000);
+        assertTrue(cache.getCachedResults(NODE).isEmpty());
+        assertEquals(1, cache.getStatistics().getRecords());
+    }
+
+    @Test
+    void expiredRecordsAreRemovedByTheExpiryWheel() throws Exception {
+        DNSCache cache = new DNSCache(0, 0, time::get);
+        cache.addResult(record(1, 1));
+        cache.addResult(record(2, 3600));
+        cache.advanceExpiry(start + 500);
+        assertEquals(2, cache.getStatistics().getRecords());
+
+        time.set(start + 2000);
+        cache.advanceExpiry(time.get());
+        assertEquals(1, cache.getStatistics().getRecords());
+        assertEquals(Set.of(record(2, 3600)), cache.getCachedResults(NODE));
+
+        // the node is removed with its last record
+        time.set(start + 3_600_000);
+        cache.advanceExpiry(time.get());
+        assertEquals(0, cache.getStatistics().getNodes());
+        assertNull(cache.getClosestEncloser(NODE.getHostName()));
+    }
+
+    @Test
+    void replacedRecordIsNotRemovedByItsFormerExpiration() throws Exception {
+        DNSCache cache = new DNSCache(0, 0, time::get);
+        cache.addResult(record(1, 1));
+        // same record with a longer TTL: the record expiring first is replaced
+        cache.addResult(record(1, 3600));
+
+        time.set(start + 2000);
+        cache.advanceExpiry(time.get());
+        assertEquals(1, cache.getStatistics().getRecords());
+        Set<ResourceRecord> results = cache.getCachedResults(NODE);
+        assertEquals(1, results.size());
+        assertEquals(start + 3_600_000, results.iterator().next().getExpirationTime());
+    }
+
+    @Test
+    void recordWithShorterTTLDoesNotReplaceTheCachedOne() throws Exception {
+        DNSCache cache = new DNSCache(0, 0, time::get);
+        cache.addResult(record(1, 3600));
+        cache.addResult(record(1, 1));
+
+        time.set(start + 2000);
+        cache.advanceExpiry(time.get());
+        assertEquals(1, cache.getCachedResults(NODE).size());
+    }
+
+    @Test
+    void staleRecordsAreKeptForTheStaleWindow() throws Exception {
+        DNSCache cache = new DNSCache(0, 0, time::get);
+        cache.setStaleWindow(30);
+        cache.addResult(record(1, 1));
+
+        time.set(start + 2000);
+        cache.advanceExpiry(time.get());
+        assertTrue(cache.getCachedResults(NODE).isEmpty());
+        Set<ResourceRecord> stale = cache.getStaleResults(NODE);
+        assertEquals(1, stale.size());
+        assertEquals(DNSCache.STALE_TTL, stale.iterator().next().getOriginalTTL());
+
+        time.set(start + 31_000);
+        assertTrue(cache.getStaleResults(NODE).isEmpty());
+        // removed on the tick of the wheel after the end of the stale window
+        time.set(start + 32_000);
+        cache.advanceExpiry(time.get());
+        assertEquals(0, cache.getStatistics().getRecords());
+    }
+
+    @Test
+    void negativeResultsExpire() {
+        DNSCache cache = new DNSCache(1000, 0, time::get);
+        cache.addNegativeResult(NegativeResult.expiringAt(NODE, true, start + 1000));
+        assertNotNull(cache.getNegativeResult(NODE));
+        // a name error applies to every type
+        assertNotNull(cache.getNegativeResult(new DNSNode(NODE.getHostName(), RecordType.AAAA)));
+
+        time.set(start + 1000);
+        assertNull(cache.getNegativeResult(NODE));
+        assertEquals(1, cache.getStatistics().getRecords());
+
+        time.set(start + 2000);
+        cache.advanceExpiry(time.get());
+        assertEquals(0, cache.getStatistics().getRecords());
+    }
+
+    @Test
+    void nameErrorsApplyToEveryTypeUntilRemoved() throws Exception {
+        DNSCache cache = new DNSCache(0, 0, time::get);
+        DNSNode other = new DNSNode(NODE.getHostName(), RecordType.MX);
+        cache.addNegativeResult(NegativeResult.expiringAt(NODE, true, start + 1000));
+        assertTrue(cache.getNegativeResult(other).isNonExistentName());
+
+        // replaced by a result for a name that exists
+        cache.addNegativeResult(NegativeResult.expiringAt(NODE, false, start + 1000));
+        assertFalse(cache.getNegativeResult(NODE).isNonExistentName());
+        assertNull(cache.getNegativeResult(other));
+
+        // removed when the node gets records
+        cache.addNegativeResult(NegativeResult.expiringAt(NODE, true, start + 1000));
+        assertNotNull(cache.getNegativeResult(other));
+        cache.addResult(record(1, 3600));
+        assertNull(cache.getNegativeResult(NODE));
+        assertNull(cache.getNegativeResult(other));
+
+        // and by a flush
+        cache.addNegativeResult(NegativeResult.expiringAt(other, true, start + 1000));
+        assertNotNull(cache.getNegativeResult(new DNSNode(NODE.getHostName(), RecordType.CNAME)));
+        cache.flush(NODE.getHostName());
+        assertNull(cache.getNegativeResult(new DNSNode(NODE.getHostName(), RecordType.CNAME)));
+    }
+
+    @Test
+    void popularRecordsAreRefreshedBeforeTheyExpire() throws Exception {
+        DNSCache cache = new DNSCache(0, 0, time::get);
+        AtomicInteger refreshes = new AtomicInteger();
+        // the refresh never completes, so it is started only once
+        cache.setRefresher(node -> {
+            refreshes.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        cache.addResult(record(1, 2));
+
+        // early in the TTL: used often, but not refreshed yet
+        for (int i = 0; i < 100; i++)
+            cache.getCachedResults(NODE);
+        assertEquals(0, refreshes.get());
+
+        // in the last tenth of the TTL
+        time.set(start + 1850);
+        for (int i = 0; i < 100; i++)
+            cache.getCachedResults(NODE);
+        assertEquals(1, refreshes.get());
+    }
+
+    /** Returns a record of NODE with an address, that expires a number of seconds after the
+     * start of the test.
+     */
+    private ResourceRecord record(int last, long ttl) throws Exception {
+        InetAddress address = InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) last});
+        return ResourceRecord.expiringAt(NODE.getHostName(), NODE.getType(), ttl, start + ttl * 1000, null, address);
+    }
+}
@@ -0,0 +1,91 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetAddress;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Saving a cache to a snapshot file and loading it into another cache. */
+class CacheSnapshotTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void loadedCacheHoldsTheSavedRecordsAndNegativeResults() throws Exception {
+        DNSCache saved = new DNSCache(0, 0);
+        List<ResourceRecord> records = List.of(
+                new ResourceRecord("example.com", RecordType.NS, 3600, "ns1.example.com"),
+                new ResourceRecord("example.com", RecordType.NS, 3600, "ns2.example.com"),
+                new ResourceRecord("ns1.example.com", RecordType.A, 3600, address(10, 0, 0, 1)),
+                new ResourceRecord("www.example.com", RecordType.AAAA, 600,
+                        InetAddress.getByName("2001:db8::1")),
+                new ResourceRecord("example.com", RecordType.MX, 300, "10 mail.example.com"),
+                new ResourceRecord("alias.example.com", RecordType.CNAME, 60, "www.example.com"));
+        for (ResourceRecord record : records)
+            saved.addResult(record);
+        DNSNode nameError = new DNSNode("nx.example.com", RecordType.A);
+        DNSNode noData = new DNSNode("www.example.com", RecordType.MX);
+        saved.addNegativeResult(new NegativeResult(nameError, true, 900));
+        saved.addNegativeResult(new NegativeResult(noData, false, 900));
+
+        CacheSnapshot snapshot = new CacheSnapshot(saved, directory.resolve("cache.snapshot"));
+        assertEquals(records.size() + 2, snapshot.save());
+        DNSCache loaded = new DNSCache(0, 0);
+        assertEquals(records.size() + 2, new CacheSnapshot(loaded, snapshot.getFile()).load());
+
+        for (ResourceRecord record : records) {
+            Set<ResourceRecord> results = loaded.getCachedResults(record.getNode());
+            assertEquals(saved.getCachedResults(record.getNode()), results);
+            // the remaining TTL goes through the wall clock and back
+            for (ResourceRecord result : results)
+                if (result.equals(record)) {
+                    assertEquals(record.getExpirationTime(), result.getExpirationTime(), 100);
+                    assertEquals(record.getOriginalTTL(), result.getOriginalTTL());
+                }
+        }
+        assertTrue(loaded.getNegativeResult(nameError).isNonExistentName());
+        assertFalse(loaded.getNegativeResult(noData).isNonExistentName());
+        assertEquals(saved.getStatistics().getRecords(), loaded.getStatistics().getRecords());
+    }
+
+    @Test
+    void expiredEntriesAreSkippedOnLoad() throws Exception {
+        // the saved cache's clock is behind, so it still holds entries that have already
+        // expired when the snapshot is loaded
+        long now = CoarseClock.now();
+        DNSCache saved = new DNSCache(0, 0, new AtomicLong(now - 10_000)::get);
+        ResourceRecord valid = ResourceRecord.expiringAt("www.example.com", RecordType.A, 3600, now + 3_600_000,
+                null, address(10, 0, 0, 1));
+        saved.addResult(valid);
+        saved.addResult(ResourceRecord.expiringAt("www.example.com", RecordType.A, 3600, now - 5000, null,
+                address(10, 0, 0, 2)));
+        saved.addResult(ResourceRecord.expiringAt("old.example.com", RecordType.A, 3600, now - 5000, null,
+                address(10, 0, 0, 3)));
+        DNSNode expiredNegative = new DNSNode("nx.example.com", RecordType.A);
+        saved.addNegativeResult(NegativeResult.expiringAt(expiredNegative, true, now - 5000));
+
+        CacheSnapshot snapshot = new CacheSnapshot(saved, directory.resolve("cache.snapshot"));
+        assertEquals(4, snapshot.save());
+        DNSCache loaded = new DNSCache(0, 0);
+        assertEquals(1, new CacheSnapshot(loaded, snapshot.getFile()).load());
+
+        assertEquals(Set.of(valid), loaded.getCachedResults(valid.getNode()));
+        assertEquals(1, loaded.getStatistics().getRecords());
+        assertEquals(1, loaded.getStatistics().getNodes());
+        assertNull(loaded.getNegativeResult(expiredNegative));
+    }
+
+    private static InetAddress address(int... bytes) throws Exception {
+        byte[] address = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++)
+            address[i] = (byte) bytes[i];
+        return InetAddress.getByAddress(address);
+    }
+}
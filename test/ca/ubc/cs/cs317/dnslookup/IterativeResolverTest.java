@@ -0,0 +1,73 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Lookups through a resolver whose root server is a name server on the loopback interface,
+ * that answers every query with an address after a delay.
+ */
+class IterativeResolverTest {
+
+    private static final DNSNode NODE = new DNSNode("www.example.com", RecordType.A);
+    private static final long ANSWER_DELAY_MILLIS = 200;
+
+    @Test
+    void concurrentLookupsOfANodeSendOneQuery() throws Exception {
+        ResourceRecord answer = new ResourceRecord(NODE.getHostName(), NODE.getType(), 3600,
+                InetAddress.getByAddress(new byte[]{10, 0, 0, 1}));
+        AtomicInteger queries = new AtomicInteger();
+        try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            Thread responder = new Thread(() -> answer(server, answer, queries));
+            responder.setDaemon(true);
+            responder.start();
+
+            try (IterativeResolver resolver = IterativeResolver.builder()
+                    .rootServer(InetAddress.getLoopbackAddress())
+                    .port(server.getLocalPort())
+                    .cache(new DNSCache(1000, 0))
+                    .build()) {
+                // all lookups miss the cache: the first response takes longer than starting them
+                List<CompletableFuture<Set<ResourceRecord>>> lookups = new ArrayList<>();
+                for (int i = 0; i < 20; i++)
+                    lookups.add(resolver.resolve(NODE));
+                for (CompletableFuture<Set<ResourceRecord>> lookup : lookups)
+                    assertEquals(Set.of(answer), lookup.get(10, TimeUnit.SECONDS));
+            }
+        }
+        assertEquals(1, queries.get());
+    }
+
+    /** Answers each query received by a socket with a record, until the socket is closed. */
+    private static void answer(DatagramSocket server, ResourceRecord answer, AtomicInteger queries) {
+        ResponseEncoder encoder = new ResponseEncoder();
+        DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+        try {
+            while (true) {
+                server.receive(packet);
+                queries.incrementAndGet();
+                Response query = Response.decodeResponse(Arrays.copyOf(packet.getData(), packet.getLength()));
+                Thread.sleep(ANSWER_DELAY_MILLIS);
+
+                ByteBuffer buffer = ByteBuffer.allocate(512);
+                encoder.encodeResponse(buffer, query, ResponseEncoder.RCODE_NO_ERROR, List.of(answer));
+                server.send(new DatagramPacket(buffer.array(), buffer.position(), packet.getSocketAddress()));
+            }
+        } catch (IOException | InterruptedException e) {
+            // the socket was closed at the end of the test
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** The index of cached names, on its own and through the cache operations that use it. */
+class NameTrieTest {
+
+    @Test
+    void iteratesOverTheNodesUnderASuffix() {
+        NameTrie trie = new NameTrie();
+        trie.add(new DNSNode("example.com", RecordType.NS), false);
+        trie.add(new DNSNode("www.example.com", RecordType.A), false);
+        trie.add(new DNSNode("www.example.com", RecordType.AAAA), false);
+        trie.add(new DNSNode("a.b.example.com", RecordType.A), false);
+        trie.add(new DNSNode("nx.example.com", RecordType.A), true);
+        // same last label, but not under the suffix
+        trie.add(new DNSNode("badexample.com", RecordType.A), false);
+        trie.add(new DNSNode("example.org", RecordType.A), false);
+
+        assertEquals(Set.of(new DNSNode("example.com", RecordType.NS),
+                        new DNSNode("www.example.com", RecordType.A),
+                        new DNSNode("www.example.com", RecordType.AAAA),
+                        new DNSNode("a.b.example.com", RecordType.A)),
+                nodesUnder(trie, "example.com", false));
+        assertEquals(Set.of(new DNSNode("a.b.example.com", RecordType.A)), nodesUnder(trie, "b.example.com", false));
+        assertEquals(Set.of(new DNSNode("nx.example.com", RecordType.A)), nodesUnder(trie, "example.com", true));
+        assertEquals(Set.of(), nodesUnder(trie, "c.example.com", false));
+        assertEquals(7, nodesUnder(trie, "", false).size() + nodesUnder(trie, "", true).size());
+    }
+
+    @Test
+    void findsTheEnclosingNodesClosestFirst() {
+        NameTrie trie = new NameTrie();
+        trie.add(new DNSNode("com", RecordType.NS), false);
+        trie.add(new DNSNode("example.com", RecordType.NS), false);
+        trie.add(new DNSNode("a.b.example.com", RecordType.A), false);
+
+        assertEquals(List.of(new DNSNode("a.b.example.com", RecordType.A), new DNSNode("example.com", RecordType.NS),
+                        new DNSNode("com", RecordType.NS)),
+                trie.getEnclosingNodes("x.a.b.example.com", false));
+        assertEquals(List.of(new DNSNode("example.com", RecordType.NS), new DNSNode("com", RecordType.NS)),
+                trie.getEnclosingNodes("c.example.com", false));
+        assertEquals(List.of(), trie.getEnclosingNodes("example.org", false));
+    }
+
+    @Test
+    void removesInteriorLabelsThatAreNoLongerNeeded() {
+        NameTrie trie = new NameTrie();
+        DNSNode zone = new DNSNode("example.com", RecordType.NS);
+        DNSNode deep = new DNSNode("a.b.c.example.com", RecordType.A);
+        trie.add(zone, false);
+        trie.add(deep, false);
+        trie.add(deep, true);
+
+        // the node still has a negative result
+        trie.remove(deep, false);
+        assertEquals(Set.of(deep), nodesUnder(trie, "c.example.com", true));
+        trie.remove(deep, true);
+        assertEquals(Set.of(), nodesUnder(trie, "c.example.com", true));
+        assertEquals(Set.of(zone), nodesUnder(trie, "", false));
+
+        // the labels of c.example.com and b.c.example.com were removed with the node, so
+        // removing the zone leaves nothing behind
+        trie.remove(zone, false);
+        assertTrue(trie.isEmpty());
+
+        // a name with nodes is kept even if the names under it are removed
+        trie.add(zone, false);
+        trie.add(deep, false);
+        trie.remove(deep, false);
+        assertFalse(trie.isEmpty());
+        assertEquals(List.of(zone), trie.getEnclosingNodes("a.b.c.example.com", false));
+        trie.remove(zone, false);
+        assertTrue(trie.isEmpty());
+    }
+
+    @Test
+    void readersAlwaysSeeNodesThatAreNotRemoved() throws InterruptedException {
+        NameTrie trie = new NameTrie();
+        DNSNode stable = new DNSNode("stable.b.example.com", RecordType.A);
+        trie.add(stable, false);
+
+        AtomicBoolean done = new AtomicBoolean();
+        ConcurrentLinkedQueue<String> failures = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            // writers add and remove names around the stable one, creating and pruning labels
+            threads.add(new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 50_000; i++) {
+                    DNSNode node = new DNSNode("n" + random.nextInt(20) + "." +
+                            (random.nextBoolean() ? "b." : "c.") + "example.com", RecordType.A);
+                    trie.add(node, false);
+                    trie.remove(node, false);
+                }
+            }));
+        }
+        for (int t = 0; t < 2; t++) {
+            threads.add(new Thread(() -> {
+                while (!done.get()) {
+                    if (!trie.getEnclosingNodes(stable.getHostName(), false).contains(stable))
+                        failures.add("enclosing nodes without " + stable);
+                    Set<DNSNode> nodes = new HashSet<>();
+                    trie.forEachNode("example.com", false, nodes::add);
+                    if (!nodes.contains(stable))
+                        failures.add("suffix iteration without " + stable);
+                    for (DNSNode node : nodes)
+                        if (!node.getHostName().endsWith(".example.com"))
+                            failures.add("suffix iteration returned " + node);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads.subList(0, 3))
+            thread.join();
+        done.set(true);
+        for (Thread thread : threads.subList(3, 5))
+            thread.join();
+
+        assertEquals(List.of(), new ArrayList<>(failures));
+        assertEquals(Set.of(stable), nodesUnder(trie, "", false));
+        trie.remove(stable, false);
+        assertTrue(trie.isEmpty());
+    }
+
+    @Test
+    void flushRemovesTheSuffixAndUpdatesTheStatistics() throws Exception {
+        DNSCache cache = new DNSCache(1000, 0);
+        DNSCache remaining = new DNSCache(1000, 0);
+        for (DNSCache c : List.of(cache, remaining)) {
+            c.addResult(new ResourceRecord("example.org", RecordType.A, 3600, address(1)));
+            c.addResult(new ResourceRecord("example.org", RecordType.NS, 3600, "ns.example.org"));
+            c.addNegativeResult(new NegativeResult(new DNSNode("nx.example.org", RecordType.A), true, 3600));
+        }
+        cache.addResult(new ResourceRecord("example.com", RecordType.NS, 3600, "ns1.example.com"));
+        cache.addResult(new ResourceRecord("example.com", RecordType.NS, 3600, "ns2.example.com"));
+        cache.addResult(new ResourceRecord("www.example.com", RecordType.A, 3600, address(2)));
+        cache.addResult(new ResourceRecord("a.b.example.com", RecordType.A, 3600, address(3)));
+        cache.addNegativeResult(new NegativeResult(new DNSNode("nx.example.com", RecordType.A), true, 3600));
+        cache.addNegativeResult(new NegativeResult(new DNSNode("www.example.com", RecordType.AAAA), false, 3600));
+
+        assertEquals(6, cache.flush("Example.COM."));
+
+        CacheStatistics statistics = cache.getStatistics();
+        CacheStatistics expected = remaining.getStatistics();
+        assertEquals(expected.getNodes(), statistics.getNodes());
+        assertEquals(expected.getRecords(), statistics.getRecords());
+        assertEquals(expected.getEstimatedBytes(), statistics.getEstimatedBytes());
+        assertTrue(cache.getCachedResults(new DNSNode("www.example.com", RecordType.A)).isEmpty());
+        assertNull(cache.getNegativeResult(new DNSNode("nx.example.com", RecordType.A)));
+        assertEquals(2, cache.getCachedResults(new DNSNode("example.org", RecordType.A)).size() +
+                cache.getCachedResults(new DNSNode("example.org", RecordType.NS)).size());
+        assertNotNull(cache.getNegativeResult(new DNSNode("nx.example.org", RecordType.A)));
+
+        // flushing again removes nothing, and flushing everything empties the cache
+        assertEquals(0, cache.flush("example.com"));
+        assertEquals(3, cache.flush(""));
+        statistics = cache.getStatistics();
+        assertEquals(0, statistics.getNodes());
+        assertEquals(0, statistics.getRecords());
+        assertEquals(0, statistics.getEstimatedBytes());
+    }
+
+    @Test
+    void sharesOneStringPerName() {
+        NameTrie trie = new NameTrie();
+        String name = new String("www.example.com");
+        assertSame(name, trie.getCanonicalName(name));
+        trie.add(new DNSNode(name, RecordType.A), false);
+
+        String copy = new String(name);
+        assertSame(name, trie.getCanonicalName(copy));
+        trie.add(new DNSNode(trie.getCanonicalName(copy), RecordType.AAAA), true);
+        for (DNSNode node : nodesUnder(trie, "example.com", false))
+            assertSame(name, node.getHostName());
+
+        trie.remove(new DNSNode(name, RecordType.A), false);
+        trie.remove(new DNSNode(name, RecordType.AAAA), true);
+        assertSame(copy, trie.getCanonicalName(copy));
+    }
+
+    @Test
+    void cachedRecordsNamingACachedNameShareItsString() throws Exception {
+        DNSCache cache = new DNSCache(1000, 0);
+        String name = new String("ns.example.com");
+        cache.addResult(new ResourceRecord(name, RecordType.A, 3600, address(1)));
+        cache.addResult(new ResourceRecord("example.com", RecordType.NS, 3600, new String(name)));
+        cache.addResult(new ResourceRecord("alias.example.com", RecordType.CNAME, 3600, new String(name)));
+
+        for (DNSNode node : List.of(new DNSNode("example.com", RecordType.NS),
+                new DNSNode("alias.example.com", RecordType.CNAME))) {
+            Set<ResourceRecord> results = cache.getCachedResults(node);
+            assertEquals(1, results.size());
+            assertSame(name, results.iterator().next().getTextResult());
+        }
+    }
+
+    @Test
+    void closestEncloserIsTheClosestNameWithValidRecords() throws Exception {
+        AtomicLong time = new AtomicLong(CoarseClock.now());
+        long start = time.get();
+        DNSCache cache = new DNSCache(0, 0, time::get);
+        cache.addResult(new ResourceRecord("example.com", RecordType.NS, 3600, "ns.example.com"));
+        cache.addResult(new ResourceRecord("a.b.example.com", RecordType.A, 3600, address(1)));
+        cache.addResult(ResourceRecord.expiringAt("short.example.com", RecordType.A, 1, start + 1000, null,
+                address(2)));
+        cache.addNegativeResult(new NegativeResult(new DNSNode("nx.example.com", RecordType.A), true, 3600));
+
+        assertEquals("a.b.example.com", cache.getClosestEncloser("a.b.example.com"));
+        assertEquals("a.b.example.com", cache.getClosestEncloser("X.A.B.Example.com."));
+        assertEquals("example.com", cache.getClosestEncloser("c.b.example.com"));
+        // negative results don't make a name an encloser
+        assertEquals("example.com", cache.getClosestEncloser("www.nx.example.com"));
+        assertNull(cache.getClosestEncloser("example.org"));
+
+        assertEquals("short.example.com", cache.getClosestEncloser("www.short.example.com"));
+        time.set(start + 1000);
+        assertEquals("example.com", cache.getClosestEncloser("www.short.example.com"));
+    }
+
+    @Test
+    void closestDelegationIsFoundWithoutCountingLookups() throws Exception {
+        DNSCache cache = new DNSCache(1000, 0);
+        AtomicInteger refreshes = new AtomicInteger();
+        cache.setRefresher(node -> {
+            refreshes.incrementAndGet();
+            return new CompletableFuture<>();
+        });
+        cache.addResult(new ResourceRecord("example.com", RecordType.NS, 3600, "ns.example.com"));
+        cache.addResult(new ResourceRecord("ns.example.com", RecordType.A, 3600, address(1)));
+        cache.addResult(new ResourceRecord("com", RecordType.NS, 3600, "ns.com"));
+
+        for (int i = 0; i < 100; i++) {
+            Delegation delegation = cache.getClosestDelegation("www.example.com");
+            assertEquals("example.com", delegation.getZone());
+            assertEquals(List.of(address(1)), delegation.getAddresses());
+        }
+        CacheStatistics statistics = cache.getStatistics();
+        assertEquals(0, statistics.getHits());
+        assertEquals(0, statistics.getMisses());
+        assertEquals(0, refreshes.get());
+    }
+
+    private static Set<DNSNode> nodesUnder(NameTrie trie, String suffix, boolean negative) {
+        Set<DNSNode> nodes = new HashSet<>();
+        trie.forEachNode(suffix, negative, nodes::add);
+        return nodes;
+    }
+
+    private static InetAddress address(int last) throws Exception {
+        return InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) last});
+    }
+}
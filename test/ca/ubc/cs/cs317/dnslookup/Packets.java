@@ -0,0 +1,42 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/** Loads the DNS messages shared with the benchmarks. Each message is a resource in the packets
+ * directory, in hexadecimal, with comment lines (starting with #) describing its content. The
+ * benchmarks use this class from the test jar.
+ */
+public final class Packets {
+
+    private Packets() {
+    }
+
+    /** Returns the bytes of a message.
+     *
+     * @param name Name of the message, e.g., root-referral.compressed.
+     * @return The message, as sent on the wire.
+     * @throws IOException If the message can't be found or read.
+     */
+    public static byte[] load(String name) throws IOException {
+        String resource = "/packets/" + name + ".hex";
+        InputStream in = Packets.class.getResourceAsStream(resource);
+        if (in == null)
+            throw new IOException("No such packet: " + resource);
+
+        StringBuilder hex = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = reader.readLine()) != null)
+                if (!line.startsWith("#"))
+                    hex.append(line.trim());
+        }
+        byte[] data = new byte[hex.length() / 2];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return data;
+    }
+}
@@ -0,0 +1,63 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PoolTest {
+
+    @Test
+    void reusesObjectsAcrossThreads() throws InterruptedException {
+        AtomicInteger created = new AtomicInteger();
+        Pool<Object> pool = new Pool<>(() -> {
+            created.incrementAndGet();
+            return new Object();
+        });
+
+        // each short-lived thread takes the object returned by the one before it
+        for (int i = 0; i < 100; i++) {
+            Thread thread = new Thread(() -> pool.release(pool.acquire()));
+            thread.start();
+            thread.join();
+        }
+        assertEquals(1, created.get());
+    }
+
+    @Test
+    void neverHandsOutTheSameObjectTwice() throws InterruptedException {
+        AtomicInteger created = new AtomicInteger();
+        Pool<Object> pool = new Pool<>(() -> {
+            created.incrementAndGet();
+            return new Object();
+        });
+        Set<Object> inUse = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+        List<Object> duplicates = Collections.synchronizedList(new ArrayList<>());
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    Object item = pool.acquire();
+                    if (!inUse.add(item))
+                        duplicates.add(item);
+                    inUse.remove(item);
+                    pool.release(item);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(List.of(), duplicates);
+        // a thread may miss an object being returned at the same time, but objects are reused
+        assertTrue(created.get() < 10_000);
+    }
+}
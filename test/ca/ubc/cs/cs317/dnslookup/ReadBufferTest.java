@@ -0,0 +1,83 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReadBufferTest {
+
+    @Test
+    void drainsReadsInOrderAndDropsThemWhenFull() {
+        ReadBuffer<Integer> buffer = new ReadBuffer<>();
+        int accepted = 0;
+        boolean full = false;
+        for (int i = 0; i < 100 && !full; i++) {
+            full = buffer.offer(i);
+            accepted++;
+        }
+        assertTrue(full);
+        // dropped: the stripe of this thread is full
+        assertTrue(buffer.offer(1000));
+
+        List<Integer> drained = new ArrayList<>();
+        buffer.drainTo(drained::add);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < accepted; i++)
+            expected.add(i);
+        assertEquals(expected, drained);
+
+        drained.clear();
+        assertFalse(buffer.offer(2000));
+        buffer.drainTo(drained::add);
+        assertEquals(List.of(2000), drained);
+    }
+
+    @Test
+    void drainsEachReadAtMostOnceUnderContention() throws InterruptedException {
+        ReadBuffer<Integer> buffer = new ReadBuffer<>();
+        ReentrantLock lock = new ReentrantLock();
+        Set<Integer> drained = new HashSet<>();
+        List<Integer> duplicates = new ArrayList<>();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int base = t * 1_000_000;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    if (buffer.offer(base + i) && lock.tryLock()) {
+                        try {
+                            buffer.drainTo(item -> {
+                                if (!drained.add(item))
+                                    duplicates.add(item);
+                            });
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads)
+            thread.join();
+        lock.lock();
+        try {
+            buffer.drainTo(item -> {
+                if (!drained.add(item))
+                    duplicates.add(item);
+            });
+        } finally {
+            lock.unlock();
+        }
+
+        assertEquals(List.of(), duplicates);
+        assertFalse(drained.isEmpty());
+        assertFalse(drained.contains(null));
+    }
+}
@@ -0,0 +1,82 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Records read back from a block are those stored in it, whatever the layout of the block. */
+class RecordBlockTest {
+
+    private static final long NOW = CoarseClock.now();
+
+    static Stream<List<ResourceRecord>> records() throws UnknownHostException {
+        return Stream.of(
+                List.of(record("www.example.com", RecordType.A, 300, null, InetAddress.getByName("192.0.2.1")),
+                        record("www.example.com", RecordType.A, 60, null, InetAddress.getByName("255.255.255.254"))),
+                List.of(record("www.example.com", RecordType.AAAA, 300, null, InetAddress.getByName("2001:db8::1")),
+                        record("www.example.com", RecordType.AAAA, 60, null,
+                                InetAddress.getByName("ffff:ffff:ffff:ffff:ffff:ffff:ffff:fffe"))),
+                // a scoped address doesn't fit in two longs
+                List.of(record("www.example.com", RecordType.AAAA, 300, null, InetAddress.getByName("2001:db8::1")),
+                        record("www.example.com", RecordType.AAAA, 60, null,
+                                Inet6Address.getByAddress(null, InetAddress.getByName("fe80::1").getAddress(), 1))),
+                List.of(record("example.com", RecordType.NS, 172800, "a.iana-servers.net", null),
+                        record("example.com", RecordType.NS, 0xFFFFFFFFL, "b.iana-servers.net", null)),
+                List.of(record("example.com", RecordType.MX, 3600, "10 mail.example.com", null)),
+                List.of(record("example.com", RecordType.OTHER, 3600, "\\# 3 01abff", null),
+                        record("example.com", RecordType.OTHER, 0, "\\# 0 ", null)));
+    }
+
+    @ParameterizedTest
+    @MethodSource("records")
+    void blockBuiltInOnePassHoldsTheRecords(List<ResourceRecord> records) {
+        assertHolds(records, RecordBlock.of(records));
+    }
+
+    @ParameterizedTest
+    @MethodSource("records")
+    void blockBuiltOneRecordAtATimeHoldsTheRecords(List<ResourceRecord> records) {
+        RecordBlock block = RecordBlock.of(records.get(0));
+        for (ResourceRecord record : records.subList(1, records.size())) {
+            assertEquals(-1, block.indexOf(record));
+            block = block.with(record, -1);
+        }
+        assertHolds(records, block);
+
+        // replacing a record keeps the others
+        ResourceRecord first = records.get(0);
+        ResourceRecord renewed = ResourceRecord.expiringAt(first.getHostName(), first.getType(), 7,
+                first.getExpirationTime() + 1000, first.getTextResult(), first.getInetResult());
+        List<ResourceRecord> expected = new ArrayList<>(records);
+        expected.set(0, renewed);
+        assertHolds(expected, block.with(renewed, block.indexOf(renewed)));
+    }
+
+    private static void assertHolds(List<ResourceRecord> records, RecordBlock block) {
+        assertEquals(records.size(), block.size());
+        DNSNode node = records.get(0).getNode();
+        for (ResourceRecord record : records) {
+            int index = block.indexOf(record);
+            ResourceRecord read = block.get(node, index);
+            assertEquals(record, read);
+            assertEquals(record.getTextResult(), read.getTextResult());
+            assertEquals(record.getInetResult(), read.getInetResult());
+            assertEquals(record.getExpirationTime(), read.getExpirationTime());
+            assertEquals(record.getOriginalTTL(), read.getOriginalTTL());
+            assertEquals(record.getExpirationTime(), block.getExpirationTime(index));
+        }
+    }
+
+    private static ResourceRecord record(String hostName, RecordType type, long ttl, String text,
+                                         InetAddress address) {
+        return ResourceRecord.expiringAt(hostName, type, ttl, NOW + ttl * 1000, text, address);
+    }
+}
@@ -0,0 +1,121 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Responses written by the server, read back by the response decoder. */
+class ResponseEncoderTest {
+
+    private static final int MAX_UDP_SIZE = 512;
+
+    @Test
+    void answersDecodeToTheRecordsEncoded() throws IOException {
+        Response query = query("www.example.com", RecordType.A, 0);
+        List<ResourceRecord> answers = List.of(
+                new ResourceRecord("www.example.com", RecordType.CNAME, 300, "web.example.com"),
+                new ResourceRecord("web.example.com", RecordType.A, 60, address(10, 0, 0, 1)),
+                new ResourceRecord("web.example.com", RecordType.AAAA, 60, InetAddress.getByName("2001:db8::1")),
+                new ResourceRecord("example.com", RecordType.NS, 3600, "ns1.example.com"),
+                new ResourceRecord("example.com", RecordType.MX, 3600, "10 mail.example.com"),
+                new ResourceRecord("example.com", RecordType.SOA, 3600,
+                        "ns1.example.com admin.example.com 2024010101 7200 3600 1209600 300"));
+
+        byte[] message = encode(query, ResponseEncoder.RCODE_NO_ERROR, answers, MAX_UDP_SIZE);
+        Response response = Response.decodeResponse(message);
+
+        assertEquals(query.getID(), response.getID());
+        assertFalse(response.isQuery());
+        assertFalse(response.isTruncated());
+        assertEquals(ResponseEncoder.RCODE_NO_ERROR, response.getRCODE());
+        assertEquals(query.isRecursionDesired(), response.isRecursionDesired());
+        assertEquals(new DNSNode("www.example.com", RecordType.A), response.getQuestion());
+        assertEquals(answers, response.getAnswers());
+        for (int i = 0; i < answers.size(); i++) {
+            assertEquals(answers.get(i).getTextResult(), response.getAnswers().get(i).getTextResult());
+            assertEquals(answers.get(i).getTTL(), response.getAnswers().get(i).getTTL(), 1);
+        }
+        // the zone name is only written in the question, the other names end with a pointer
+        assertEquals(1, count(message, "\u0003com\u0000"));
+        assertEquals(1, count(message, "\u0007example\u0003com\u0000"));
+    }
+
+    @Test
+    void answersLargerThanAUdpResponseAreLeftOutAndFlagged() throws IOException {
+        Response query = query("www.example.com", RecordType.A, 0);
+        // 40 address records of 16 bytes each (with a compressed name) don't fit in 512 bytes
+        List<ResourceRecord> answers = new ArrayList<>();
+        for (int i = 1; i <= 40; i++)
+            answers.add(new ResourceRecord("www.example.com", RecordType.A, 60, address(10, 0, 0, i)));
+
+        byte[] message = encode(query, ResponseEncoder.RCODE_NO_ERROR, answers, MAX_UDP_SIZE);
+        Response response = Response.decodeResponse(message);
+
+        assertTrue(message.length <= MAX_UDP_SIZE);
+        assertTrue(response.isTruncated());
+        assertTrue(response.getAnswers().isEmpty());
+        assertEquals(new DNSNode("www.example.com", RecordType.A), response.getQuestion());
+
+        // the same answers fit in the payload size advertised by an EDNS query
+        Response ednsQuery = query("www.example.com", RecordType.A, 1232);
+        response = Response.decodeResponse(encode(ednsQuery, ResponseEncoder.RCODE_NO_ERROR, answers, 1232));
+        assertFalse(response.isTruncated());
+        assertEquals(answers, response.getAnswers());
+        assertTrue(response.hasEDNS());
+        assertEquals(1232, response.getUDPPayloadSize());
+    }
+
+    @Test
+    void errorResponseIsAHeaderOnly() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_UDP_SIZE);
+        new ResponseEncoder().encodeError(buffer, (short) 0x1234, ResponseEncoder.RCODE_FORMAT_ERROR);
+
+        assertEquals(12, buffer.position());
+        Response response = Response.decodeResponse(buffer.flip());
+        assertEquals(0x1234, response.getID());
+        assertEquals(ResponseEncoder.RCODE_FORMAT_ERROR, response.getRCODE());
+        assertNull(response.getQuestion());
+    }
+
+    private static Response query(String hostName, RecordType type, int payloadSize) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(Query.MAX_QUERY_SIZE);
+        Query.encodeQuery(buffer, new DNSNode(hostName, type), (short) 0x5A3C, payloadSize);
+        return Response.decodeResponse(buffer.flip());
+    }
+
+    private static byte[] encode(Response query, int rcode, List<ResourceRecord> answers, int size) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        new ResponseEncoder().encodeResponse(buffer, query, rcode, answers);
+        byte[] message = new byte[buffer.position()];
+        buffer.flip().get(message);
+        return message;
+    }
+
+    /** Returns the number of occurrences of a sequence of bytes (given as ISO-8859-1 characters). */
+    private static int count(byte[] message, String sequence) {
+        byte[] bytes = sequence.getBytes(StandardCharsets.ISO_8859_1);
+        int count = 0;
+        for (int i = 0; i + bytes.length <= message.length; i++) {
+            int j = 0;
+            while (j < bytes.length && message[i + j] == bytes[j])
+                j++;
+            if (j == bytes.length)
+                count++;
+        }
+        return count;
+    }
+
+    private static InetAddress address(int... bytes) throws IOException {
+        byte[] address = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++)
+            address[i] = (byte) bytes[i];
+        return InetAddress.getByAddress(address);
+    }
+}
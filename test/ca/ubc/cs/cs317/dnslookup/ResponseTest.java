@@ -0,0 +1,333 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseTest {
+
+    private static final int TYPE_UNKNOWN = 0xFF00;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"root-referral", "tld-referral", "cname-answer", "mx-answer", "nxdomain"})
+    void compressedAndUncompressedNamesDecodeTheSame(String packet) throws IOException {
+        Response compressed = Response.decodeResponse(Packets.load(packet + ".compressed"));
+        Response uncompressed = Response.decodeResponse(Packets.load(packet + ".uncompressed"));
+
+        assertEquals(uncompressed.getQuestion(), compressed.getQuestion());
+        assertEquals(uncompressed.getRCODE(), compressed.getRCODE());
+        assertEquals(uncompressed.getAnswers(), compressed.getAnswers());
+        assertEquals(uncompressed.getNameservers(), compressed.getNameservers());
+        assertEquals(uncompressed.getAdditional(), compressed.getAdditional());
+        assertFalse(compressed.getRecords().isEmpty());
+    }
+
+    @Test
+    void rootReferral() throws IOException {
+        Response response = Response.decodeResponse(Packets.load("root-referral.compressed"));
+
+        assertEquals(new DNSNode("www.google.com", RecordType.A), response.getQuestion());
+        assertTrue(response.isReferral());
+        assertTrue(response.getAnswers().isEmpty());
+        assertEquals(13, response.getNameservers().size());
+        for (ResourceRecord record : response.getNameservers()) {
+            assertEquals("com", record.getHostName());
+            assertEquals(RecordType.NS, record.getType());
+            assertTrue(record.getTextResult().endsWith(".gtld-servers.net"), record.getTextResult());
+        }
+        // the last glue records are named through pointers past the first 256 bytes
+        assertTrue(response.getAdditional().stream().anyMatch(r -> r.getHostName().equals("m.gtld-servers.net")));
+    }
+
+    @Test
+    void nameError() throws IOException {
+        Response response = Response.decodeResponse(Packets.load("nxdomain.compressed"));
+
+        assertTrue(response.isNameError());
+        assertTrue(response.isNegative());
+        assertEquals(ResponseEncoder.RCODE_NAME_ERROR, response.getRCODE());
+        assertTrue(response.getNegativeTTL() >= 0);
+    }
+
+    @ParameterizedTest
+    @CsvSource({"60, 300, 60", "900, 30, 30", "300, 300, 300"})
+    void negativeAnswerIsCachedForTheSmallerOfTheSOATTLAndMinimum(long soaTTL, long minimum, long expected)
+            throws IOException {
+        Message message = new Message().header(0, 0x0400 | ResponseEncoder.RCODE_NAME_ERROR).question("nx.example", 1);
+        // the SOA record of the zone "example", which starts at offset 15 in the question
+        byte[] soa = new Message().label("ns").pointer(15).label("admin").pointer(15)
+                .u32(1).u32(7200).u32(3600).u32(1209600).u32(minimum).toByteArray();
+        message.pointer(15).record(6, soaTTL, soa).nscount(1);
+        Response response = Response.decodeResponse(message.toByteArray());
+        assertEquals(expected, response.getNegativeTTL());
+
+        // cached as the resolver does, with a clock set by the test
+        AtomicLong time = new AtomicLong(CoarseClock.now());
+        long start = time.get();
+        DNSCache cache = new DNSCache(0, 0, time::get);
+        DNSNode node = response.getQuestion();
+        cache.addNegativeResult(new NegativeResult(node, response.isNameError(), response.getNegativeTTL()));
+        time.set(start + expected * 1000 - 1);
+        assertTrue(cache.getNegativeResult(node).isNonExistentName());
+        time.set(start + expected * 1000 + 1000);
+        assertNull(cache.getNegativeResult(node));
+    }
+
+    @Test
+    void followsFourteenBitPointers() throws IOException {
+        Message message = new Message().header(2, 0).question("a.example", 1);
+        // a record of unknown type whose data holds a name past offset 0x100, at an offset whose
+        // low byte has its high bit set
+        int dataStart = message.size() + 12;
+        int target = 0x1A0;
+        byte[] data = new byte[target - dataStart + 16];
+        byte[] name = {6, 't', 'a', 'r', 'g', 'e', 't', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 0};
+        System.arraycopy(name, 0, data, target - dataStart, name.length);
+        message.pointer(12).record(TYPE_UNKNOWN, 60, data);
+        message.pointer(target).record(1, 60, new byte[]{10, 0, 0, 1});
+
+        Response response = Response.decodeResponse(message.toByteArray());
+
+        ResourceRecord record = response.getAnswers().get(1);
+        assertEquals("target.example", record.getHostName());
+        assertEquals(InetAddress.getByAddress(new byte[]{10, 0, 0, 1}), record.getInetResult());
+    }
+
+    @Test
+    void followsChainedPointers() throws IOException {
+        Message message = new Message().header(1, 0).question("example", 1);
+        // www -> pointer to the question name
+        int www = message.size() + 2 + 10;
+        message.pointer(12).record(5, 60, new Message().label("www").pointer(12).toByteArray());
+        message.ancount(2);
+        message.pointer(www).record(1, 60, new byte[]{10, 0, 0, 2});
+
+        Response response = Response.decodeResponse(message.toByteArray());
+
+        assertEquals("www.example", response.getAnswers().get(0).getTextResult());
+        assertEquals("www.example", response.getAnswers().get(1).getHostName());
+    }
+
+    @Test
+    void rejectsPointerToItself() {
+        Message message = new Message().header(0, 0);
+        message.bytes(0xC0, 12).bytes(0, 1, 0, 1);
+        message.qdcount(1);
+
+        assertThrows(IOException.class, () -> Response.decodeResponse(message.toByteArray()));
+    }
+
+    @Test
+    void rejectsForwardPointer() {
+        Message message = new Message().header(1, 0).question("example", 1);
+        int forward = message.size() + 2 + 10 + 4;
+        message.pointer(forward).record(1, 60, new byte[]{10, 0, 0, 1});
+        message.label("example").bytes(0);
+
+        assertThrows(IOException.class, () -> Response.decodeResponse(message.toByteArray()));
+    }
+
+    @Test
+    void rejectsPointerLoop() {
+        // two pointers pointing at each other, in the data of a record of unknown type; the
+        // second record's name jumps back to the second pointer, which leads into the loop
+        Message message = new Message().header(2, 0).question("example", 1);
+        int first = message.size() + 2 + 10;
+        byte[] loop = new Message().pointer(first + 2).pointer(first).toByteArray();
+        message.pointer(12).record(TYPE_UNKNOWN, 60, loop);
+        message.pointer(first + 2).record(1, 60, new byte[]{10, 0, 0, 1});
+
+        assertThrows(IOException.class, () -> Response.decodeResponse(message.toByteArray()));
+    }
+
+    @Test
+    void acceptsNameOf255Octets() throws IOException {
+        // 3 labels of 63 octets and one of 61: 3 * 64 + 62 + 1 = 255 octets on the wire
+        String name = label(63) + "." + label(63) + "." + label(63) + "." + label(61);
+        Message message = new Message().header(0, 0).question(name, 1);
+
+        assertEquals(name, Response.decodeResponse(message.toByteArray()).getQuestionName());
+    }
+
+    @Test
+    void rejectsNameLongerThan255Octets() {
+        // 4 labels of 63 octets: 4 * 64 + 1 = 257 octets on the wire
+        String name = label(63) + "." + label(63) + "." + label(63) + "." + label(63);
+        Message message = new Message().header(0, 0).question(name, 1);
+
+        assertThrows(IOException.class, () -> Response.decodeResponse(message.toByteArray()));
+    }
+
+    @Test
+    void rejectsLongNameBuiltFromPointers() {
+        // a 255-octet name extended by one more label through a pointer
+        String name = label(63) + "." + label(63) + "." + label(63) + "." + label(61);
+        Message message = new Message().header(1, 0).question(name, 1);
+        message.label("x").pointer(12).record(1, 60, new byte[]{10, 0, 0, 1});
+
+        assertThrows(IOException.class, () -> Response.decodeResponse(message.toByteArray()));
+    }
+
+    @Test
+    void rejectsExtendedLabelTypes() {
+        Message message = new Message().header(0, 0);
+        message.bytes(0x41, 0).bytes(0, 1, 0, 1).qdcount(1);
+
+        assertThrows(IOException.class, () -> Response.decodeResponse(message.toByteArray()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"root-referral", "tld-referral", "cname-answer", "mx-answer", "nxdomain"})
+    void rejectsEveryTruncation(String packet) throws IOException {
+        for (String variant : new String[]{".compressed", ".uncompressed"}) {
+            byte[] data = Packets.load(packet + variant);
+            for (int length = 0; length < data.length; length++) {
+                byte[] truncated = Arrays.copyOf(data, length);
+                assertThrows(IOException.class, () -> Response.decodeResponse(truncated),
+                        packet + variant + " cut at " + length);
+            }
+        }
+    }
+
+    @Test
+    void decodesQuestionOfTruncatedResponseCutInARecord() throws IOException {
+        byte[] data = Packets.load("root-referral.compressed");
+        data[2] |= 0x02;
+        for (int length = 40; length < data.length; length += 37) {
+            Response response = Response.decodeResponse(Arrays.copyOf(data, length));
+            assertTrue(response.isTruncated());
+            assertEquals(new DNSNode("www.google.com", RecordType.A), response.getQuestion());
+            assertTrue(response.getRecords().isEmpty());
+        }
+    }
+
+    @Test
+    void rejectsTruncatedResponseCutInTheQuestion() throws IOException {
+        byte[] data = Arrays.copyOf(Packets.load("root-referral.compressed"), 20);
+        data[2] |= 0x02;
+
+        assertThrows(IOException.class, () -> Response.decodeResponse(data));
+    }
+
+    @Test
+    void rejectsRecordDataPastTheEnd() {
+        Message message = new Message().header(1, 0).question("example", 1);
+        message.pointer(12).u16(1).u16(1).u32(60).u16(8).bytes(10, 0, 0, 1);
+
+        assertThrows(IOException.class, () -> Response.decodeResponse(message.toByteArray()));
+    }
+
+    @Test
+    void rejectsNameOverflowingRecordData() {
+        Message message = new Message().header(1, 0).question("example", 1);
+        // an NS record whose length covers only part of its name
+        message.pointer(12).u16(2).u16(1).u32(60).u16(3).label("ns").pointer(12);
+
+        assertThrows(IOException.class, () -> Response.decodeResponse(message.toByteArray()));
+    }
+
+    @Test
+    void decodesUnknownTypesInGenericFormat() throws IOException {
+        Message message = new Message().header(2, 0).question("example", TYPE_UNKNOWN);
+        message.pointer(12).record(TYPE_UNKNOWN, 60, new byte[]{0x01, (byte) 0xAB, (byte) 0xFF});
+        message.pointer(12).record(TYPE_UNKNOWN, 60, new byte[0]);
+
+        List<ResourceRecord> answers = Response.decodeResponse(message.toByteArray()).getAnswers();
+
+        assertEquals(RecordType.OTHER, answers.get(0).getType());
+        assertEquals("\\# 3 01abff", answers.get(0).getTextResult());
+        assertEquals("\\# 0 ", answers.get(1).getTextResult());
+    }
+
+    private static String label(int length) {
+        char[] label = new char[length];
+        Arrays.fill(label, 'a');
+        return new String(label);
+    }
+
+    /** Builds a response by hand. */
+    private static final class Message {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Message header(int ancount, int flags) {
+            return u16(0x1234).u16(0x8000 | flags).u16(0).u16(ancount).u16(0).u16(0);
+        }
+
+        Message qdcount(int qdcount) {
+            return patch(4, qdcount);
+        }
+
+        Message ancount(int ancount) {
+            return patch(6, ancount);
+        }
+
+        Message nscount(int nscount) {
+            return patch(8, nscount);
+        }
+
+        Message question(String name, int type) {
+            for (String label : name.split("\\."))
+                label(label);
+            bytes(0).u16(type).u16(1);
+            return qdcount(1);
+        }
+
+        Message label(String label) {
+            out.write(label.length());
+            for (char c : label.toCharArray())
+                out.write(c);
+            return this;
+        }
+
+        Message pointer(int offset) {
+            return u16(0xC000 | offset);
+        }
+
+        Message record(int type, long ttl, byte[] data) {
+            u16(type).u16(1).u32(ttl).u16(data.length);
+            out.write(data, 0, data.length);
+            return this;
+        }
+
+        Message u16(int value) {
+            return bytes(value >> 8, value);
+        }
+
+        Message u32(long value) {
+            return u16((int) (value >> 16)).u16((int) value);
+        }
+
+        Message bytes(int... values) {
+            for (int value : values)
+                out.write(value & 0xFF);
+            return this;
+        }
+
+        int size() {
+            return out.size();
+        }
+
+        byte[] toByteArray() {
+            return out.toByteArray();
+        }
+
+        private Message patch(int offset, int value) {
+            byte[] current = out.toByteArray();
+            current[offset] = (byte) (value >> 8);
+            current[offset + 1] = (byte) value;
+            out.reset();
+            out.write(current, 0, current.length);
+            return this;
+        }
+    }
+}
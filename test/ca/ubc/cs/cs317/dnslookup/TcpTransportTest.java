@@ -0,0 +1,135 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Connections closed by a server while queries sent on them are waiting for their responses. */
+class TcpTransportTest {
+
+    private static final DNSNode FIRST = new DNSNode("a.example.com", RecordType.A);
+    private static final DNSNode SECOND = new DNSNode("b.example.com", RecordType.A);
+
+    @Test
+    void unansweredQueriesAreSentAgainOnANewConnection() throws Exception {
+        // the first connection answers the first of two queries and closes, later ones answer all
+        try (FakeServer server = new FakeServer((connection, in, out) -> {
+            if (connection == 1) {
+                Response first = readQuery(in);
+                readQuery(in);
+                answer(out, first);
+                return;
+            }
+            while (true)
+                answer(out, readQuery(in));
+        }); TcpTransport transport = new TcpTransport(0, 1, 8)) {
+            PendingQuery first = transport.send(server.getAddress(), server.getPort(), FIRST, 5000);
+            PendingQuery second = transport.send(server.getAddress(), server.getPort(), SECOND, 5000);
+
+            assertAnswers(FIRST, first.get(5, TimeUnit.SECONDS));
+            assertAnswers(SECOND, second.get(5, TimeUnit.SECONDS));
+            assertEquals(2, server.connections.get());
+        }
+    }
+
+    @Test
+    void queryFailsOnceSentOnMaxSendsConnections() throws Exception {
+        // every connection is closed after reading a query, without answering it
+        try (FakeServer server = new FakeServer((connection, in, out) -> readQuery(in));
+             TcpTransport transport = new TcpTransport(0, 1, 8)) {
+            PendingQuery query = transport.send(server.getAddress(), server.getPort(), FIRST, 5000);
+
+            ExecutionException e = assertThrows(ExecutionException.class, () -> query.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(IOException.class, e.getCause());
+            assertEquals(TcpTransport.MAX_SENDS, server.connections.get());
+        }
+    }
+
+    private static void assertAnswers(DNSNode node, Response response) {
+        assertEquals(node, response.getQuestion());
+        assertEquals(1, response.getAnswers().size());
+        assertEquals(node, response.getAnswers().get(0).getNode());
+    }
+
+    private static Response readQuery(DataInputStream in) throws IOException {
+        byte[] message = new byte[in.readUnsignedShort()];
+        in.readFully(message);
+        return Response.decodeResponse(message);
+    }
+
+    /** Writes a response with an address for the question of a query. */
+    private static void answer(DataOutputStream out, Response query) throws IOException {
+        DNSNode question = query.getQuestion();
+        ResourceRecord record = new ResourceRecord(question.getHostName(), question.getType(), 3600,
+                InetAddress.getByAddress(new byte[]{10, 0, 0, 1}));
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        new ResponseEncoder().encodeResponse(buffer, query, ResponseEncoder.RCODE_NO_ERROR, List.of(record));
+        out.writeShort(buffer.position());
+        out.write(buffer.array(), 0, buffer.position());
+        out.flush();
+    }
+
+    private interface ConnectionHandler {
+        /** Serves a connection, which is closed on return.
+         *
+         * @param connection Number of the connection, starting at 1.
+         */
+        void serve(int connection, DataInputStream in, DataOutputStream out) throws IOException;
+    }
+
+    /** A name server on the loopback interface, serving each connection in its own thread. */
+    private static final class FakeServer implements AutoCloseable {
+        private final ServerSocket socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        private final AtomicInteger connections = new AtomicInteger();
+
+        FakeServer(ConnectionHandler handler) throws IOException {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket connection = socket.accept();
+                        int number = connections.incrementAndGet();
+                        Thread serving = new Thread(() -> {
+                            try (connection) {
+                                handler.serve(number, new DataInputStream(connection.getInputStream()),
+                                        new DataOutputStream(connection.getOutputStream()));
+                            } catch (IOException e) {
+                                // the client closed the connection
+                            }
+                        });
+                        serving.setDaemon(true);
+                        serving.start();
+                    }
+                } catch (IOException e) {
+                    // the server socket was closed at the end of the test
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        InetAddress getAddress() {
+            return socket.getInetAddress();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
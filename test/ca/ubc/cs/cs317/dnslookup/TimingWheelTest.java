@@ -0,0 +1,127 @@
+package ca.ubc.cs.cs317.dnslookup;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimingWheelTest {
+
+    @Test
+    void expiresItemsWhenTheirTimeIsReached() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 1000);
+        List<String> expired = new ArrayList<>();
+        wheel.schedule("a", 1015);
+        wheel.schedule("b", 1030);
+
+        wheel.advance(1010, expired::add);
+        assertEquals(List.of(), expired);
+        wheel.advance(1020, expired::add);
+        assertEquals(List.of("a"), expired);
+        wheel.advance(1029, expired::add);
+        assertEquals(List.of("a"), expired);
+        wheel.advance(1030, expired::add);
+        assertEquals(List.of("a", "b"), expired);
+    }
+
+    @Test
+    void expiresPastItemsOnTheNextTick() {
+        TimingWheel<String> wheel = new TimingWheel<>(10, 1000);
+        List<String> expired = new ArrayList<>();
+        wheel.schedule("past", 500);
+
+        wheel.advance(1010, expired::add);
+        assertEquals(List.of("past"), expired);
+    }
+
+    @Test
+    void cascadesAcrossLevels() {
+        TimingWheel<Long> wheel = new TimingWheel<>(1, 0);
+        // the first and last ticks of each level, and times beyond the span of the wheel
+        long[] times = {1, 63, 64, 65, 4095, 4096, 4097, 262143, 262144, 262145,
+                16777215, 16777216, 16777217, 20000000};
+        for (long time : times)
+            wheel.schedule(time, time);
+
+        long now = 0;
+        for (long time : times) {
+            List<Long> expired = new ArrayList<>();
+            wheel.advance(time - 1, expired::add);
+            assertEquals(List.of(), expired, "expired before " + time);
+            wheel.advance(time, expired::add);
+            assertEquals(List.of(time), expired, "not expired at " + time);
+            now = time;
+        }
+        List<Long> expired = new ArrayList<>();
+        wheel.advance(now + 100000, expired::add);
+        assertEquals(List.of(), expired);
+    }
+
+    @Test
+    void neverExpiresEarlyOrLate() {
+        long tick = 7;
+        TimingWheel<Integer> wheel = new TimingWheel<>(tick, 0);
+        Random random = new Random(317);
+        Map<Integer, Long> times = new HashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            long time = 1 + random.nextInt(1 << 20);
+            times.put(i, time);
+            wheel.schedule(i, time);
+        }
+
+        Map<Integer, Long> expiredAt = new HashMap<>();
+        long previous = 0;
+        for (long now = 0; expiredAt.size() < times.size(); now += 1 + random.nextInt(5000)) {
+            long current = now;
+            long before = previous;
+            wheel.advance(current, item -> {
+                long time = times.get(item);
+                assertTrue(current >= time, "item expiring at " + time + " expired at " + current);
+                // the item was not due yet, to the tick, when the wheel was last advanced
+                long due = (time + tick - 1) / tick * tick;
+                assertTrue(before < due, "item expiring at " + time + " not expired at " + before);
+                assertNull(expiredAt.put(item, current));
+            });
+            previous = now;
+        }
+    }
+
+    @Test
+    void reschedulesItemsFromTheConsumer() {
+        TimingWheel<String> wheel = new TimingWheel<>(1, 0);
+        List<Long> expiredAt = new ArrayList<>();
+        wheel.schedule("item", 100);
+
+        // like the cache does for a node with records left, schedule the item again when it expires
+        for (long now = 0; now <= 5000; now += 50) {
+            long current = now;
+            wheel.advance(current, item -> {
+                expiredAt.add(current);
+                if (expiredAt.size() < 3)
+                    wheel.schedule(item, current + 1000);
+            });
+        }
+        assertEquals(List.of(100L, 1100L, 2100L), expiredAt);
+    }
+
+    @Test
+    void keepsEveryScheduleOfAnItem() {
+        // the wheel doesn't replace schedules: the consumer checks what has actually expired
+        TimingWheel<String> wheel = new TimingWheel<>(1, 0);
+        List<String> expired = new ArrayList<>();
+        wheel.schedule("item", 10);
+        wheel.schedule("item", 5000);
+
+        wheel.advance(100, expired::add);
+        assertEquals(List.of("item"), expired);
+        wheel.advance(4999, expired::add);
+        assertEquals(List.of("item"), expired);
+        wheel.advance(5000, expired::add);
+        assertEquals(List.of("item", "item"), expired);
+    }
+}